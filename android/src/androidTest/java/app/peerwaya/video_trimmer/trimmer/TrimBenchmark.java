@@ -0,0 +1,202 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the {@link TrimEngine}s on one input: wall time and peak memory of the same copy
+ * trim, repeated with the engines interleaved so that caches and thermal state affect them
+ * alike.
+ * <p>
+ * Peak memory is sampled from a separate thread while a trim runs and reported above the
+ * level before it started, for the Java heap and the native heap (where FFmpeg and the
+ * platform media stack allocate).
+ * <p>
+ * The input is a video on the device, passed as instrumentation arguments; without it the
+ * benchmark is skipped:
+ * <pre>
+ * adb shell am instrument -w -r -e class app.peerwaya.video_trimmer.trimmer.TrimBenchmark \
+ *     -e trimInput /sdcard/Movies/in.mp4 -e trimStartMs 1000 -e trimEndMs 11000 \
+ *     -e trimIterations 3 \
+ *     app.peerwaya.video_trimmer.test/androidx.test.runner.AndroidJUnitRunner
+ * </pre>
+ * Each engine is reported as an instrumentation status and in the log.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrimBenchmark {
+
+    private static final String TAG = TrimBenchmark.class.getSimpleName();
+    private static final long SAMPLE_INTERVAL_MILLIS = 5;
+
+    @Test
+    public void compareEngines() {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String input = arguments.getString("trimInput");
+        assumeTrue("no trimInput argument", input != null);
+        File src = new File(input);
+        long startMs = Long.parseLong(arguments.getString("trimStartMs", "0"));
+        long endMs = Long.parseLong(arguments.getString("trimEndMs", "10000"));
+        int iterations = Integer.parseInt(arguments.getString("trimIterations", "3"));
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        File workDir = new File(instrumentation.getTargetContext().getCacheDir(), "trim_benchmark");
+        for (Stats stats : run(src, startMs, endMs, Math.max(1, iterations), workDir)) {
+            Log.i(TAG, stats.toString());
+            instrumentation.sendStatus(0, stats.toBundle());
+            assertEquals(stats.engine + " failed", 0, stats.failures);
+        }
+    }
+
+    /**
+     * Run the benchmark on the calling thread, the only one running FFmpeg in the test process.
+     *
+     * @param workDir where the outputs are written; they are deleted after each run
+     * @return the stats of each engine able to trim <code>src</code>
+     */
+    private static Stats[] run(File src, long startMs, long endMs, int iterations, File workDir) {
+        List<TrimEngine> engines = new ArrayList<>();
+        engines.add(TrimEngines.select(TrimEngines.FFMPEG, src));
+        if (MuxerTrimEngine.canRemux(src)) {
+            engines.add(TrimEngines.select(TrimEngines.MUXER, src));
+        }
+        workDir.mkdirs();
+        Stats[] stats = new Stats[engines.size()];
+        for (int e = 0; e < stats.length; e++) {
+            stats[e] = new Stats(engines.get(e).getName());
+        }
+        for (int i = 0; i < iterations; i++) {
+            for (int e = 0; e < engines.size(); e++) {
+                TrimEngine engine = engines.get(e);
+                File dst = new File(workDir, "benchmark-" + engine.getName() + ".mp4");
+                dst.delete();
+                Sampler sampler = new Sampler();
+                sampler.start();
+                long startedAt = SystemClock.elapsedRealtime();
+                int rc = TrimVideoUtils.trim(engine, src, dst, startMs, endMs, TrimStreams.ALL, null);
+                long wallMs = SystemClock.elapsedRealtime() - startedAt;
+                sampler.finish();
+                stats[e].add(rc == 0, wallMs, sampler.peakJavaBytes, sampler.peakNativeBytes, dst.length());
+                dst.delete();
+            }
+        }
+        return stats;
+    }
+
+    private static long javaHeapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Polls heap usage until finished, keeping the peak above the starting level.
+     */
+    private static final class Sampler extends Thread {
+
+        private final long javaBase = javaHeapUsed();
+        private final long nativeBase = Debug.getNativeHeapAllocatedSize();
+        private volatile boolean finished;
+        long peakJavaBytes;
+        long peakNativeBytes;
+
+        Sampler() {
+            super("TrimBenchmarkSampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!finished) {
+                sample();
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized void sample() {
+            peakJavaBytes = Math.max(peakJavaBytes, javaHeapUsed() - javaBase);
+            peakNativeBytes = Math.max(peakNativeBytes, Debug.getNativeHeapAllocatedSize() - nativeBase);
+        }
+
+        void finish() {
+            finished = true;
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            /* catch trims shorter than the sampling interval */
+            sample();
+        }
+    }
+
+    private static final class Stats {
+
+        private final String engine;
+        private int runs;
+        private int failures;
+        private long totalWallMs;
+        private long minWallMs = Long.MAX_VALUE;
+        private long maxWallMs;
+        private long peakJavaBytes;
+        private long peakNativeBytes;
+        private long outputBytes;
+
+        Stats(String engine) {
+            this.engine = engine;
+        }
+
+        void add(boolean success, long wallMs, long javaBytes, long nativeBytes, long outputBytes) {
+            runs++;
+            if (!success) {
+                failures++;
+            }
+            totalWallMs += wallMs;
+            minWallMs = Math.min(minWallMs, wallMs);
+            maxWallMs = Math.max(maxWallMs, wallMs);
+            peakJavaBytes = Math.max(peakJavaBytes, javaBytes);
+            peakNativeBytes = Math.max(peakNativeBytes, nativeBytes);
+            this.outputBytes = outputBytes;
+        }
+
+        Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putString("engine", engine);
+            bundle.putInt("runs", runs);
+            bundle.putInt("failures", failures);
+            bundle.putLong("averageWallMs", runs > 0 ? totalWallMs / runs : 0L);
+            bundle.putLong("minWallMs", runs > 0 ? minWallMs : 0L);
+            bundle.putLong("maxWallMs", maxWallMs);
+            bundle.putLong("peakJavaBytes", peakJavaBytes);
+            bundle.putLong("peakNativeBytes", peakNativeBytes);
+            bundle.putLong("outputBytes", outputBytes);
+            return bundle;
+        }
+
+        @Override
+        public String toString() {
+            return "engine:" + engine + ", runs:" + runs + ", failures:" + failures
+                    + ", averageWallMs:" + (runs > 0 ? totalWallMs / runs : 0L)
+                    + ", minWallMs:" + (runs > 0 ? minWallMs : 0L) + ", maxWallMs:" + maxWallMs
+                    + ", peakJavaBytes:" + peakJavaBytes + ", peakNativeBytes:" + peakNativeBytes
+                    + ", outputBytes:" + outputBytes;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task throughput of {@link BackgroundExecutor} with several threads submitting at once, two
+ * to a serial, so that the serial queues and the id index are contended.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BackgroundExecutorBenchmark {
+
+    private static final int BATCH = 64;
+
+    @State(Scope.Thread)
+    public static class Submitter {
+
+        String id;
+        String serial;
+
+        @Setup
+        public void setUp(ThreadParams params) {
+            id = "benchmark/" + params.getThreadIndex();
+            serial = "benchmark/" + params.getThreadIndex() / 2;
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            BackgroundExecutor.cancelAll(id, false);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!BackgroundExecutor.isIdle() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * A batch submitted and cancelled before most of it runs, as when a strip is scrolled
+     * away.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void submitAndCancel(Submitter submitter) {
+        for (int i = 0; i < BATCH; i++) {
+            BackgroundExecutor.execute(new BackgroundExecutor.Task(submitter.id, 0L, submitter.serial,
+                    BackgroundExecutor.PRIORITY_PREFETCH) {
+                @Override
+                public void execute() {
+                }
+            });
+        }
+        BackgroundExecutor.cancelAll(submitter.id, false);
+    }
+
+    /**
+     * A batch submitted and run to completion, half of it on the submitter's serial.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void submitAndRun(Submitter submitter) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            BackgroundExecutor.execute(new BackgroundExecutor.Task(submitter.id, 0L, i % 2 == 0 ? submitter.serial : "",
+                    BackgroundExecutor.PRIORITY_VISIBLE) {
+                @Override
+                public void execute() {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+}
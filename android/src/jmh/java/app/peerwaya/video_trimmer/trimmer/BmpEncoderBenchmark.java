@@ -0,0 +1,67 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BMP encoding of a tile, as done by {@link AndroidBmpUtil#bitmapDataWithFileHeader} once the
+ * pixels are copied out of the bitmap. A bitmap has no pixels on the host JVM, so the
+ * benchmark starts from the RGBA buffer the encoder copies them into.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BmpEncoderBenchmark {
+
+    /** Strip tile sizes, from a phone strip to a tablet preview. */
+    @Param({"96x54", "160x90", "320x180", "640x360"})
+    public String size;
+
+    private int width;
+    private int height;
+    private byte[] rgba;
+    private byte[] dst;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        width = Integer.parseInt(dimensions[0]);
+        height = Integer.parseInt(dimensions[1]);
+        rgba = new byte[width * height * 4];
+        new Random(42).nextBytes(rgba);
+        dst = new byte[AndroidBmpUtil.fileSize(width, height)];
+    }
+
+    /**
+     * Into a new array, like {@link AndroidBmpUtil.Encoder#encode(android.graphics.Bitmap)}.
+     */
+    @Benchmark
+    public byte[] encode() {
+        byte[] file = new byte[AndroidBmpUtil.fileSize(width, height)];
+        AndroidBmpUtil.writeRgba(rgba, 0, width, height, width * 4, file, 0);
+        return file;
+    }
+
+    /**
+     * Into a reused array, the pixel conversion alone.
+     */
+    @Benchmark
+    public int encodeInto() {
+        return AndroidBmpUtil.writeRgba(rgba, 0, width, height, width * 4, dst, 0);
+    }
+}
@@ -0,0 +1,87 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the channel message of a strip tile with each {@link TileDelivery}, a BMP tile at a
+ * time.
+ * <p>
+ * Each iteration is a strip of {@link #TILES} tiles written to a fresh tile file, so that the
+ * file stays the size of a real strip instead of growing for as long as the benchmark runs.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, batchSize = TileEventBenchmark.TILES)
+@Measurement(iterations = 20, batchSize = TileEventBenchmark.TILES)
+@Fork(1)
+@State(Scope.Thread)
+public class TileEventBenchmark {
+
+    static final int TILES = 200;
+
+    @Param({"96x54", "160x90"})
+    public String size;
+
+    @Param({TileDelivery.BYTES, TileDelivery.FILE})
+    public String delivery;
+
+    private int width;
+    private int height;
+    private byte[] data;
+    private File directory;
+    private TileFile file;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String[] dimensions = size.split("x");
+        width = Integer.parseInt(dimensions[0]);
+        height = Integer.parseInt(dimensions[1]);
+        data = new byte[AndroidBmpUtil.fileSize(width, height)];
+        new Random(42).nextBytes(data);
+        directory = Files.createTempDirectory("video_trimmer_tiles").toFile();
+    }
+
+    @Setup(Level.Iteration)
+    public void openFile() throws IOException {
+        index = 0;
+        file = TileDelivery.FILE.equals(delivery) ? new TileFile(new File(directory, "strip" + TileFile.SUFFIX)) : null;
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteFile() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Benchmark
+    public Map<String, Object> tileEvent() throws IOException {
+        return TileDelivery.tileEvent(1, index++, width, height, ThumbnailFormat.BMP, data, file);
+    }
+}
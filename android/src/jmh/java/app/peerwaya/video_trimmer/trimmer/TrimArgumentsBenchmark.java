@@ -0,0 +1,51 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the FFmpeg arguments of a trim: the time formatting and the argument array.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrimArgumentsBenchmark {
+
+    @State(Scope.Thread)
+    public static class Trim {
+
+        @Param({TrimStreams.ALL, TrimStreams.VIDEO, TrimStreams.AUDIO})
+        public String streams;
+
+        final File src = new File("/storage/emulated/0/DCIM/Camera/VID_20200101_120000.mp4");
+        final File dst = new File("/data/user/0/app.peerwaya.video_trimmer/cache/trim.mp4");
+    }
+
+    /**
+     * A 30 second cut into a longer video, as the editor makes them: the start and duration
+     * formatted as <code>%d.%03d</code> seconds, the milliseconds zero-padded, and the argument
+     * array built.
+     */
+    @Benchmark
+    public String[] copyArguments(Trim trim) {
+        return TrimVideoUtils.copyArguments(trim.src, trim.dst, 12_045, 42_090, trim.streams);
+    }
+
+    @Benchmark
+    public String formatMicros() {
+        return TrimVideoUtils.formatMicros(4_354_750_123L);
+    }
+}
@@ -1,37 +1,53 @@
 package app.peerwaya.video_trimmer;
 
 import android.Manifest;
-import android.annotation.TargetApi;
 import android.app.Activity;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Rect;
-import android.media.MediaMetadataRetriever;
 import android.net.Uri;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import app.peerwaya.video_trimmer.trimmer.AndroidBmpUtil;
 import app.peerwaya.video_trimmer.trimmer.BackgroundExecutor;
+import app.peerwaya.video_trimmer.trimmer.CancellationToken;
+import app.peerwaya.video_trimmer.trimmer.ExportProfile;
+import app.peerwaya.video_trimmer.trimmer.MediaLibrary;
+import app.peerwaya.video_trimmer.trimmer.Metrics;
+import app.peerwaya.video_trimmer.trimmer.ProbeIndex;
+import app.peerwaya.video_trimmer.trimmer.ThumbnailAtlas;
+import app.peerwaya.video_trimmer.trimmer.ThumbnailCache;
+import app.peerwaya.video_trimmer.trimmer.ThumbnailFormat;
+import app.peerwaya.video_trimmer.trimmer.ThumbnailSession;
+import app.peerwaya.video_trimmer.trimmer.TileDelivery;
+import app.peerwaya.video_trimmer.trimmer.TileFile;
+import app.peerwaya.video_trimmer.trimmer.TrimEngines;
+import app.peerwaya.video_trimmer.trimmer.TrimJob;
+import app.peerwaya.video_trimmer.trimmer.TrimScheduler;
+import app.peerwaya.video_trimmer.trimmer.TrimStreams;
+import app.peerwaya.video_trimmer.trimmer.TrimSegment;
 import app.peerwaya.video_trimmer.trimmer.TrimVideoUtils;
 import app.peerwaya.video_trimmer.utils.Callback;
+import app.peerwaya.video_trimmer.utils.MainThreadResult;
 import app.peerwaya.video_trimmer.utils.PermissionUtils;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
@@ -50,8 +66,13 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
     private static final String TAG = VideoTrimmerPlugin.class.getSimpleName();
     private static final String PERMISSION_WRITE_EXTERNAL_STORAGE = Manifest.permission.WRITE_EXTERNAL_STORAGE;
     private static final String CHANNEL_NAME  = "github.com/peerwaya/gotok/video_trimmer";
+    private static final int THUMBNAIL_MEMORY_CACHE_BYTES = (int) Math.min(8 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+    private static final long THUMBNAIL_DISK_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final String TILE_DIRECTORY = "video_trimmer_tiles";
     private Context context;
     private final SparseArray<FetchVideoThumbnail> tasks = new SparseArray<>();
+    private final SparseArray<TrimJob> trimJobs = new SparseArray<>();
+    private TrimScheduler trimScheduler;
     /// The MethodChannel that will the communication between Flutter and native Android
     ///
     /// This local reference serves to register the plugin with the Flutter Engine and unregister it
@@ -61,6 +82,12 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
     private Handler handler = new Handler(Looper.getMainLooper());
     private Activity mActivity;
     private BinaryMessenger messenger;
+    private ThumbnailCache thumbnailCache;
+    private ProbeIndex probeIndex;
+    private File tileDirectory;
+    /* one-shot thumbnail jobs in flight, cancelled on dispose */
+    private final Set<CancellationToken> jobs = Collections.newSetFromMap(new ConcurrentHashMap<CancellationToken, Boolean>());
+    private final AtomicInteger nextJobId = new AtomicInteger();
 
     @Override
     public void onAttachedToEngine(@NonNull FlutterPluginBinding flutterPluginBinding) {
@@ -68,6 +95,16 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
         channel.setMethodCallHandler(this);
         messenger = flutterPluginBinding.getBinaryMessenger();
         context = flutterPluginBinding.getApplicationContext();
+        thumbnailCache = new ThumbnailCache(context, THUMBNAIL_MEMORY_CACHE_BYTES, THUMBNAIL_DISK_CACHE_BYTES);
+        probeIndex = new ProbeIndex(context);
+        trimScheduler = new TrimScheduler(probeIndex);
+        tileDirectory = new File(context.getCacheDir(), TILE_DIRECTORY);
+        BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "", BackgroundExecutor.PRIORITY_BACKGROUND) {
+            @Override
+            public void execute() {
+                TileFile.deleteAll(tileDirectory);
+            }
+        });
     }
 
     @Override
@@ -88,12 +125,114 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
             int endMs = call.argument("endMs");
             final File inputFile = new File(inputFileS);
             final File outputFile = new File(outputFileS);
-            TrimVideoUtils.startTrim(inputFile, outputFile, startMs, endMs, result);
+            String mode = call.argument("mode");
+            String engine = call.argument("engine");
+            try {
+                TrimEngines.checkName(engine);
+            } catch (IllegalArgumentException e) {
+                result.error("invalid_engine", e.getMessage(), null);
+                return;
+            }
+            if (mode != null && !mode.equals(TrimScheduler.MODE_COPY) && !mode.equals(TrimScheduler.MODE_SMART)) {
+                result.error("invalid_mode", "Unknown trim mode: " + mode, null);
+                return;
+            }
+            Map<?, ?> profileMap = call.argument("profile");
+            ExportProfile profile;
+            try {
+                profile = profileMap != null ? ExportProfile.fromMap(profileMap) : null;
+            } catch (IllegalArgumentException e) {
+                result.error("invalid_profile", e.getMessage(), null);
+                return;
+            }
+            if (profile == null && !TrimScheduler.MODE_SMART.equals(mode)) {
+                /* only copies use the engine */
+                try {
+                    TrimEngines.checkOutput(engine, outputFile);
+                } catch (IllegalArgumentException e) {
+                    result.error("invalid_engine", e.getMessage(), null);
+                    return;
+                }
+            }
+            String streams = call.argument("streams");
+            try {
+                TrimStreams.checkName(streams);
+            } catch (IllegalArgumentException e) {
+                result.error("invalid_streams", e.getMessage(), null);
+                return;
+            }
+            if (TrimStreams.AUDIO.equals(streams) && (profile != null || TrimScheduler.MODE_SMART.equals(mode))) {
+                result.error("invalid_streams", "Audio-only trims are stream copies", null);
+                return;
+            }
+            TrimJob job = getTrimJob(call);
+            trimScheduler.submit(new TrimScheduler.Request(inputFile, startMs, endMs, mode, engine, streams, profile), outputFile,
+                    job, trimJobResult(job, result));
+        } else if (method.equals("extractAudio")) {
+            final File inputFile = new File((String) call.argument("inputFile"));
+            final File outputFile = new File((String) call.argument("outputFile"));
+            int startMs = call.argument("startMs");
+            int endMs = call.argument("endMs");
+            String engine = call.argument("engine");
+            try {
+                TrimEngines.checkName(engine);
+                TrimEngines.checkOutput(engine, outputFile);
+            } catch (IllegalArgumentException e) {
+                result.error("invalid_engine", e.getMessage(), null);
+                return;
+            }
+            TrimJob job = getTrimJob(call);
+            trimScheduler.submit(new TrimScheduler.Request(inputFile, startMs, endMs, null, engine, TrimStreams.AUDIO, null),
+                    outputFile, job, trimJobResult(job, result));
+        } else if (method.equals("setMaxConcurrentTrims")) {
+            int maxConcurrency = call.argument("maxConcurrency");
+            trimScheduler.setMaxConcurrency(maxConcurrency);
+            result.success(null);
+        } else if (method.equals("concatVideos")) {
+            List<String> inputFiles = call.argument("inputFiles");
+            String outputFile = call.argument("outputFile");
+            if (inputFiles == null || inputFiles.isEmpty()) {
+                result.error("invalid_input", "No video to concatenate", null);
+                return;
+            }
+            List<File> inputs = new ArrayList<>();
+            for (String inputFile : inputFiles) {
+                inputs.add(new File(inputFile));
+            }
+            TrimJob job = getTrimJob(call);
+            TrimVideoUtils.startConcat(inputs, new File(outputFile), probeIndex, job, trimJobResult(job, result));
+        } else if (method.equals("initTrimJob")) {
+            int handle = nextListenerHandle++;
+            trimJobs.put(handle, new TrimJob(messenger, CHANNEL_NAME, handle));
+            result.success(handle);
+        } else if (method.equals("cancelTrim")) {
+            int handle = call.argument("handle");
+            TrimJob job = trimJobs.get(handle);
+            result.success(job != null && trimScheduler.cancel(job));
+        } else if (method.equals("trimSegments")) {
+            String inputFileS = call.argument("inputFile");
+            List<Map<?, ?>> segmentArgs = call.argument("segments");
+            List<TrimSegment> segments = new ArrayList<>();
+            try {
+                for (Map<?, ?> segmentArg : segmentArgs) {
+                    segments.add(TrimSegment.fromMap(segmentArg));
+                }
+            } catch (IllegalArgumentException e) {
+                result.error("invalid_segment", e.getMessage(), null);
+                return;
+            }
+            if (segments.isEmpty()) {
+                result.success(new ArrayList<>());
+                return;
+            }
+            TrimJob job = getTrimJob(call);
+            TrimVideoUtils.startTrimSegments(new File(inputFileS), segments, probeIndex, job, trimJobResult(job, result));
         } else if (method.equals("initVideoThumbsRequest")) {
             String videoFile = call.argument("videoFile");
             Uri uri = Uri.parse(videoFile);
             int handle = nextListenerHandle++;
-            FetchVideoThumbnail fetchVideoThumbnailTask = new FetchVideoThumbnail(uri, handle, messenger, context);
+            FetchVideoThumbnail fetchVideoThumbnailTask = new FetchVideoThumbnail(uri, handle, messenger, context, thumbnailCache, probeIndex,
+                    tileDirectory);
             tasks.put(handle, fetchVideoThumbnailTask);
             result.success(handle);
         } else if (method.equals("startVideoThumbsRequest")) {
@@ -108,7 +247,35 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
             int totalThumbsCount = call.argument("totalThumbsCount");
             double width = call.argument("width");
             double height = call.argument("height");
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, startMs, endMs, totalThumbsCount, (int) width, (int) height);
+            Integer parallelism = call.argument("parallelism");
+            Boolean atlas = call.argument("atlas");
+            Integer atlasUpdateMs = call.argument("atlasUpdateMs");
+            ThumbnailFormat format = getFormat(call, ThumbnailFormat.BMP, result);
+            if (format == null) {
+                return;
+            }
+            int quality = getQuality(call);
+            int priority = getPriority(call, BackgroundExecutor.PRIORITY_VISIBLE);
+            String delivery = call.argument("delivery");
+            try {
+                TileDelivery.checkName(delivery);
+            } catch (IllegalArgumentException e) {
+                result.error("invalid_delivery", e.getMessage(), null);
+                return;
+            }
+            if (atlas != null && atlas) {
+                try {
+                    ThumbnailAtlas.check(totalThumbsCount, (int) width, (int) height);
+                } catch (IllegalArgumentException e) {
+                    result.error("invalid_atlas", e.getMessage(), null);
+                    return;
+                }
+            }
+            task.start(startMs, endMs, totalThumbsCount, (int) width, (int) height, format, quality,
+                    parallelism != null ? parallelism : FetchVideoThumbnail.DEFAULT_PARALLELISM, priority,
+                    TileDelivery.FILE.equals(delivery), atlas != null && atlas
+                            ? new ThumbnailAtlas(totalThumbsCount, (int) width, (int) height, atlasUpdateMs != null ? atlasUpdateMs : 0)
+                            : null);
             result.success(true);
         } else if (method.equals("stopVideoThumbsRequest")) {
             int handle = call.argument("handle");
@@ -117,48 +284,108 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
                 result.success(false);
                 return;
             }
-            task.cancel(true);
+            task.stop();
             result.success(true);
         } else if (method.equals("removeVideoThumbsRequest")) {
             int handle = call.argument("handle");
             FetchVideoThumbnail task = tasks.get(handle);
             if (task != null) {
-                task.cancel(true);
+                task.release();
                 tasks.delete(handle);
             }
             result.success(true);
         } else if (method.equals("dispose")) {
             for (int i = 0; i < tasks.size(); i++) {
-                FetchVideoThumbnail task = tasks.get(i);
+                FetchVideoThumbnail task = tasks.valueAt(i);
                 if (task != null) {
-                    task.cancel(true);
+                    task.release();
                 }
             }
             tasks.clear();
+            trimScheduler.cancelAll();
+            for (int i = 0; i < trimJobs.size(); i++) {
+                TrimJob job = trimJobs.valueAt(i);
+                /* trimSegments jobs do not go through the scheduler */
+                job.cancel();
+                job.release();
+            }
+            trimJobs.clear();
+            for (CancellationToken job : new ArrayList<>(jobs)) {
+                job.cancel();
+            }
+            result.success(null);
+        } else if (method.equals("probeVideo")) {
+            String videoFile = call.argument("inputFile");
+            int priority = getPriority(call, BackgroundExecutor.PRIORITY_INTERACTIVE);
+            BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "", priority) {
+                @Override
+                public void execute() {
+                    try {
+                        Map<String, Object> probe = probeIndex.get(Uri.parse(videoFile)).toMap();
+                        handler.post(() -> result.success(probe));
+                    } catch (final Exception e) {
+                        Log.w(TAG, "Could not probe " + videoFile, e);
+                        handler.post(() -> result.error("failed", "failed to probe video", e.getMessage()));
+                    }
+                }
+            });
+        } else if (method.equals("getThumbnailCacheStats")) {
+            result.success(thumbnailCache.getStats());
+        } else if (method.equals("clearThumbnailCache")) {
+            BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "", BackgroundExecutor.PRIORITY_BACKGROUND) {
+                @Override
+                public void execute() {
+                    thumbnailCache.clear();
+                    thumbnailCache.resetStats();
+                    handler.post(() -> result.success(null));
+                }
+            });
+        } else if (method.equals("getMetrics")) {
+            Map<String, Object> metrics = Metrics.toMap();
+            Map<String, Object> trims = new HashMap<>();
+            trims.put("queued", trimScheduler.getQueuedCount());
+            trims.put("running", trimScheduler.getRunningCount());
+            trims.put("jobs", trimJobs.size());
+            metrics.put("trims", trims);
+            result.success(metrics);
+        } else if (method.equals("resetMetrics")) {
+            Metrics.reset();
             result.success(null);
         } else if (method.equals("extractThumbnail")) {
             String videoFile = call.argument("inputFile");
             final File inputFile = new File(videoFile);
             double width = call.argument("width");
             double height = call.argument("height");
-            BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "") {
+            ThumbnailFormat format = getFormat(call, ThumbnailFormat.PNG, result);
+            if (format == null) {
+                return;
+            }
+            int quality = getQuality(call);
+            int priority = getPriority(call, BackgroundExecutor.PRIORITY_INTERACTIVE);
+            final MainThreadResult pending = new MainThreadResult(result);
+            final String taskId = "thumbnail/" + nextJobId.getAndIncrement();
+            final CancellationToken token = startJob(taskId, pending);
+            BackgroundExecutor.execute(new BackgroundExecutor.Task(taskId, 0L, "", priority) {
                 @Override
                 public void execute() {
+                    ThumbnailSession session = new ThumbnailSession(context, Uri.parse(videoFile), thumbnailCache, probeIndex);
                     try {
-                        Uri uri = Uri.parse(videoFile);
-                        Bitmap bitmap = TrimVideoUtils.extractThumbnail(context, uri, 0, (int)width, (int)height);
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
-                        handler.post(() -> {
-                            Map<String, Object> arguments = new HashMap<>();
-                            arguments.put("width", (int) width);
-                            arguments.put("height", (int) height);
-                            arguments.put("data", baos.toByteArray());
-                            result.success(arguments);
-                        });
+                        byte[] data = session.extractThumbnailData(0, (int)width, (int)height, format, quality);
+                        token.throwIfCancelled();
+                        Map<String, Object> arguments = new HashMap<>();
+                        arguments.put("width", (int) width);
+                        arguments.put("height", (int) height);
+                        arguments.put("format", format.getFormatName());
+                        arguments.put("data", data);
+                        pending.success(arguments);
                     } catch (final Throwable e) {
-                        Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
-                        handler.post(() -> result.error("failed", "failed to extract thumbnail", null));
+                        if (!token.isCancelled()) {
+                            Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+                            pending.error("failed", "failed to extract thumbnail", null);
+                        }
+                    } finally {
+                        session.release();
+                        jobs.remove(token);
                     }
                 }
             });
@@ -170,58 +397,196 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
             int startMs = call.argument("startMs");
             int endMs = call.argument("endMs");
             int totalThumbsCount = call.argument("totalThumbsCount");
+            ThumbnailFormat format = getFormat(call, ThumbnailFormat.PNG, result);
+            if (format == null) {
+                return;
+            }
+            int quality = getQuality(call);
+            int priority = getPriority(call, BackgroundExecutor.PRIORITY_VISIBLE);
             Uri uri = Uri.parse(videoFile);
-            BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "") {
+            Boolean atlas = call.argument("atlas");
+            if (atlas != null && atlas) {
+                try {
+                    ThumbnailAtlas.check(totalThumbsCount, (int) width, (int) height);
+                } catch (IllegalArgumentException e) {
+                    result.error("invalid_atlas", e.getMessage(), null);
+                    return;
+                }
+                final MainThreadResult pending = new MainThreadResult(result);
+                final String taskId = "thumbnail/" + nextJobId.getAndIncrement();
+                final CancellationToken token = startJob(taskId, pending);
+                BackgroundExecutor.execute(new BackgroundExecutor.Task(taskId, 0L, "", priority) {
+                    @Override
+                    public void execute() {
+                        ThumbnailSession session = new ThumbnailSession(context, uri, thumbnailCache, probeIndex);
+                        ThumbnailAtlas thumbnailAtlas = new ThumbnailAtlas(totalThumbsCount, (int) width, (int) height, 0);
+                        try {
+                            for (int i = 0; i < totalThumbsCount; ++i) {
+                                token.throwIfCancelled();
+                                try {
+                                    long timeUs = session.thumbnailTimeUs(startMs, endMs, totalThumbsCount, i);
+                                    Bitmap tile = session.extractThumbnail(session.snapTimeUs(timeUs), (int) width, (int) height);
+                                    try {
+                                        thumbnailAtlas.draw(i, tile);
+                                    } finally {
+                                        tile.recycle();
+                                    }
+                                } catch (Exception e) {
+                                    if (token.isCancelled()) {
+                                        throw new CancellationException();
+                                    }
+                                    e.printStackTrace();
+                                }
+                            }
+                            pending.success(thumbnailAtlas.toMap(format, quality));
+                        } catch (final Throwable e) {
+                            if (!token.isCancelled()) {
+                                Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+                                pending.error("failed", "failed to extract thumbnail atlas", null);
+                            }
+                        } finally {
+                            thumbnailAtlas.recycle();
+                            session.release();
+                            jobs.remove(token);
+                        }
+                    }
+                });
+                return;
+            }
+            Boolean stream = call.argument("stream");
+            if (stream != null && stream) {
+                int handle = nextListenerHandle++;
+                new ThumbnailBatch(handle, messenger, context, thumbnailCache, probeIndex, jobs, uri, startMs, endMs,
+                        totalThumbsCount, (int) width, (int) height, format, quality, priority);
+                result.success(handle);
+                return;
+            }
+            final MainThreadResult pending = new MainThreadResult(result);
+            final String taskId = "thumbnail/" + nextJobId.getAndIncrement();
+            final CancellationToken token = startJob(taskId, pending);
+            BackgroundExecutor.execute(new BackgroundExecutor.Task(taskId, 0L, "", priority) {
                 @Override
                 public void execute() {
+                    ThumbnailSession session = new ThumbnailSession(context, uri, thumbnailCache, probeIndex);
                     try {
-                        final long interval = ((endMs - startMs) / (totalThumbsCount - 1) * 1000);
                         ArrayList<Map<String, Object>> thumbs = new ArrayList();
                         for (int i = 0; i < totalThumbsCount; ++i) {
+                            token.throwIfCancelled();
                             try {
-                                Bitmap bitmap = TrimVideoUtils.extractThumbnail(context, uri, i * interval, (int)width, (int)height);
-                                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                                bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
+                                long timeUs = session.thumbnailTimeUs(startMs, endMs, totalThumbsCount, i);
+                                byte[] data = session.extractThumbnailData(timeUs, (int)width, (int)height, format, quality);
                                 Map<String, Object> thumb = new HashMap<>();
                                 thumb.put("width", (int) width);
                                 thumb.put("height", (int) height);
-                                thumb.put("data", baos.toByteArray());
+                                thumb.put("format", format.getFormatName());
+                                thumb.put("data", data);
                                 thumbs.add(thumb);
                             } catch (Exception e) {
+                                if (token.isCancelled()) {
+                                    throw new CancellationException();
+                                }
                                 e.printStackTrace();
                             }
                         }
-                        handler.post(() -> {
-                            result.success(thumbs);
-                        });
+                        pending.success(thumbs);
                     } catch (final Throwable e) {
-                        Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
-                        handler.post(() -> result.error("failed", "failed to extract thumbnail", null));
+                        if (!token.isCancelled()) {
+                            Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+                            pending.error("failed", "failed to extract thumbnail", null);
+                        }
+                    } finally {
+                        session.release();
+                        jobs.remove(token);
                     }
                 }
             });
         }  else if (method.equals("saveToLibrary")) {
-            String inputFile = call.argument("inputFile");
-            File file = new File(inputFile);
-            Log.d(TAG, "saveToLibrary called for file");
-            BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "") {
-                @Override
-                public void execute() {
-                    try {
-                        saveToExternalStorage(file, result);
-                    } catch (final Throwable e) {
-                        Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
-                        handler.post(() -> result.error("failed", "failed to save video", null));
-                    }
-                }
-            });
+            List<String> inputFiles = call.argument("inputFiles");
+            if (inputFiles == null) {
+                String inputFile = call.argument("inputFile");
+                inputFiles = inputFile != null ? Collections.singletonList(inputFile) : Collections.emptyList();
+            }
+            List<File> files = new ArrayList<>(inputFiles.size());
+            for (String inputFile : inputFiles) {
+                files.add(new File(inputFile));
+            }
+            Log.d(TAG, "saveToLibrary called for " + files.size() + " files");
+            int priority = getPriority(call, BackgroundExecutor.PRIORITY_BACKGROUND);
+            saveToExternalStorage(files, priority, result);
         } else {
             result.notImplemented();
         }
     }
 
 
-    public void saveToExternalStorage(final File file, Result result) {
+    /**
+     * Registers a one-shot job so that <code>dispose</code> can cancel it. Cancelling drops
+     * the job's queued or running task and completes <code>result</code> with a
+     * <code>cancelled</code> error.
+     */
+    private CancellationToken startJob(String taskId, MainThreadResult result) {
+        CancellationToken token = new CancellationToken();
+        token.onCancel(() -> {
+            BackgroundExecutor.cancelAll(taskId, true);
+            result.error("cancelled", "the request was cancelled", null);
+        });
+        jobs.add(token);
+        return token;
+    }
+
+    /**
+     * Reads the optional <code>format</code> argument, reporting an error on the result if
+     * it is not a known format.
+     *
+     * @return the format, or <code>null</code> if an error was reported
+     */
+    private static ThumbnailFormat getFormat(MethodCall call, ThumbnailFormat fallback, Result result) {
+        try {
+            return ThumbnailFormat.fromName(call.argument("format"), fallback);
+        } catch (IllegalArgumentException e) {
+            result.error("invalid_format", e.getMessage(), null);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the optional <code>priority</code> argument: <code>interactive</code>,
+     * <code>visible</code>, <code>prefetch</code> or <code>background</code>.
+     */
+    private static int getPriority(MethodCall call, int fallback) {
+        String priority = call.argument("priority");
+        if (priority == null) {
+            return fallback;
+        }
+        switch (priority) {
+            case "interactive":
+                return BackgroundExecutor.PRIORITY_INTERACTIVE;
+            case "visible":
+                return BackgroundExecutor.PRIORITY_VISIBLE;
+            case "prefetch":
+                return BackgroundExecutor.PRIORITY_PREFETCH;
+            case "background":
+                return BackgroundExecutor.PRIORITY_BACKGROUND;
+            default:
+                return fallback;
+        }
+    }
+
+    private static int getQuality(MethodCall call) {
+        Integer quality = call.argument("quality");
+        return quality != null ? Math.max(0, Math.min(100, quality)) : ThumbnailFormat.DEFAULT_QUALITY;
+    }
+
+    /**
+     * Add <code>files</code> to the media library in one batch, asking for
+     * <code>WRITE_EXTERNAL_STORAGE</code> first on the API levels that need it. Completes
+     * <code>result</code> with the content uri of each file.
+     */
+    public void saveToExternalStorage(final List<File> files, int priority, Result result) {
+        if (!MediaLibrary.needsPermission()) {
+            saveToLibrary(files, priority, result);
+            return;
+        }
         final ArrayList<String> requestPermissions = new ArrayList<>();
         requestPermissions.add(PERMISSION_WRITE_EXTERNAL_STORAGE);
         requestPermissions(
@@ -229,36 +594,13 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
                 /* successCallback */ new Callback() {
                     @Override
                     public void invoke(Object... args) {
-                        List<String> grantedPermissions = (List<String>) args[0];
-                        // If we fail to create either, destroy the other one and fail.
-                        if (!grantedPermissions.contains(PERMISSION_WRITE_EXTERNAL_STORAGE)) {
-                            Log.d(TAG, "failed_to_save_to_external:permission_not_granted:" + file.getName());
-                            handler.post(() -> {
-                                result.error(
-                                        /* type */ "PermissionError",
-                                        "Failed to save file", null);
-                            });
-                            return;
-                        }
-                        if (file != null) {
-                            ContentValues values = new ContentValues(3);
-                            values.put(MediaStore.Video.Media.TITLE, file.getName());
-                            values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
-                            values.put(MediaStore.Video.Media.DATA, file.getAbsolutePath());
-                            values.put(MediaStore.Images.Media.DATE_ADDED, System.currentTimeMillis());
-                            values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
-                            context.getContentResolver().insert(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, values);
-                            handler.post(() -> result.success(null));
-                            Log.d(TAG, "saved_to_external:" + file.getName());
-                        } else {
-                            Log.d(TAG, "got null file");
-                        }
+                        saveToLibrary(files, priority, result);
                     }
                 },
                 /* errorCallback */ new Callback() {
                     @Override
                     public void invoke(Object... args) {
-                        Log.d(TAG, "failed_to_save_to_external:permission_not_granted2:" + file.getName());
+                        Log.d(TAG, "failed_to_save_to_external:permission_not_granted");
                         handler.post(() -> {
                             result.error(
                                     /* type */ "PermissionError",
@@ -269,6 +611,26 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
         );
     }
 
+    private void saveToLibrary(final List<File> files, int priority, Result result) {
+        BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "", priority) {
+            @Override
+            public void execute() {
+                try {
+                    List<Uri> uris = MediaLibrary.save(context.getContentResolver(), files);
+                    List<String> saved = new ArrayList<>(uris.size());
+                    for (Uri uri : uris) {
+                        saved.add(uri.toString());
+                    }
+                    Log.d(TAG, "saved_to_external:" + saved.size());
+                    handler.post(() -> result.success(saved));
+                } catch (final Throwable e) {
+                    Log.w(TAG, "failed_to_save_to_external", e);
+                    handler.post(() -> result.error("failed", "failed to save video", e.getMessage()));
+                }
+            }
+        });
+    }
+
     @Override
     public void onAttachedToActivity(ActivityPluginBinding activityPluginBinding) {
         mActivity = activityPluginBinding.getActivity();
@@ -332,31 +694,108 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
                 callback);
     }
 
+    /**
+     * The job named by the optional <code>handle</code> argument of a trim call, if any.
+     */
+    private TrimJob getTrimJob(MethodCall call) {
+        Integer handle = call.argument("handle");
+        return handle != null ? trimJobs.get(handle) : null;
+    }
+
+    /**
+     * Wrap the result of a trim so that its job is forgotten once the trim completes.
+     */
+    private Result trimJobResult(final TrimJob job, final Result result) {
+        if (job == null) {
+            return result;
+        }
+        return new Result() {
+            @Override
+            public void success(Object value) {
+                removeTrimJob(job);
+                result.success(value);
+            }
+
+            @Override
+            public void error(String errorCode, String errorMessage, Object errorDetails) {
+                removeTrimJob(job);
+                result.error(errorCode, errorMessage, errorDetails);
+            }
+
+            @Override
+            public void notImplemented() {
+                removeTrimJob(job);
+                result.notImplemented();
+            }
+        };
+    }
+
+    private void removeTrimJob(TrimJob job) {
+        if (trimJobs.get(job.getHandle()) == job) {
+            trimJobs.remove(job.getHandle());
+        }
+        job.release();
+    }
+
     public Activity getActivity() {
         return mActivity;
     }
 
-    private static class FetchVideoThumbnail extends AsyncTask<Integer, Void, Void> {
+    /**
+     * Streams the tiles of a thumbnail strip to <code>thumbnailStream/&lt;handle&gt;</code>.
+     * <p>
+     * A strip is split into contiguous time shards, each decoded by its own
+     * {@link ThumbnailSession} on the {@link BackgroundExecutor}, so several decoders run in
+     * parallel. Tiles are posted as soon as they are ready and carry their index in the strip.
+     * A strip ends with a <code>done</code> event, or a <code>cancelled</code> event if it is
+     * stopped first.
+     * <p>
+     * With file delivery the tiles of a strip are written to a {@link TileFile} and their
+     * events only carry where. The file of a strip is deleted when the next strip starts or the
+     * handle is released.
+     * <p>
+     * In atlas mode the tiles are drawn into a {@link ThumbnailAtlas} instead, sent as one
+     * <code>atlas</code> event before <code>done</code>, and optionally as partial atlases while
+     * the strip fills in.
+     */
+    private static class FetchVideoThumbnail {
+        static final int DEFAULT_PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
         private final BinaryMessenger messenger;
-        private int handle;
-        private EventChannel.EventSink eventSink;
-        private Uri mVideoUri;
-        private Handler handler;
-        private Context context;
+        private final int handle;
+        private final String taskId;
+        private volatile EventChannel.EventSink eventSink;
+        private final Uri mVideoUri;
+        private final Handler handler;
+        private final Context context;
+        private final ThumbnailCache cache;
+        private final ProbeIndex probes;
+        private final File tileDirectory;
+        private EventChannel eventChannel;
+        /* the strip in flight, guarded by this */
+        private CancellationToken running;
+        /* the tile file of the last strip, guarded by this */
+        private TileFile tileFile;
+        private int strips;
 
-        FetchVideoThumbnail(Uri videoUri, int handle, BinaryMessenger messenger, Context context) {
+        FetchVideoThumbnail(Uri videoUri, int handle, BinaryMessenger messenger, Context context, ThumbnailCache cache, ProbeIndex probes,
+                            File tileDirectory) {
             this.handle = handle;
+            this.taskId = "thumbnailStream/" + handle;
             this.mVideoUri = videoUri;
             this.messenger = messenger;
             registerEventChannel();
             handler = new Handler(Looper.getMainLooper());
             this.context = context;
+            this.cache = cache;
+            this.probes = probes;
+            this.tileDirectory = tileDirectory;
         }
 
         private void registerEventChannel() {
-            new EventChannel(
-                    messenger, CHANNEL_NAME+"/thumbnailStream/" + this.handle)
-                    .setStreamHandler(
+            eventChannel = new EventChannel(
+                    messenger, CHANNEL_NAME+"/thumbnailStream/" + this.handle);
+            eventChannel.setStreamHandler(
                             new EventChannel.StreamHandler() {
                                 @Override
                                 public void onListen(Object arguments, EventChannel.EventSink eventSink) {
@@ -370,55 +809,326 @@ public class VideoTrimmerPlugin implements FlutterPlugin, MethodCallHandler, Act
                             });
         }
 
-        @TargetApi(Build.VERSION_CODES.ECLAIR)
-        protected Void doInBackground(Integer... nums) {
+        /**
+         * Start extracting a strip, stopping any strip still running for this handle.
+         *
+         * @param format      the tile encoding
+         * @param quality     0-100, only used by lossy formats
+         * @param parallelism the maximum number of decoders working on the strip
+         * @param priority    the {@link BackgroundExecutor} priority of the shards
+         * @param toFile      whether the tiles are delivered through a {@link TileFile}
+         * @param atlas       the atlas the tiles are composed into, <code>null</code> to send
+         *                    them one by one
+         */
+        void start(int startMs, int endMs, int totalThumbsCount, int width, int height,
+                   ThumbnailFormat format, int quality, int parallelism, int priority, boolean toFile,
+                   ThumbnailAtlas atlas) {
+            stop();
+            final TileFile file = toFile && atlas == null ? openTileFile() : null;
+            final int shards = Math.max(1, Math.min(parallelism, totalThumbsCount));
+            final CancellationToken token = new CancellationToken();
+            final AtomicInteger remainingShards = new AtomicInteger(shards);
+            final List<ThumbnailSession> sessions = new ArrayList<>(shards);
+            for (int shard = 0; shard < shards; shard++) {
+                sessions.add(new ThumbnailSession(context, mVideoUri, cache, probes));
+            }
+            token.onCancel(() -> {
+                /* drop queued shards and interrupt the running ones */
+                BackgroundExecutor.cancelAll(taskId, true);
+                /* a retriever can only be released once its current frame is done, keep that off the caller's thread */
+                BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "") {
+                    @Override
+                    public void execute() {
+                        for (ThumbnailSession session : sessions) {
+                            session.release();
+                        }
+                        if (atlas != null) {
+                            atlas.recycle();
+                        }
+                    }
+                });
+            });
+            synchronized (this) {
+                running = token;
+            }
+            for (int shard = 0; shard < shards; shard++) {
+                final int from = shard * totalThumbsCount / shards;
+                final int to = (shard + 1) * totalThumbsCount / shards;
+                final ThumbnailSession session = sessions.get(shard);
+                BackgroundExecutor.execute(new BackgroundExecutor.Task(taskId, 0L, "", priority) {
+                    @Override
+                    public void execute() {
+                        try {
+                            extractShard(token, session, from, to, startMs, endMs, totalThumbsCount, width, height, format, quality,
+                                    file, atlas);
+                        } finally {
+                            if (remainingShards.decrementAndGet() == 0) {
+                                finish(token, atlas, format, quality);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Cancel the running strip, if any, and release its decoders. Listeners get a
+         * <code>cancelled</code> event.
+         */
+        void stop() {
+            final CancellationToken token;
+            synchronized (this) {
+                token = running;
+                running = null;
+            }
+            if (token != null && token.cancel()) {
+                postEvent("cancelled");
+            }
+        }
+
+        /**
+         * Stop and stop listening for subscribers; the handle cannot be used afterwards.
+         */
+        void release() {
+            stop();
+            eventChannel.setStreamHandler(null);
+            eventSink = null;
+            synchronized (this) {
+                if (tileFile != null) {
+                    tileFile.delete();
+                    tileFile = null;
+                }
+            }
+        }
+
+        /**
+         * Replace the tile file of the previous strip with a new one.
+         *
+         * @return the new file, <code>null</code> to fall back to sending the bytes
+         */
+        private synchronized TileFile openTileFile() {
+            if (tileFile != null) {
+                tileFile.delete();
+                tileFile = null;
+            }
             try {
-                int startTime = nums[0];
-                int endTime = nums[1];
-                int totalThumbsCount = nums[2];
-                int width = nums[3];
-                int height = nums[4];
-                MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-                mediaMetadataRetriever.setDataSource(context, mVideoUri);
+                tileFile = new TileFile(new File(tileDirectory, handle + "-" + strips++ + TileFile.SUFFIX));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not create a tile file, sending the tiles in the events", e);
+            }
+            return tileFile;
+        }
+
+        private void finish(CancellationToken token, ThumbnailAtlas atlas, ThumbnailFormat format, int quality) {
+            synchronized (this) {
+                if (running != token) {
+                    return;
+                }
+                running = null;
+            }
+            if (token.isCancelled()) {
+                return;
+            }
+            if (atlas != null) {
+                postAtlas(token, atlas, format, quality);
+                atlas.recycle();
+            }
+            postEvent("done");
+        }
 
-                // Set thumbnail properties (Thumbs are squares)
-                final int frameWidth = width;
-                final int frameHeight = height;
+        private void postAtlas(CancellationToken token, ThumbnailAtlas atlas, ThumbnailFormat format, int quality) {
+            Map<String, Object> arguments = atlas.toMap(format, quality);
+            arguments.put("handle", handle);
+            arguments.put("eventType", "atlas");
+            Metrics.post(handler, () -> {
+                if (eventSink != null && !token.isCancelled()) {
+                    eventSink.success(arguments);
+                }
+            });
+        }
 
-                final long interval = ((endTime - startTime) / (totalThumbsCount - 1)) * 1000;
+        private void postEvent(String eventType) {
+            Map<String, Object> arguments = new HashMap<>();
+            arguments.put("handle", handle);
+            arguments.put("eventType", eventType);
+            handler.post(() -> {
+                if (eventSink != null) {
+                    eventSink.success(arguments);
+                }
+            });
+        }
 
-                for (int i = 0; i < totalThumbsCount; ++i) {
+        private void extractShard(CancellationToken token, ThumbnailSession session, int from, int to, int startMs, int endMs,
+                                  int totalThumbsCount, int width, int height, ThumbnailFormat format, int quality,
+                                  TileFile file, ThumbnailAtlas atlas) {
+            try {
+                for (int i = from; i < to; ++i) {
+                    token.throwIfCancelled();
+                    if (eventSink == null) {
+                        continue;
+                    }
                     try {
-                        Bitmap bitmap = TrimVideoUtils.extractThumbnail(context, mVideoUri, i * interval, frameWidth, frameHeight);
-                        if (eventSink != null) {
-                            byte[] data = AndroidBmpUtil.bitmapDataWithFileHeader(bitmap);
-                            bitmap.recycle();
-                            Map<String, Object> arguments = new HashMap<>();
-                            arguments.put("handle", handle);
-                            arguments.put("width", frameWidth);
-                            arguments.put("height", frameHeight);
-                            arguments.put("data", data);
-                            arguments.put("eventType", "result");
-                            handler.post(() -> {
-                                if (eventSink != null) {
-                                    eventSink.success(arguments);
-                                }
-                            });
+                        long timeUs = session.thumbnailTimeUs(startMs, endMs, totalThumbsCount, i);
+                        if (atlas != null) {
+                            Bitmap tile = session.extractThumbnail(session.snapTimeUs(timeUs), width, height);
+                            boolean update;
+                            try {
+                                update = atlas.draw(i, tile);
+                            } finally {
+                                tile.recycle();
+                            }
+                            if (update) {
+                                postAtlas(token, atlas, format, quality);
+                            }
+                            continue;
                         }
+                        byte[] data = session.extractThumbnailData(timeUs, width, height, format, quality);
+                        token.throwIfCancelled();
+                        Map<String, Object> arguments = TileDelivery.tileEvent(handle, i, width, height, format, data, file);
+                        Metrics.post(handler, () -> {
+                            if (eventSink != null && !token.isCancelled()) {
+                                eventSink.success(arguments);
+                            }
+                        });
+                    } catch (CancellationException e) {
+                        throw e;
                     } catch (Exception e) {
+                        if (token.isCancelled()) {
+                            /* the session was released under this frame */
+                            break;
+                        }
                         e.printStackTrace();
                     }
                 }
-                mediaMetadataRetriever.release();
+            } catch (CancellationException e) {
+                /* stopped between frames */
             } catch (final Throwable e) {
                 e.printStackTrace();
                 Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            } finally {
+                session.release();
             }
-            return null;
+        }
+    }
+
+    /**
+     * Streams the tiles of an <code>extractThumbnails</code> call to
+     * <code>thumbnailBatch/&lt;handle&gt;</code> one by one instead of collecting them into a
+     * single result.
+     * <p>
+     * Extraction starts when Dart listens and stops when it cancels. At most
+     * {@link #MAX_PENDING_TILES} encoded tiles are waiting for the main thread at any time, so
+     * native memory does not grow with the number of tiles. The stream ends with a
+     * <code>done</code> event, or a <code>cancelled</code> event if the plugin is disposed
+     * first.
+     */
+    private static class ThumbnailBatch {
+        private static final int MAX_PENDING_TILES = 2;
+
+        private final int handle;
+        private final EventChannel eventChannel;
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private final Semaphore pendingTiles = new Semaphore(MAX_PENDING_TILES);
+        private final CancellationToken token = new CancellationToken();
+        private final Set<CancellationToken> jobs;
+        private volatile EventChannel.EventSink eventSink;
+
+        ThumbnailBatch(int handle, BinaryMessenger messenger, Context context, ThumbnailCache cache, ProbeIndex probes, Set<CancellationToken> jobs,
+                       Uri videoUri, int startMs, int endMs, int totalThumbsCount, int width, int height,
+                       ThumbnailFormat format, int quality, int priority) {
+            this.handle = handle;
+            this.jobs = jobs;
+            final String taskId = "thumbnailBatch/" + handle;
+            final ThumbnailSession session = new ThumbnailSession(context, videoUri, cache, probes);
+            this.eventChannel = new EventChannel(messenger, CHANNEL_NAME + "/thumbnailBatch/" + handle);
+            this.eventChannel.setStreamHandler(new EventChannel.StreamHandler() {
+                @Override
+                public void onListen(Object arguments, EventChannel.EventSink eventSink) {
+                    ThumbnailBatch.this.eventSink = eventSink;
+                    BackgroundExecutor.execute(new BackgroundExecutor.Task(taskId, 0L, "", priority) {
+                        @Override
+                        public void execute() {
+                            extract(session, startMs, endMs, totalThumbsCount, width, height, format, quality);
+                        }
+                    });
+                }
+
+                @Override
+                public void onCancel(Object arguments) {
+                    ThumbnailBatch.this.eventSink = null;
+                    token.cancel();
+                    eventChannel.setStreamHandler(null);
+                }
+            });
+            token.onCancel(() -> {
+                /* wakes the worker up if it is waiting for the main thread to drain tiles */
+                BackgroundExecutor.cancelAll(taskId, true);
+                handler.post(() -> {
+                    EventChannel.EventSink sink = eventSink;
+                    if (sink != null) {
+                        Map<String, Object> event = new HashMap<>();
+                        event.put("handle", handle);
+                        event.put("eventType", "cancelled");
+                        sink.success(event);
+                        sink.endOfStream();
+                        eventSink = null;
+                    }
+                });
+                jobs.remove(token);
+            });
+            jobs.add(token);
         }
 
-        protected void onPostExecute(Void v) {
+        private void extract(ThumbnailSession session, int startMs, int endMs, int totalThumbsCount,
+                             int width, int height, ThumbnailFormat format, int quality) {
+            try {
+                for (int i = 0; i < totalThumbsCount; ++i) {
+                    pendingTiles.acquire();
+                    token.throwIfCancelled();
+                    try {
+                        long timeUs = session.thumbnailTimeUs(startMs, endMs, totalThumbsCount, i);
+                        byte[] data = session.extractThumbnailData(timeUs, width, height, format, quality);
+                        Map<String, Object> arguments = new HashMap<>();
+                        arguments.put("handle", handle);
+                        arguments.put("index", i);
+                        arguments.put("width", width);
+                        arguments.put("height", height);
+                        arguments.put("format", format.getFormatName());
+                        arguments.put("data", data);
+                        arguments.put("eventType", "result");
+                        Metrics.post(handler, () -> {
+                            EventChannel.EventSink sink = eventSink;
+                            if (sink != null && !token.isCancelled()) {
+                                sink.success(arguments);
+                            }
+                            pendingTiles.release();
+                        });
+                    } catch (Exception e) {
+                        pendingTiles.release();
+                        if (token.isCancelled()) {
+                            return;
+                        }
+                        e.printStackTrace();
+                    }
+                }
+                handler.post(this::finish);
+            } catch (InterruptedException | CancellationException e) {
+                /* cancelled while waiting for the main thread or between frames */
+            } finally {
+                session.release();
+                jobs.remove(token);
+            }
+        }
 
+        private void finish() {
+            EventChannel.EventSink sink = eventSink;
+            if (sink != null && !token.isCancelled()) {
+                Map<String, Object> arguments = new HashMap<>();
+                arguments.put("handle", handle);
+                arguments.put("eventType", "done");
+                sink.success(arguments);
+                sink.endOfStream();
+            }
         }
     }
 }
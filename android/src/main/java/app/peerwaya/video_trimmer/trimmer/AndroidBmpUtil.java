@@ -17,6 +17,10 @@ public class AndroidBmpUtil {
 
     private final static int BMP_WIDTH_OF_TIMES = 4;
     private final static int BYTE_PER_PIXEL = 3;
+    private final static int RGBA_BYTE_PER_PIXEL = 4;
+    private final static int FILE_HEADER_SIZE = 0x0E;
+    private final static int INFO_HEADER_SIZE = 0x28;
+    private final static int IMAGE_DATA_OFFSET = FILE_HEADER_SIZE + INFO_HEADER_SIZE;
 
     /**
      * Android Bitmap Object to Window's v3 24bit Bmp Format File
@@ -25,192 +29,171 @@ public class AndroidBmpUtil {
      * @return file saved result
      */
     public static byte[] bitmapDataWithFileHeader(Bitmap orgBitmap) throws IOException {
-
         if (orgBitmap == null) {
             return null;
         }
+        return new Encoder().encode(orgBitmap);
+    }
 
-        boolean isSaveSuccess = true;
-
-        //image size
-        int width = orgBitmap.getWidth();
-        int height = orgBitmap.getHeight();
-
-        //image dummy data size
-        //reason : bmp file's width equals 4's multiple
-        int dummySize = 0;
-        byte[] dummyBytesPerRow = null;
-        boolean hasDummy = false;
-        if (isBmpWidth4Times(width)) {
-            hasDummy = true;
-            dummySize = BMP_WIDTH_OF_TIMES - (width % BMP_WIDTH_OF_TIMES);
-            dummyBytesPerRow = new byte[dummySize * BYTE_PER_PIXEL];
-            for (int i = 0; i < dummyBytesPerRow.length; i++) {
-                dummyBytesPerRow[i] = (byte) 0xFF;
-            }
-        }
-
-        int[] pixels = new int[width * height];
-        int imageSize = pixels.length * BYTE_PER_PIXEL + (height * dummySize * BYTE_PER_PIXEL);
-        int imageDataOffset = 0x36;
-        int fileSize = imageSize + imageDataOffset;
-
-        //Android Bitmap Image Data
-        orgBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        //ByteArrayOutputStream baos = new ByteArrayOutputStream(fileSize);
-        ByteBuffer buffer = ByteBuffer.allocate(fileSize);
-
-        /**
-         * BITMAP FILE HEADER Write Start
-         **/
-        buffer.put((byte) 0x42);
-        buffer.put((byte) 0x4D);
+    /**
+     * Size of the .bmp file for an image of the given size
+     *
+     * @param width
+     * @param height
+     * @return file size in bytes, headers included
+     */
+    public static int fileSize(int width, int height) {
+        return IMAGE_DATA_OFFSET + rowSize(width) * height;
+    }
 
-        //size
-        buffer.put(writeInt(fileSize));
+    /**
+     * Write a .bmp file for tightly or loosely packed RGBA pixels (the in-memory layout of an
+     * {@link Bitmap.Config#ARGB_8888} bitmap) into <code>dst</code>
+     *
+     * @param rgba       source pixels, top row first
+     * @param rgbaOffset offset of the first pixel in <code>rgba</code>
+     * @param width      image width
+     * @param height     image height
+     * @param stride     distance between the starts of two source rows, in bytes
+     * @param dst        destination, at least {@link #fileSize} bytes from <code>offset</code>
+     * @param offset     where the file starts in <code>dst</code>
+     * @return number of bytes written
+     */
+    public static int writeRgba(byte[] rgba, int rgbaOffset, int width, int height, int stride, byte[] dst, int offset) {
+        int rowSize = rowSize(width);
+        int imageSize = rowSize * height;
+        int fileSize = IMAGE_DATA_OFFSET + imageSize;
+        if (dst.length - offset < fileSize) {
+            throw new IllegalArgumentException("Destination too small: " + (dst.length - offset) + " < " + fileSize);
+        }
 
+        /** BITMAP FILE HEADER */
+        int o = offset;
+        dst[o++] = (byte) 0x42;
+        dst[o++] = (byte) 0x4D;
+        o = writeInt(dst, o, fileSize);
         //reserved
-        buffer.put(writeShort((short) 0));
-        buffer.put(writeShort((short) 0));
-
+        o = writeInt(dst, o, 0);
         //image data start offset
-        buffer.put(writeInt(imageDataOffset));
-
-        /** BITMAP FILE HEADER Write End */
-
-        //*******************************************
-
-        /** BITMAP INFO HEADER Write Start */
-        //size
-        buffer.put(writeInt(0x28));
-
-        //width, height
-        buffer.put(writeInt(width));
-        buffer.put(writeInt(height));
+        o = writeInt(dst, o, IMAGE_DATA_OFFSET);
 
+        /** BITMAP INFO HEADER */
+        o = writeInt(dst, o, INFO_HEADER_SIZE);
+        o = writeInt(dst, o, width);
+        o = writeInt(dst, o, height);
         //planes
-        buffer.put(writeShort((short) 1));
-
+        o = writeShort(dst, o, 1);
         //bit count
-        buffer.put(writeShort((short) 24));
-
+        o = writeShort(dst, o, 24);
         //bit compression
-        buffer.put(writeInt(0));
-
+        o = writeInt(dst, o, 0);
         //image data size
-        buffer.put(writeInt(imageSize));
-
-        //horizontal resolution in pixels per meter
-        buffer.put(writeInt(0));
-
-        //vertical resolution in pixels per meter (unreliable)
-        buffer.put(writeInt(0));
-
-        //컬러 사용 유무
-        buffer.put(writeInt(0));
-
-        //중요하게 사용하는 색
-        buffer.put(writeInt(0));
-
-        /** BITMAP INFO HEADER Write End */
-
-        int row = height;
-        int col = width;
-        int startPosition = 0;
-        int endPosition = 0;
-
-        while (row > 0) {
-
-            startPosition = (row - 1) * col;
-            endPosition = row * col;
-
-            for (int i = startPosition; i < endPosition; i++) {
-                buffer.put(write24BitForPixcel(pixels[i]));
-
-                if (hasDummy) {
-                    if (isBitmapWidthLastPixcel(width, i)) {
-                        buffer.put(dummyBytesPerRow);
-                    }
-                }
+        o = writeInt(dst, o, imageSize);
+        //horizontal, vertical resolution in pixels per meter
+        o = writeInt(dst, o, 0);
+        o = writeInt(dst, o, 0);
+        //colors used, important colors
+        o = writeInt(dst, o, 0);
+        o = writeInt(dst, o, 0);
+
+        /** PIXEL DATA: bottom-up BGR rows, each padded to a multiple of 4 bytes */
+        int padding = rowSize - width * BYTE_PER_PIXEL;
+        for (int row = height - 1; row >= 0; row--) {
+            int p = rgbaOffset + row * stride;
+            int end = p + width * RGBA_BYTE_PER_PIXEL;
+            while (p < end) {
+                dst[o++] = rgba[p + 2];
+                dst[o++] = rgba[p + 1];
+                dst[o++] = rgba[p];
+                p += RGBA_BYTE_PER_PIXEL;
+            }
+            for (int i = 0; i < padding; i++) {
+                dst[o++] = 0;
             }
-            row--;
         }
-
-        return buffer.array();
-
-
+        return o - offset;
     }
 
     /**
-     * Is last pixel in Android Bitmap width
+     * Row size in a .bmp file, padded to a multiple of 4 bytes
      *
      * @param width
-     * @param i
      * @return
      */
-    private static boolean isBitmapWidthLastPixcel(int width, int i) {
-        return i > 0 && (i % (width - 1)) == 0;
-    }
-
-    /**
-     * BMP file is a multiples of 4?
-     *
-     * @param width
-     * @return
-     */
-    private static boolean isBmpWidth4Times(int width) {
-        return width % BMP_WIDTH_OF_TIMES > 0;
+    private static int rowSize(int width) {
+        return (width * BYTE_PER_PIXEL + BMP_WIDTH_OF_TIMES - 1) & ~(BMP_WIDTH_OF_TIMES - 1);
     }
 
     /**
      * Write integer to little-endian
      *
-     * @param value
-     * @return
-     * @throws IOException
+     * @return offset after the written bytes
      */
-    private static byte[] writeInt(int value) throws IOException {
-        byte[] b = new byte[4];
-
-        b[0] = (byte) (value & 0x000000FF);
-        b[1] = (byte) ((value & 0x0000FF00) >> 8);
-        b[2] = (byte) ((value & 0x00FF0000) >> 16);
-        b[3] = (byte) ((value & 0xFF000000) >> 24);
-
-        return b;
+    private static int writeInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+        dst[offset + 2] = (byte) (value >> 16);
+        dst[offset + 3] = (byte) (value >> 24);
+        return offset + 4;
     }
 
     /**
-     * Write integer pixel to little-endian byte array
+     * Write short to little-endian
      *
-     * @param value
-     * @return
-     * @throws IOException
+     * @return offset after the written bytes
      */
-    private static byte[] write24BitForPixcel(int value) throws IOException {
-        byte[] b = new byte[3];
-
-        b[0] = (byte) (value & 0x000000FF);
-        b[1] = (byte) ((value & 0x0000FF00) >> 8);
-        b[2] = (byte) ((value & 0x00FF0000) >> 16);
-
-        return b;
+    private static int writeShort(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+        return offset + 2;
     }
 
     /**
-     * Write short to little-endian byte array
-     *
-     * @param value
-     * @return
-     * @throws IOException
+     * Reusable Bitmap to .bmp encoder. It keeps the pixel buffer of the last bitmap it
+     * encoded, so encoding a run of same-sized tiles allocates nothing but the output.
+     * <p>
+     * Not thread safe.
      */
-    private static byte[] writeShort(short value) throws IOException {
-        byte[] b = new byte[2];
+    public static final class Encoder {
+
+        private ByteBuffer pixels;
 
-        b[0] = (byte) (value & 0x00FF);
-        b[1] = (byte) ((value & 0xFF00) >> 8);
+        /**
+         * Encode into a new array of exactly {@link #fileSize} bytes
+         */
+        public byte[] encode(Bitmap bitmap) {
+            byte[] dst = new byte[fileSize(bitmap.getWidth(), bitmap.getHeight())];
+            encode(bitmap, dst, 0);
+            return dst;
+        }
 
-        return b;
+        /**
+         * Encode into a caller-supplied buffer
+         *
+         * @param bitmap image to encode
+         * @param dst    destination, at least {@link #fileSize} bytes from <code>offset</code>
+         * @param offset where the file starts in <code>dst</code>
+         * @return number of bytes written
+         */
+        public int encode(Bitmap bitmap, byte[] dst, int offset) {
+            Bitmap source = bitmap;
+            if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                source = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            }
+            try {
+                int stride = source.getRowBytes();
+                int byteCount = stride * source.getHeight();
+                if (pixels == null || pixels.capacity() < byteCount) {
+                    pixels = ByteBuffer.allocate(byteCount);
+                }
+                pixels.clear();
+                source.copyPixelsToBuffer(pixels);
+                return writeRgba(pixels.array(), pixels.arrayOffset(), source.getWidth(), source.getHeight(), stride, dst, offset);
+            } finally {
+                if (source != bitmap) {
+                    source.recycle();
+                }
+            }
+        }
     }
-}
\ No newline at end of file
+}
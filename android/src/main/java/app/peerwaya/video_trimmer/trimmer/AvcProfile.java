@@ -0,0 +1,191 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Profile and level of an H.264 stream, as {@link CodecProfileLevel} constants, read from the
+ * sequence parameter set in its <code>csd-0</code>.
+ * <p>
+ * Pieces re-encoded to be joined with stream-copied ones ask the encoder for these, so that
+ * the whole output keeps the profile and level of the source.
+ */
+final class AvcProfile {
+
+    private static final int NAL_SPS = 7;
+
+    final int profile;
+    final int level;
+
+    AvcProfile(int profile, int level) {
+        this.profile = profile;
+        this.level = level;
+    }
+
+    /**
+     * Profile and level of the video track of <code>src</code>.
+     *
+     * @return <code>null</code> if it is not H.264 or they cannot be read
+     */
+    static AvcProfile read(File src) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(src.getAbsolutePath());
+            int track = VideoReencoder.findVideoTrack(extractor);
+            if (track < 0) {
+                return null;
+            }
+            MediaFormat format = extractor.getTrackFormat(track);
+            if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(format.getString(MediaFormat.KEY_MIME)) || !format.containsKey("csd-0")) {
+                return null;
+            }
+            return parse(format.getByteBuffer("csd-0"));
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Read the first sequence parameter set of <code>csd</code>: Annex B NAL units with
+     * start codes, as the extractor gives them, or an <code>avcC</code> record.
+     *
+     * @return <code>null</code> if there is none or its profile is unknown
+     */
+    static AvcProfile parse(ByteBuffer csd) {
+        if (csd == null) {
+            return null;
+        }
+        ByteBuffer data = csd.duplicate();
+        int start = data.position();
+        int end = data.limit();
+        if (end - start >= 4 && data.get(start) == 1) {
+            /* avcC: version, profile, constraints, level */
+            return of(data.get(start + 1) & 0xff, data.get(start + 2) & 0xff, data.get(start + 3) & 0xff);
+        }
+        for (int i = start; i + 6 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1
+                    && (data.get(i + 3) & 0x1f) == NAL_SPS) {
+                return of(data.get(i + 4) & 0xff, data.get(i + 5) & 0xff, data.get(i + 6) & 0xff);
+            }
+        }
+        return null;
+    }
+
+    private static AvcProfile of(int profileIdc, int constraints, int levelIdc) {
+        int profile = profile(profileIdc);
+        /* constraint_set3_flag on level 1.1 of the lower profiles means level 1b */
+        boolean level1b = levelIdc == 9 || (levelIdc == 11 && (constraints & 0x10) != 0
+                && (profileIdc == 66 || profileIdc == 77 || profileIdc == 88));
+        int level = level1b ? CodecProfileLevel.AVCLevel1b : level(levelIdc);
+        return profile != 0 && level != 0 ? new AvcProfile(profile, level) : null;
+    }
+
+    private static int profile(int profileIdc) {
+        switch (profileIdc) {
+            case 66:
+                return CodecProfileLevel.AVCProfileBaseline;
+            case 77:
+                return CodecProfileLevel.AVCProfileMain;
+            case 88:
+                return CodecProfileLevel.AVCProfileExtended;
+            case 100:
+                return CodecProfileLevel.AVCProfileHigh;
+            case 110:
+                return CodecProfileLevel.AVCProfileHigh10;
+            case 122:
+                return CodecProfileLevel.AVCProfileHigh422;
+            case 244:
+                return CodecProfileLevel.AVCProfileHigh444;
+            default:
+                return 0;
+        }
+    }
+
+    private static int level(int levelIdc) {
+        switch (levelIdc) {
+            case 10:
+                return CodecProfileLevel.AVCLevel1;
+            case 11:
+                return CodecProfileLevel.AVCLevel11;
+            case 12:
+                return CodecProfileLevel.AVCLevel12;
+            case 13:
+                return CodecProfileLevel.AVCLevel13;
+            case 20:
+                return CodecProfileLevel.AVCLevel2;
+            case 21:
+                return CodecProfileLevel.AVCLevel21;
+            case 22:
+                return CodecProfileLevel.AVCLevel22;
+            case 30:
+                return CodecProfileLevel.AVCLevel3;
+            case 31:
+                return CodecProfileLevel.AVCLevel31;
+            case 32:
+                return CodecProfileLevel.AVCLevel32;
+            case 40:
+                return CodecProfileLevel.AVCLevel4;
+            case 41:
+                return CodecProfileLevel.AVCLevel41;
+            case 42:
+                return CodecProfileLevel.AVCLevel42;
+            case 50:
+                return CodecProfileLevel.AVCLevel5;
+            case 51:
+                return CodecProfileLevel.AVCLevel51;
+            case 52:
+                return CodecProfileLevel.AVCLevel52;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the H.264 encoder {@link VideoReencoder} gets, the first
+     * one listed, supports this profile at this level or above; always <code>false</code>
+     * before API 23, where encoders do not take a level
+     */
+    boolean isEncodable() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder() || !supportsAvc(info)) {
+                continue;
+            }
+            for (CodecProfileLevel supported : info.getCapabilitiesForType(MediaFormat.MIMETYPE_VIDEO_AVC).profileLevels) {
+                if (supported.profile == profile && supported.level >= level) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return false;
+    }
+
+    private static boolean supportsAvc(MediaCodecInfo info) {
+        for (String type : info.getSupportedTypes()) {
+            if (MediaFormat.MIMETYPE_VIDEO_AVC.equalsIgnoreCase(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ask <code>format</code>, an encoder format, for this profile and level.
+     */
+    void applyTo(MediaFormat format) {
+        format.setInteger(MediaFormat.KEY_PROFILE, profile);
+        format.setInteger(MediaFormat.KEY_LEVEL, level);
+    }
+}
@@ -18,51 +18,81 @@ package app.peerwaya.video_trimmer.trimmer;
 
 import android.util.Log;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class BackgroundExecutor {
 
     private static final String TAG = "BackgroundExecutor";
 
-    public static final Executor DEFAULT_EXECUTOR = Executors.newScheduledThreadPool(2 * Runtime.getRuntime().availableProcessors());
+    /** Work the user is waiting on right now, e.g. a poster frame. */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /** Work whose result is on screen, e.g. the strip being scrolled. */
+    public static final int PRIORITY_VISIBLE = 1;
+    /** Work likely to be needed soon, e.g. thumbnails just off screen. */
+    public static final int PRIORITY_PREFETCH = 2;
+    /** Work nobody is looking at, e.g. saving to the library or cache maintenance. */
+    public static final int PRIORITY_BACKGROUND = 3;
+
+    /**
+     * How long a queued task waits before it outranks tasks one priority class above it.
+     * This bounds how long lower priority work can be starved.
+     */
+    static final long AGING_STEP_MILLIS = 500;
+
+    public static final Executor DEFAULT_EXECUTOR = new PriorityExecutor(2 * Runtime.getRuntime().availableProcessors());
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor();
     private static Executor executor = DEFAULT_EXECUTOR;
-    private static final List<Task> TASKS = new ArrayList<>();
+    /* tasks waiting for their serial, by serial; absent when nothing of that serial is queued or running */
+    private static final ConcurrentHashMap<String, SerialQueue> SERIALS = new ConcurrentHashMap<>();
+    /* tasks not yet post-executed, by id; absent when no task of that id is tracked */
+    private static final ConcurrentHashMap<String, IdGroup> IDS = new ConcurrentHashMap<>();
     private static final ThreadLocal<String> CURRENT_SERIAL = new ThreadLocal<>();
+    /* tasks executed but neither started nor cancelled, and tasks started but not done */
+    private static final AtomicInteger QUEUED = new AtomicInteger();
+    private static final AtomicInteger RUNNING = new AtomicInteger();
 
     private BackgroundExecutor() {
     }
 
     /**
      * Execute a runnable after the given delay.
+     * <p>
+     * Delayed runnables wait on a dedicated scheduler thread and are handed to the executor,
+     * at their priority, once the delay has elapsed.
      *
      * @param runnable the task to execute
      * @param delay    the time from now to delay execution, in milliseconds
-     *                 <p>
-     *                 if <code>delay</code> is strictly positive and the current
-     *                 executor does not support scheduling (if
-     *                 Executor has been called with such an
-     *                 executor)
      * @return Future associated to the running task
-     * @throws IllegalArgumentException if the current executor set by Executor
-     *                                  does not support scheduling
      */
     private static Future<?> directExecute(Runnable runnable, long delay) {
         Future<?> future = null;
         if (delay > 0) {
             /* no serial, but a delay: schedule the task */
-            if (!(executor instanceof ScheduledExecutorService)) {
-                throw new IllegalArgumentException("The executor set does not support scheduling");
-            }
-            ScheduledExecutorService scheduledExecutorService = (ScheduledExecutorService) executor;
-            future = scheduledExecutorService.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+            DelayedFuture delayed = new DelayedFuture(runnable);
+            delayed.schedule(delay);
+            future = delayed;
         } else {
             if (executor instanceof ExecutorService) {
                 ExecutorService executorService = (ExecutorService) executor;
@@ -79,6 +109,9 @@ public final class BackgroundExecutor {
      * Execute a task after (at least) its delay <strong>and</strong> after all
      * tasks added with the same non-null <code>serial</code> (if any) have
      * completed execution.
+     * <p>
+     * Only the queue of the task's own serial and the index entry of its own id are locked,
+     * so tasks of unrelated serials and ids do not contend.
      *
      * @param task the task to execute
      * @throws IllegalArgumentException if <code>task.delay</code> is strictly positive and the
@@ -86,51 +119,38 @@ public final class BackgroundExecutor {
      *                                  Executor has been called with such an
      *                                  executor)
      */
-    public static synchronized void execute(Task task) {
-        Future<?> future = null;
-        if (task.serial == null || !hasSerialRunning(task.serial)) {
-            task.executionAsked = true;
-            future = directExecute(task, task.remainingDelay);
+    public static void execute(Task task) {
+        if (task.managed.get()) {
+            /* cancelled before being handed to us */
+            return;
         }
-        if ((task.id != null || task.serial != null) && !task.managed.get()) {
-            /* keep task */
-            task.future = future;
-            TASKS.add(task);
+        /* undone by whichever of run() and cancelAll() manages the task */
+        QUEUED.incrementAndGet();
+        /*
+         * take the serial before indexing: once cancelAll() can see the task, it
+         * is either waiting in its serial queue or owns its serial
+         */
+        boolean submit = task.serial == null || SerialQueue.enqueue(task);
+        if (task.id != null) {
+            IdGroup.add(task);
         }
-    }
-
-    /**
-     * Indicates whether a task with the specified <code>serial</code> has been
-     * submitted to the executor.
-     *
-     * @param serial the serial queue
-     * @return <code>true</code> if such a task has been submitted,
-     * <code>false</code> otherwise
-     */
-    private static boolean hasSerialRunning(String serial) {
-        for (Task task : TASKS) {
-            if (task.executionAsked && serial.equals(task.serial)) {
-                return true;
-            }
+        if (submit) {
+            submit(task);
         }
-        return false;
     }
 
     /**
-     * Retrieve and remove the first task having the specified
-     * <code>serial</code> (if any).
-     *
-     * @param serial the serial queue
-     * @return task if found, <code>null</code> otherwise
+     * Hand a task, whose serial (if any) is now free, to the executor.
      */
-    private static Task take(String serial) {
-        int len = TASKS.size();
-        for (int i = 0; i < len; i++) {
-            if (serial.equals(TASKS.get(i).serial)) {
-                return TASKS.remove(i);
-            }
+    private static void submit(Task task) {
+        task.executionAsked = true;
+        task.submittedAt = Metrics.start();
+        Future<?> future = directExecute(task, task.remainingDelay);
+        task.future = future;
+        if (future != null && task.cancelRequested) {
+            /* cancelAll() ran before the future was published: it could not interrupt */
+            future.cancel(task.interruptRequested);
         }
-        return null;
     }
 
     /**
@@ -141,38 +161,76 @@ public final class BackgroundExecutor {
      *                              interrupted; otherwise, in-progress tasks are allowed to
      *                              complete
      */
-    public static synchronized void cancelAll(String id, boolean mayInterruptIfRunning) {
-        for (int i = TASKS.size() - 1; i >= 0; i--) {
-            Task task = TASKS.get(i);
-            if (id.equals(task.id)) {
-                if (task.future != null) {
-                    task.future.cancel(mayInterruptIfRunning);
-                    if (!task.managed.getAndSet(true)) {
-                        /*
-                         * the task has been submitted to the executor, but its
-                         * execution has not started yet, so that its run()
-                         * method will never call postExecute()
-                         */
-                        task.postExecute();
-                    }
-                } else if (task.executionAsked) {
-                    Log.w(TAG, "A task with id " + task.id + " cannot be cancelled (the executor set does not support it)");
+    public static void cancelAll(String id, boolean mayInterruptIfRunning) {
+        IdGroup group = IDS.get(id);
+        if (group == null) {
+            return;
+        }
+        for (Task task : group.snapshot()) {
+            task.interruptRequested = mayInterruptIfRunning;
+            task.cancelRequested = true;
+            Future<?> future = task.future;
+            if (!task.managed.getAndSet(true)) {
+                QUEUED.decrementAndGet();
+                /*
+                 * run() has not started and never will. If the task is still
+                 * waiting for its serial it can simply be dropped; otherwise it has
+                 * been (or is being) submitted to the executor, and its run() method
+                 * will never call postExecute()
+                 */
+                if (future != null) {
+                    future.cancel(mayInterruptIfRunning);
+                }
+                if (task.serial != null && SerialQueue.remove(task)) {
+                    IdGroup.remove(task);
                 } else {
-                    /* this task has not been submitted to the executor */
-                    TASKS.remove(i);
+                    task.postExecute();
                 }
+            } else if (future != null) {
+                /* running or done */
+                future.cancel(mayInterruptIfRunning);
+            } else if (task.executionAsked && !(executor instanceof ExecutorService)) {
+                Log.w(TAG, "A task with id " + task.id + " cannot be cancelled (the executor set does not support it)");
             }
         }
     }
 
+    /**
+     * @return the number of tasks waiting for their delay, their serial or a thread
+     */
+    public static int getQueuedCount() {
+        return QUEUED.get();
+    }
+
+    /**
+     * @return the number of tasks running on a thread
+     */
+    public static int getRunningCount() {
+        return RUNNING.get();
+    }
+
+    /**
+     * @return <code>true</code> if no task with an id or a serial is queued or running
+     */
+    static boolean isIdle() {
+        return SERIALS.isEmpty() && IDS.isEmpty();
+    }
+
     public static abstract class Task implements Runnable {
 
         private String id;
         private long remainingDelay;
         private long targetTimeMillis; /* since epoch */
         private String serial;
-        private boolean executionAsked;
-        private Future<?> future;
+        private int priority = PRIORITY_VISIBLE;
+        private volatile boolean executionAsked;
+        private volatile long submittedAt;
+        private volatile Future<?> future;
+        /* set by cancelAll(), read by submit() when it publishes the future afterwards */
+        private volatile boolean cancelRequested;
+        private volatile boolean interruptRequested;
+        /* set once postExecute() has run, so that a late IdGroup.add() does not leak the task */
+        private volatile boolean finished;
 
         /*
          * A task can be cancelled after it has been submitted to the executor
@@ -201,17 +259,34 @@ public final class BackgroundExecutor {
             }
         }
 
+        /**
+         * @param priority one of the <code>PRIORITY_*</code> classes; queued tasks run in
+         *                 priority order, with aging so that low priority tasks still run
+         */
+        public Task(String id, long delay, String serial, int priority) {
+            this(id, delay, serial);
+            this.priority = Math.max(PRIORITY_INTERACTIVE, Math.min(PRIORITY_BACKGROUND, priority));
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
         @Override
         public void run() {
             if (managed.getAndSet(true)) {
                 /* cancelled and postExecute() already called */
                 return;
             }
+            QUEUED.decrementAndGet();
+            RUNNING.incrementAndGet();
+            Metrics.record(Metrics.Stage.QUEUE_WAIT, submittedAt);
 
             try {
                 CURRENT_SERIAL.set(serial);
                 execute();
             } finally {
+                RUNNING.decrementAndGet();
                 /* handle next tasks */
                 postExecute();
             }
@@ -225,22 +300,284 @@ public final class BackgroundExecutor {
                 return;
             }
             CURRENT_SERIAL.set(null);
-            synchronized (BackgroundExecutor.class) {
-                /* execution complete */
-                TASKS.remove(this);
-
-                if (serial != null) {
-                    Task next = take(serial);
-                    if (next != null) {
-                        if (next.remainingDelay != 0) {
-                            /* the delay may not have elapsed yet */
-                            next.remainingDelay = Math.max(0L, targetTimeMillis - System.currentTimeMillis());
+            /* execution complete */
+            finished = true;
+            if (id != null) {
+                IdGroup.remove(this);
+            }
+            if (serial != null) {
+                Task next = SerialQueue.next(serial);
+                if (next != null) {
+                    if (next.remainingDelay != 0) {
+                        /* the delay may not have elapsed yet */
+                        next.remainingDelay = Math.max(0L, next.targetTimeMillis - System.currentTimeMillis());
+                    }
+                    /* a task having the same serial was queued, execute it */
+                    submit(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tasks of one serial. <code>active</code> is set while one of them has been handed to the
+     * executor and has not been post-executed yet; the others wait in <code>pending</code>.
+     * <p>
+     * A queue is removed from {@link #SERIALS} as soon as it drains, and marked
+     * <code>retired</code> so that a thread which looked it up just before does not enqueue
+     * into it.
+     */
+    private static final class SerialQueue {
+
+        private final ArrayDeque<Task> pending = new ArrayDeque<>();
+        private boolean active;
+        private boolean retired;
+
+        /**
+         * @return <code>true</code> if the serial was free and the caller must submit the task
+         */
+        static boolean enqueue(Task task) {
+            for (; ; ) {
+                SerialQueue queue = SERIALS.get(task.serial);
+                if (queue == null) {
+                    SerialQueue created = new SerialQueue();
+                    queue = SERIALS.putIfAbsent(task.serial, created);
+                    if (queue == null) {
+                        queue = created;
+                    }
+                }
+                synchronized (queue) {
+                    if (queue.retired) {
+                        continue;
+                    }
+                    if (queue.active) {
+                        queue.pending.add(task);
+                        return false;
+                    }
+                    queue.active = true;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Remove a task that has not been handed to the executor yet.
+         *
+         * @return <code>false</code> if the task is no longer waiting for its serial
+         */
+        static boolean remove(Task task) {
+            SerialQueue queue = SERIALS.get(task.serial);
+            if (queue == null) {
+                return false;
+            }
+            synchronized (queue) {
+                return queue.pending.remove(task);
+            }
+        }
+
+        /**
+         * Called when the active task of <code>serial</code> is done.
+         *
+         * @return the task to submit next, <code>null</code> if the serial is now free
+         */
+        static Task next(String serial) {
+            SerialQueue queue = SERIALS.get(serial);
+            if (queue == null) {
+                return null;
+            }
+            synchronized (queue) {
+                Task next = queue.pending.poll();
+                if (next == null) {
+                    queue.active = false;
+                    queue.retired = true;
+                    SERIALS.remove(serial, queue);
+                }
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Tracked tasks sharing an id, retired and removed from {@link #IDS} like
+     * {@link SerialQueue} once empty.
+     */
+    private static final class IdGroup {
+
+        private final Set<Task> tasks = new HashSet<>();
+        private boolean retired;
+
+        static void add(Task task) {
+            for (; ; ) {
+                IdGroup group = IDS.get(task.id);
+                if (group == null) {
+                    IdGroup created = new IdGroup();
+                    group = IDS.putIfAbsent(task.id, created);
+                    if (group == null) {
+                        group = created;
+                    }
+                }
+                synchronized (group) {
+                    if (!group.retired) {
+                        if (!task.finished) {
+                            group.tasks.add(task);
+                        } else if (group.tasks.isEmpty()) {
+                            /* the task ran to completion before it could be indexed */
+                            group.retired = true;
+                            IDS.remove(task.id, group);
                         }
-                        /* a task having the same serial was queued, execute it */
-                        BackgroundExecutor.execute(next);
+                        return;
                     }
                 }
             }
         }
+
+        static void remove(Task task) {
+            IdGroup group = IDS.get(task.id);
+            if (group == null) {
+                return;
+            }
+            synchronized (group) {
+                if (group.tasks.remove(task) && group.tasks.isEmpty()) {
+                    group.retired = true;
+                    IDS.remove(task.id, group);
+                }
+            }
+        }
+
+        synchronized List<Task> snapshot() {
+            return new ArrayList<>(tasks);
+        }
+    }
+
+    /**
+     * Thread pool that runs queued work by priority class. Each queued runnable is ranked by
+     * its enqueue time plus {@link #AGING_STEP_MILLIS} per priority class below
+     * {@link #PRIORITY_INTERACTIVE}, so a waiting task eventually outranks newer tasks of any
+     * class and nothing starves.
+     */
+    private static final class PriorityExecutor extends ThreadPoolExecutor {
+
+        private final AtomicLong sequence = new AtomicLong();
+
+        PriorityExecutor(int threads) {
+            super(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            int priority = runnable instanceof Task ? ((Task) runnable).priority : PRIORITY_VISIBLE;
+            return new PrioritizedFuture<>(runnable, value, priority, sequence.getAndIncrement());
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new PrioritizedFuture<>(callable, PRIORITY_VISIBLE, sequence.getAndIncrement());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!(command instanceof PrioritizedFuture)) {
+                command = newTaskFor(command, null);
+            }
+            super.execute(command);
+        }
+    }
+
+    private static final class PrioritizedFuture<T> extends FutureTask<T> implements Comparable<PrioritizedFuture<?>> {
+
+        private final long rank;
+        private final long sequence;
+
+        PrioritizedFuture(Runnable runnable, T value, int priority, long sequence) {
+            super(runnable, value);
+            this.rank = rank(priority);
+            this.sequence = sequence;
+        }
+
+        PrioritizedFuture(Callable<T> callable, int priority, long sequence) {
+            super(callable);
+            this.rank = rank(priority);
+            this.sequence = sequence;
+        }
+
+        private static long rank(int priority) {
+            return System.currentTimeMillis() + priority * AGING_STEP_MILLIS;
+        }
+
+        @Override
+        public int compareTo(PrioritizedFuture<?> other) {
+            if (rank != other.rank) {
+                return rank < other.rank ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Future of a task waiting on the scheduler, then on the executor.
+     */
+    private static final class DelayedFuture implements Future<Object> {
+
+        private final Runnable runnable;
+        private ScheduledFuture<?> scheduled;
+        private Future<?> submitted;
+        private boolean cancelled;
+
+        DelayedFuture(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        synchronized void schedule(long delay) {
+            scheduled = SCHEDULER.schedule(this::submit, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void submit() {
+            if (!cancelled) {
+                submitted = directExecute(runnable, 0);
+            }
+        }
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            boolean result = scheduled.cancel(false);
+            if (submitted != null) {
+                result = submitted.cancel(mayInterruptIfRunning);
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return cancelled || (submitted != null && submitted.isDone());
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            scheduled.get();
+            Future<?> future;
+            synchronized (this) {
+                future = submitted;
+            }
+            return future != null ? future.get() : null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            scheduled.get(timeout, unit);
+            Future<?> future;
+            synchronized (this) {
+                future = submitted;
+            }
+            return future != null ? future.get(timeout, unit) : null;
+        }
     }
 }
@@ -0,0 +1,68 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation signal shared between whoever starts a job and the code doing
+ * its work.
+ * <p>
+ * Workers poll {@link #throwIfCancelled()} between units of work (frames, segments);
+ * resources that cannot notice a poll, such as a blocking native call or a queued task, are
+ * released through callbacks registered with {@link #onCancel(Runnable)}.
+ */
+public class CancellationToken {
+
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private volatile boolean cancelled;
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException if {@link #cancel()} has been called
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Register a callback run once on cancellation, on the thread calling {@link #cancel()}.
+     * If the token is already cancelled the callback runs immediately.
+     */
+    public void onCancel(Runnable callback) {
+        synchronized (callbacks) {
+            if (!cancelled) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Cancel the job and run the registered callbacks.
+     *
+     * @return <code>true</code> if this call cancelled the token, <code>false</code> if it was
+     * already cancelled
+     */
+    public boolean cancel() {
+        List<Runnable> toRun;
+        synchronized (callbacks) {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (Runnable callback : toRun) {
+            callback.run();
+        }
+        return true;
+    }
+}
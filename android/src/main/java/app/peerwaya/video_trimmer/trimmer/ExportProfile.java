@@ -0,0 +1,99 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import java.util.Map;
+
+/**
+ * Limits a trim is re-encoded to: frame size, video bit rate, frame rate and audio bit rate.
+ * A limit of 0 leaves that property as it is in the source.
+ * <p>
+ * The size limits bound the long and the short edge of the picture, whatever its
+ * orientation: a 1280 x 720 profile brings both landscape 4K and portrait 4K video down to
+ * 720p. The picture is scaled, never cropped or upscaled, and keeps its rotation tag.
+ */
+public class ExportProfile {
+
+    private final int maxWidth;
+    private final int maxHeight;
+    private final int videoBitRate;
+    private final int maxFrameRate;
+    private final int audioBitRate;
+
+    public ExportProfile(int maxWidth, int maxHeight, int videoBitRate, int maxFrameRate, int audioBitRate) {
+        if (maxWidth < 0 || maxHeight < 0 || videoBitRate < 0 || maxFrameRate < 0 || audioBitRate < 0) {
+            throw new IllegalArgumentException("Export profile limits cannot be negative");
+        }
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.videoBitRate = videoBitRate;
+        this.maxFrameRate = maxFrameRate;
+        this.audioBitRate = audioBitRate;
+    }
+
+    /**
+     * Read a profile sent over the method channel as
+     * <code>{maxWidth, maxHeight, videoBitRate, maxFrameRate, audioBitRate}</code>, every
+     * entry optional.
+     *
+     * @throws IllegalArgumentException if an entry is not a number or is negative
+     */
+    public static ExportProfile fromMap(Map<?, ?> map) {
+        return new ExportProfile(getInt(map, "maxWidth"), getInt(map, "maxHeight"), getInt(map, "videoBitRate"),
+                getInt(map, "maxFrameRate"), getInt(map, "audioBitRate"));
+    }
+
+    private static int getInt(Map<?, ?> map, String key) {
+        Object value = map.get(key);
+        if (value == null) {
+            return 0;
+        }
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException(key + " must be a number");
+        }
+        return ((Number) value).intValue();
+    }
+
+    public int getVideoBitRate() {
+        return videoBitRate;
+    }
+
+    public int getMaxFrameRate() {
+        return maxFrameRate;
+    }
+
+    public int getAudioBitRate() {
+        return audioBitRate;
+    }
+
+    /**
+     * Coded size to encode a <code>width</code> x <code>height</code> coded picture at: scaled
+     * down, aspect ratio kept, to fit the limits, and rounded to even dimensions as encoders
+     * require.
+     *
+     * @return <code>{width, height}</code>
+     */
+    public int[] targetSize(int width, int height) {
+        int longLimit = Math.max(maxWidth, maxHeight);
+        int shortLimit = maxWidth > 0 && maxHeight > 0 ? Math.min(maxWidth, maxHeight) : 0;
+        int longEdge = Math.max(width, height);
+        int shortEdge = Math.min(width, height);
+        double scale = 1;
+        if (longLimit > 0) {
+            scale = Math.min(scale, (double) longLimit / longEdge);
+        }
+        if (shortLimit > 0) {
+            scale = Math.min(scale, (double) shortLimit / shortEdge);
+        }
+        return new int[]{even(width * scale), even(height * scale)};
+    }
+
+    private static int even(double size) {
+        return Math.max(2, (int) Math.round(size / 2) * 2);
+    }
+
+    /**
+     * Identifies the output of this profile, for the deduplication of trims.
+     */
+    String cacheKey() {
+        return maxWidth + "x" + maxHeight + '@' + maxFrameRate + '/' + videoBitRate + '/' + audioBitRate;
+    }
+}
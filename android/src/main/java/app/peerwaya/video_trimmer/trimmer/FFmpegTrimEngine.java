@@ -0,0 +1,36 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.util.Log;
+
+import com.arthenica.mobileffmpeg.FFmpeg;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Stream-copy trim through mobile-ffmpeg. Handles any container FFmpeg can read.
+ */
+class FFmpegTrimEngine implements TrimEngine {
+
+    @Override
+    public String getName() {
+        return TrimEngines.FFMPEG;
+    }
+
+    @Override
+    public boolean usesFFmpeg() {
+        return true;
+    }
+
+    @Override
+    public int trim(File src, File dst, long startMs, long endMs, String streams, TrimJob job) {
+        String[] arguments = TrimVideoUtils.copyArguments(src, dst, startMs, endMs, streams);
+        Log.d(FlutterFFmpegExecuteAsyncArgumentsTask.LIBRARY_NAME, String.format("Running FFmpeg with arguments: %s.", Arrays.toString(arguments)));
+        long start = Metrics.start();
+        try {
+            return FFmpeg.execute(arguments);
+        } finally {
+            Metrics.record(Metrics.Stage.FFMPEG, start);
+        }
+    }
+}
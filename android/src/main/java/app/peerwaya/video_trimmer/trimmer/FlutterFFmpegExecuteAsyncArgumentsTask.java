@@ -41,9 +41,18 @@ public class FlutterFFmpegExecuteAsyncArgumentsTask extends AsyncTask<String, In
     private Handler handler;
     private final MethodChannel.Result result;
     private final String[] arguments;
+    private final TrimJob job;
 
     FlutterFFmpegExecuteAsyncArgumentsTask(final String[] arguments, final MethodChannel.Result result) {
+        this(arguments, null, result);
+    }
+
+    /**
+     * @param job receives the statistics of this run, may be <code>null</code>
+     */
+    FlutterFFmpegExecuteAsyncArgumentsTask(final String[] arguments, final TrimJob job, final MethodChannel.Result result) {
         this.arguments = arguments;
+        this.job = job;
         this.result = result;
         handler = new Handler(Looper.getMainLooper());
     }
@@ -51,18 +60,46 @@ public class FlutterFFmpegExecuteAsyncArgumentsTask extends AsyncTask<String, In
     @Override
     protected Integer doInBackground(final String... dummyString) {
 
-        Log.d(LIBRARY_NAME, String.format("Running FFmpeg with arguments: %s.", Arrays.toString(arguments)));
+        if (job != null && !job.onStart(true)) {
+            Log.d(LIBRARY_NAME, "FFmpeg run cancelled before it started.");
+            job.onFinish(FFmpeg.RETURN_CODE_CANCEL);
+            return FFmpeg.RETURN_CODE_CANCEL;
+        }
 
-        int rc = FFmpeg.execute(arguments);
+        int rc = run();
 
         Log.d(LIBRARY_NAME, String.format("FFmpeg exited with rc: %d", rc));
 
+        if (job != null) {
+            job.onFinish(rc);
+        }
+
         return rc;
     }
 
+    /**
+     * Run the work of this task on the background thread.
+     *
+     * @return an FFmpeg return code
+     */
+    protected int run() {
+        Log.d(LIBRARY_NAME, String.format("Running FFmpeg with arguments: %s.", Arrays.toString(arguments)));
+
+        long start = Metrics.start();
+        try {
+            return FFmpeg.execute(arguments);
+        } finally {
+            Metrics.record(Metrics.Stage.FFMPEG, start);
+        }
+    }
+
     @Override
     protected void onPostExecute(final Integer rc) {
-        handler.post(() -> result.success(rc));
+        if (job != null && job.isCancelled()) {
+            Metrics.post(handler, () -> result.error("cancelled", "the trim was cancelled", rc));
+            return;
+        }
+        Metrics.post(handler, () -> result.success(rc));
     }
 
 }
\ No newline at end of file
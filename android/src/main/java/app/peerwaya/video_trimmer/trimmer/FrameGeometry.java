@@ -0,0 +1,72 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+/**
+ * Where a decoded frame is drawn in an encoder frame by {@link FrameScaler}: turned by a
+ * number of quarter turns, scaled to fit with its aspect ratio kept, and centered, the rest
+ * of the frame left black.
+ * <p>
+ * Coordinates follow GL: the viewport origin and the texture origin are at the bottom left.
+ */
+final class FrameGeometry {
+
+    private FrameGeometry() {
+    }
+
+    /**
+     * Clockwise quarter turns of a rotation in degrees, rounded to the nearest quarter turn.
+     */
+    static int quarterTurns(int degrees) {
+        return ((Math.round(degrees / 90f) % 4) + 4) % 4;
+    }
+
+    /**
+     * The rect a <code>srcWidth</code> x <code>srcHeight</code> frame turned by
+     * <code>quarterTurns</code> is drawn into, within a <code>dstWidth</code> x
+     * <code>dstHeight</code> frame.
+     *
+     * @return <code>{x, y, width, height}</code>
+     */
+    static int[] viewport(int srcWidth, int srcHeight, int quarterTurns, int dstWidth, int dstHeight) {
+        boolean turned = quarterTurns % 2 != 0;
+        double width = turned ? srcHeight : srcWidth;
+        double height = turned ? srcWidth : srcHeight;
+        double scale = Math.min(dstWidth / width, dstHeight / height);
+        int w = (int) Math.max(1, Math.min(dstWidth, Math.round(width * scale)));
+        int h = (int) Math.max(1, Math.min(dstHeight, Math.round(height * scale)));
+        return new int[]{(dstWidth - w) / 2, (dstHeight - h) / 2, w, h};
+    }
+
+    /**
+     * Texture coordinates of the corners of the viewport, bottom left, bottom right, top left
+     * and top right, for a frame turned clockwise by <code>quarterTurns</code>.
+     *
+     * @return <code>{s, t}</code> of each corner in turn
+     */
+    static float[] textureCoordinates(int quarterTurns) {
+        float[] corners = {0, 0, 1, 0, 0, 1, 1, 1};
+        float[] coordinates = new float[8];
+        for (int i = 0; i < 8; i += 2) {
+            float u = corners[i];
+            float v = corners[i + 1];
+            switch (quarterTurns) {
+                case 1:
+                    coordinates[i] = 1 - v;
+                    coordinates[i + 1] = u;
+                    break;
+                case 2:
+                    coordinates[i] = 1 - u;
+                    coordinates[i + 1] = 1 - v;
+                    break;
+                case 3:
+                    coordinates[i] = v;
+                    coordinates[i + 1] = 1 - u;
+                    break;
+                default:
+                    coordinates[i] = u;
+                    coordinates[i + 1] = v;
+                    break;
+            }
+        }
+        return coordinates;
+    }
+}
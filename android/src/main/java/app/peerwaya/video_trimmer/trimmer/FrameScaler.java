@@ -0,0 +1,307 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * GL stage between a decoder and an encoder: the decoder renders into
+ * {@link #getDecoderSurface()}, a {@link SurfaceTexture}, and each frame is drawn from there
+ * onto the encoder's input surface at the encoder's size, as laid out by
+ * {@link FrameGeometry}.
+ * <p>
+ * An encoder's input surface does not scale what is queued to it, so frames of another size
+ * must go through such a stage. Everything but the frame available callback happens on the
+ * thread that created the scaler, which holds the EGL context.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+final class FrameScaler implements SurfaceTexture.OnFrameAvailableListener {
+
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private static final long FRAME_TIMEOUT_MS = 2500;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uSTMatrix;\n"
+                    + "attribute vec4 aPosition;\n"
+                    + "attribute vec4 aTextureCoord;\n"
+                    + "varying vec2 vTextureCoord;\n"
+                    + "void main() {\n"
+                    + "    gl_Position = aPosition;\n"
+                    + "    vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n"
+                    + "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+                    + "precision mediump float;\n"
+                    + "varying vec2 vTextureCoord;\n"
+                    + "uniform samplerExternalOES sTexture;\n"
+                    + "void main() {\n"
+                    + "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
+                    + "}\n";
+
+    /* bottom left, bottom right, top left, top right, as in FrameGeometry */
+    private static final float[] POSITIONS = {-1, -1, 1, -1, -1, 1, 1, 1};
+
+    private final int width;
+    private final int height;
+    private final float[] stMatrix = new float[16];
+    private final FloatBuffer positions = floats(POSITIONS);
+    private FloatBuffer textureCoordinates = floats(FrameGeometry.textureCoordinates(0));
+    private int[] viewport;
+    private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+    private EGLContext context = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface surface = EGL14.EGL_NO_SURFACE;
+    private int program;
+    private int texture;
+    private int stMatrixLocation;
+    private int positionLocation;
+    private int textureCoordLocation;
+    private SurfaceTexture surfaceTexture;
+    private Surface decoderSurface;
+    private boolean frameAvailable;
+
+    /**
+     * Make the EGL context current on <code>encoderSurface</code>, a
+     * <code>width</code> x <code>height</code> encoder input surface.
+     *
+     * @throws IOException if EGL or GL cannot be set up; the scaler is released then
+     */
+    FrameScaler(Surface encoderSurface, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.viewport = new int[]{0, 0, width, height};
+        try {
+            setUpEgl(encoderSurface);
+            setUpGl();
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private void setUpEgl(Surface encoderSurface) throws IOException {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (display == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(display, version, 0, version, 1)) {
+            throw new IOException("Could not initialize EGL");
+        }
+        int[] attributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        if (!EGL14.eglChooseConfig(display, attributes, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+            throw new IOException("No recordable EGL config");
+        }
+        context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        checkEgl("eglCreateContext");
+        surface = EGL14.eglCreateWindowSurface(display, configs[0], encoderSurface, new int[]{EGL14.EGL_NONE}, 0);
+        checkEgl("eglCreateWindowSurface");
+        if (!EGL14.eglMakeCurrent(display, surface, surface, context)) {
+            throw new IOException("eglMakeCurrent failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+    }
+
+    private void setUpGl() throws IOException {
+        program = createProgram();
+        positionLocation = GLES20.glGetAttribLocation(program, "aPosition");
+        textureCoordLocation = GLES20.glGetAttribLocation(program, "aTextureCoord");
+        stMatrixLocation = GLES20.glGetUniformLocation(program, "uSTMatrix");
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        texture = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        checkGl("texture setup");
+        /* without a looper on this thread, frame callbacks arrive on the main thread */
+        surfaceTexture = new SurfaceTexture(texture);
+        surfaceTexture.setOnFrameAvailableListener(this);
+        decoderSurface = new Surface(surfaceTexture);
+    }
+
+    /**
+     * The surface to configure the decoder with.
+     */
+    Surface getDecoderSurface() {
+        return decoderSurface;
+    }
+
+    /**
+     * Lay out the frames of a <code>width</code> x <code>height</code> source turned
+     * clockwise by <code>rotationDegrees</code>.
+     */
+    void setSource(int width, int height, int rotationDegrees) {
+        int quarterTurns = FrameGeometry.quarterTurns(rotationDegrees);
+        viewport = FrameGeometry.viewport(width, height, quarterTurns, this.width, this.height);
+        textureCoordinates = floats(FrameGeometry.textureCoordinates(quarterTurns));
+    }
+
+    /**
+     * Wait for the frame the decoder just rendered and latch it into the texture.
+     *
+     * @throws IOException if no frame arrives in time
+     */
+    void awaitFrame() throws IOException {
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + FRAME_TIMEOUT_MS;
+            while (!frameAvailable) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("The decoder did not render a frame");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a frame", e);
+                }
+            }
+            frameAvailable = false;
+        }
+        surfaceTexture.updateTexImage();
+    }
+
+    /**
+     * Draw the latched frame onto the encoder's surface and queue it at
+     * <code>presentationTimeUs</code>.
+     */
+    void drawFrame(long presentationTimeUs) throws IOException {
+        surfaceTexture.getTransformMatrix(stMatrix);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClearColor(0f, 0f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture);
+        GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, 8, positions);
+        GLES20.glEnableVertexAttribArray(positionLocation);
+        GLES20.glVertexAttribPointer(textureCoordLocation, 2, GLES20.GL_FLOAT, false, 8, textureCoordinates);
+        GLES20.glEnableVertexAttribArray(textureCoordLocation);
+        GLES20.glUniformMatrix4fv(stMatrixLocation, 1, false, stMatrix, 0);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        checkGl("glDrawArrays");
+        EGLExt.eglPresentationTimeANDROID(display, surface, presentationTimeUs * 1000);
+        if (!EGL14.eglSwapBuffers(display, surface)) {
+            throw new IOException("eglSwapBuffers failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        synchronized (this) {
+            frameAvailable = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Release the GL and EGL objects; the encoder's surface is left to its owner.
+     */
+    void release() {
+        if (decoderSurface != null) {
+            decoderSurface.release();
+            decoderSurface = null;
+        }
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+            surfaceTexture = null;
+        }
+        if (display != EGL14.EGL_NO_DISPLAY) {
+            if (program != 0) {
+                GLES20.glDeleteProgram(program);
+            }
+            if (texture != 0) {
+                GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+            }
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (surface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(display, surface);
+            }
+            if (context != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(display, context);
+            }
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(display);
+        }
+        display = EGL14.EGL_NO_DISPLAY;
+        context = EGL14.EGL_NO_CONTEXT;
+        surface = EGL14.EGL_NO_SURFACE;
+    }
+
+    private static int createProgram() throws IOException {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IOException("Could not link the scaling program: " + log);
+        }
+        return program;
+    }
+
+    private static int loadShader(int type, String source) throws IOException {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IOException("Could not compile a scaling shader: " + log);
+        }
+        return shader;
+    }
+
+    private static void checkEgl(String operation) throws IOException {
+        int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            throw new IOException(operation + " failed: 0x" + Integer.toHexString(error));
+        }
+    }
+
+    private static void checkGl(String operation) throws IOException {
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            throw new IOException(operation + " failed: 0x" + Integer.toHexString(error));
+        }
+    }
+
+    private static FloatBuffer floats(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+}
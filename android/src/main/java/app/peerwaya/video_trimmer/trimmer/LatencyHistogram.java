@@ -0,0 +1,117 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in fixed power-of-two buckets: bucket <code>i</code> counts the
+ * durations of <code>[2^i, 2^(i+1))</code> microseconds, bucket 0 those under 2 us and the
+ * last one everything longer.
+ * <p>
+ * Recording is a few atomic increments and allocates nothing, so it can sit on the hot paths
+ * of extraction. Safe to use from any thread; a snapshot taken while durations are recorded
+ * may be off by those durations.
+ */
+public class LatencyHistogram {
+
+    static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalUs = new AtomicLong();
+    private final AtomicLong maxUs = new AtomicLong();
+
+    static int bucket(long us) {
+        if (us < 2) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(us));
+    }
+
+    /**
+     * Count a duration; negative ones count as 0.
+     */
+    public void record(long us) {
+        us = Math.max(0, us);
+        buckets.incrementAndGet(bucket(us));
+        count.incrementAndGet();
+        totalUs.addAndGet(us);
+        long max;
+        do {
+            max = maxUs.get();
+        } while (us > max && !maxUs.compareAndSet(max, us));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxUs() {
+        return maxUs.get();
+    }
+
+    /**
+     * Estimate of the duration under which <code>fraction</code> of the durations fall,
+     * interpolated within its bucket and never above the longest duration.
+     *
+     * @param fraction 0-1, e.g. 0.99 for the 99th percentile
+     * @return the duration in microseconds, 0 if nothing was recorded
+     */
+    public long percentileUs(double fraction) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.max(0, Math.min(1, fraction)) * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (seen + counts[i] >= rank) {
+                long low = i == 0 ? 0 : 1L << i;
+                long high = 1L << (i + 1);
+                long estimate = low + (high - low) * (rank - seen) / counts[i];
+                return Math.min(estimate, maxUs.get());
+            }
+            seen += counts[i];
+        }
+        return maxUs.get();
+    }
+
+    /**
+     * The histogram as sent over the channel: count, total, mean, max, p50, p90, p99 and the
+     * bucket counts.
+     */
+    public Map<String, Object> toMap() {
+        long count = this.count.get();
+        long totalUs = this.totalUs.get();
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        Map<String, Object> map = new HashMap<>();
+        map.put("count", count);
+        map.put("totalUs", totalUs);
+        map.put("meanUs", count > 0 ? totalUs / count : 0L);
+        map.put("maxUs", maxUs.get());
+        map.put("p50Us", percentileUs(0.5));
+        map.put("p90Us", percentileUs(0.9));
+        map.put("p99Us", percentileUs(0.99));
+        map.put("buckets", counts);
+        return map;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalUs.set(0);
+        maxUs.set(0);
+    }
+}
@@ -0,0 +1,210 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Adds clips to the shared media library, a batch at a time.
+ * <p>
+ * From API 29 the clips are copied into scoped storage, which needs no permission: one batch
+ * inserts a pending row for every clip, each clip is copied into its row's file with
+ * {@link FileChannel#transferTo}, and one more batch publishes all the rows at once. If any
+ * clip fails, the rows of the batch are deleted and nothing shows up in the library.
+ * <p>
+ * Before API 29 the rows point at the clips where they are, so nothing is copied; the caller
+ * must hold <code>WRITE_EXTERNAL_STORAGE</code>, see {@link #needsPermission()}.
+ */
+public final class MediaLibrary {
+
+    private static final String TAG = MediaLibrary.class.getSimpleName();
+
+    private MediaLibrary() {
+    }
+
+    /**
+     * @return <code>true</code> if saving needs <code>WRITE_EXTERNAL_STORAGE</code>
+     */
+    public static boolean needsPermission() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.Q;
+    }
+
+    /**
+     * Add <code>files</code> to the library; blocks, so call it off the main thread.
+     *
+     * @return the content uri of each file, in order
+     * @throws IOException if a file is missing or could not be saved; none of the files are
+     *                     in the library then
+     */
+    public static List<Uri> save(ContentResolver resolver, List<File> files) throws IOException {
+        for (File file : files) {
+            if (!file.isFile()) {
+                throw new FileNotFoundException(file + " does not exist");
+            }
+        }
+        if (files.isEmpty()) {
+            return new ArrayList<>();
+        }
+        try {
+            return needsPermission() ? insertLegacy(resolver, files) : insertScoped(resolver, files);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("Could not update the media library", e);
+        }
+    }
+
+    private static List<Uri> insertLegacy(ContentResolver resolver, List<File> files)
+            throws RemoteException, OperationApplicationException {
+        long now = System.currentTimeMillis();
+        ArrayList<ContentProviderOperation> inserts = new ArrayList<>(files.size());
+        for (File file : files) {
+            String mimeType = mimeType(file.getName());
+            ContentValues values = new ContentValues(5);
+            values.put(MediaStore.MediaColumns.TITLE, file.getName());
+            values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+            values.put(MediaStore.MediaColumns.DATA, file.getAbsolutePath());
+            values.put(MediaStore.MediaColumns.DATE_ADDED, now / 1000);
+            values.put(MediaStore.Video.Media.DATE_TAKEN, now);
+            inserts.add(ContentProviderOperation.newInsert(collection(mimeType, null)).withValues(values).build());
+        }
+        return uris(resolver.applyBatch(MediaStore.AUTHORITY, inserts));
+    }
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    private static List<Uri> insertScoped(ContentResolver resolver, List<File> files)
+            throws IOException, RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> inserts = new ArrayList<>(files.size());
+        for (File file : files) {
+            String mimeType = mimeType(file.getName());
+            ContentValues values = new ContentValues(4);
+            values.put(MediaStore.MediaColumns.DISPLAY_NAME, file.getName());
+            values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+            values.put(MediaStore.MediaColumns.RELATIVE_PATH, isAudio(mimeType)
+                    ? Environment.DIRECTORY_MUSIC : Environment.DIRECTORY_MOVIES);
+            values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+            inserts.add(ContentProviderOperation.newInsert(collection(mimeType, MediaStore.VOLUME_EXTERNAL_PRIMARY))
+                    .withValues(values).build());
+        }
+        List<Uri> uris = uris(resolver.applyBatch(MediaStore.AUTHORITY, inserts));
+        boolean published = false;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                copy(resolver, files.get(i), uris.get(i));
+            }
+            ArrayList<ContentProviderOperation> updates = new ArrayList<>(uris.size());
+            for (Uri uri : uris) {
+                updates.add(ContentProviderOperation.newUpdate(uri)
+                        .withValue(MediaStore.MediaColumns.IS_PENDING, 0).build());
+            }
+            resolver.applyBatch(MediaStore.AUTHORITY, updates);
+            published = true;
+            return uris;
+        } finally {
+            if (!published) {
+                delete(resolver, uris);
+            }
+        }
+    }
+
+    private static void copy(ContentResolver resolver, File file, Uri uri) throws IOException {
+        ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "w");
+        if (descriptor == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        try (ParcelFileDescriptor ignored = descriptor;
+             FileInputStream in = new FileInputStream(file);
+             FileOutputStream out = new FileOutputStream(descriptor.getFileDescriptor())) {
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("Copying " + file + " stopped at " + position + " of " + size + " bytes");
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static void delete(ContentResolver resolver, List<Uri> uris) {
+        ArrayList<ContentProviderOperation> deletes = new ArrayList<>(uris.size());
+        for (Uri uri : uris) {
+            deletes.add(ContentProviderOperation.newDelete(uri).build());
+        }
+        try {
+            resolver.applyBatch(MediaStore.AUTHORITY, deletes);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.w(TAG, "Could not delete the pending rows " + uris, e);
+        }
+    }
+
+    private static List<Uri> uris(ContentProviderResult[] results) throws OperationApplicationException {
+        List<Uri> uris = new ArrayList<>(results.length);
+        for (ContentProviderResult result : results) {
+            if (result.uri == null) {
+                throw new OperationApplicationException("The media library refused a row");
+            }
+            uris.add(result.uri);
+        }
+        return uris;
+    }
+
+    private static Uri collection(String mimeType, String volume) {
+        if (isAudio(mimeType)) {
+            return volume != null ? MediaStore.Audio.Media.getContentUri(volume) : MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        }
+        return volume != null ? MediaStore.Video.Media.getContentUri(volume) : MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+    }
+
+    /**
+     * The mime type of a clip, from the extension of its <code>name</code>; video/mp4 if the
+     * extension is not one the trimmer writes.
+     */
+    static String mimeType(String name) {
+        int dot = name.lastIndexOf('.');
+        String extension = dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+        switch (extension) {
+            case "m4a":
+                return "audio/mp4";
+            case "aac":
+                return "audio/aac";
+            case "mp3":
+                return "audio/mpeg";
+            case "mov":
+                return "video/quicktime";
+            case "3gp":
+                return "video/3gpp";
+            case "webm":
+                return "video/webm";
+            case "mkv":
+                return "video/x-matroska";
+            default:
+                return "video/mp4";
+        }
+    }
+
+    static boolean isAudio(String mimeType) {
+        return mimeType.startsWith("audio/");
+    }
+}
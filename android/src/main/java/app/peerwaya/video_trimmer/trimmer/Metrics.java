@@ -0,0 +1,115 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.os.Handler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide timings of the stages thumbnails and trims go through, one
+ * {@link LatencyHistogram} per {@link Stage}.
+ * <p>
+ * A stage is timed with {@link #start()} before it and {@link #record} after it; neither
+ * allocates. The histograms are read over the method channel with <code>getMetrics</code>,
+ * together with the depth of the queues, and cleared with <code>resetMetrics</code>.
+ */
+public final class Metrics {
+
+    public enum Stage {
+        /** Opening a source for thumbnails. */
+        SET_DATA_SOURCE("setDataSource"),
+        /** Decoding the frame of a thumbnail. */
+        GET_FRAME("getFrameAtTime"),
+        /** Scaling and cropping a decoded frame to the tile size. */
+        SCALE("scale"),
+        /** Encoding a tile or an atlas. */
+        ENCODE("encode"),
+        /** From posting a result or event to the main thread until it runs there. */
+        MAIN_THREAD_HOP("mainThreadHop"),
+        /** One FFmpeg run. */
+        FFMPEG("ffmpeg"),
+        /** From handing a task to the executor until a worker thread starts it. */
+        QUEUE_WAIT("queueWait"),
+        /** A trim, from the start of its work until it finishes. */
+        TRIM("trim");
+
+        private final String stageName;
+
+        Stage(String stageName) {
+            this.stageName = stageName;
+        }
+
+        public String getStageName() {
+            return stageName;
+        }
+    }
+
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[Stage.values().length];
+
+    static {
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            HISTOGRAMS[i] = new LatencyHistogram();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the start time of a stage, to pass to {@link #record}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a stage that started at <code>startNanos</code>, as returned by {@link #start()},
+     * and ends now.
+     */
+    public static void record(Stage stage, long startNanos) {
+        HISTOGRAMS[stage.ordinal()].record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public static LatencyHistogram get(Stage stage) {
+        return HISTOGRAMS[stage.ordinal()];
+    }
+
+    /**
+     * Post <code>runnable</code> to <code>handler</code>, recording the wait as
+     * {@link Stage#MAIN_THREAD_HOP}.
+     */
+    public static void post(Handler handler, Runnable runnable) {
+        long posted = start();
+        handler.post(() -> {
+            record(Stage.MAIN_THREAD_HOP, posted);
+            runnable.run();
+        });
+    }
+
+    /**
+     * The stage histograms by stage name and the task counts of {@link BackgroundExecutor}, as
+     * sent over the channel.
+     */
+    public static Map<String, Object> toMap() {
+        Map<String, Object> stages = new HashMap<>();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.getStageName(), get(stage).toMap());
+        }
+        Map<String, Object> executor = new HashMap<>();
+        executor.put("queued", BackgroundExecutor.getQueuedCount());
+        executor.put("running", BackgroundExecutor.getRunningCount());
+        Map<String, Object> map = new HashMap<>();
+        map.put("stages", stages);
+        map.put("executor", executor);
+        return map;
+    }
+
+    /**
+     * Clear the histograms; the task counts are live and stay.
+     */
+    public static void reset() {
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+import com.arthenica.mobileffmpeg.FFmpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Stream-copy trim with the platform's {@link MediaExtractor} and {@link MediaMuxer}: samples
+ * are read straight into a reusable buffer and written out, without FFmpeg's startup cost or
+ * its one-run-at-a-time limit.
+ * <p>
+ * Like the FFmpeg copy, the cut starts at the sync frame at or before <code>startMs</code>.
+ * The output is MP4, so only codecs MP4 can hold are supported; tracks of other kinds
+ * (subtitles, metadata) are dropped.
+ * <p>
+ * A video-only trim copies the video track alone. An audio-only trim copies the first audio
+ * track alone, starting at the audio frame at or before <code>startMs</code>; the output is
+ * then MP4 audio (<code>.m4a</code>).
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class MuxerTrimEngine implements TrimEngine {
+
+    private static final String TAG = MuxerTrimEngine.class.getSimpleName();
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final Set<String> VIDEO_MIMES = new HashSet<>(Arrays.asList(
+            MediaFormat.MIMETYPE_VIDEO_AVC, "video/mp4v-es", "video/3gpp"));
+    private static final Set<String> AUDIO_MIMES = new HashSet<>(Arrays.asList(
+            "audio/mp4a-latm", "audio/3gpp", "audio/amr-wb"));
+
+    /* sample buffer of each worker thread, reused across trims */
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<>();
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * @return <code>true</code> if this engine can trim <code>src</code>: the platform
+     * supports it and the video track uses a codec MP4 can hold
+     */
+    static boolean canRemux(File src) {
+        return canRemux(src, TrimStreams.ALL);
+    }
+
+    /**
+     * Like {@link #canRemux(File)}, for a trim keeping <code>streams</code>: an audio-only
+     * trim needs an audio track MP4 can hold instead. A trim keeping every stream also needs
+     * every other track to be one MP4 can hold, so that none is dropped.
+     */
+    static boolean canRemux(File src, String streams) {
+        if (!isSupported()) {
+            return false;
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(src.getAbsolutePath());
+            int track = TrimStreams.hasVideo(streams) ? VideoReencoder.findVideoTrack(extractor) : findAudioTrack(extractor);
+            if (track < 0 || !isMuxable(extractor.getTrackFormat(track).getString(MediaFormat.KEY_MIME))) {
+                return false;
+            }
+            if (TrimStreams.ALL.equals(streams)) {
+                for (int i = 0; i < extractor.getTrackCount(); i++) {
+                    if (!isMuxable(extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Like {@link #canRemux(File)}, from a probe of the source.
+     */
+    static boolean canRemux(VideoProbe probe) {
+        return canRemux(probe, TrimStreams.ALL);
+    }
+
+    static boolean canRemux(VideoProbe probe, String streams) {
+        if (TrimStreams.hasVideo(streams)) {
+            if (!isSupported() || !isMuxable(probe.getVideoMime())) {
+                return false;
+            }
+            if (TrimStreams.ALL.equals(streams)) {
+                for (VideoProbe.Track track : probe.getTracks()) {
+                    if (!isMuxable(track.mime)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        VideoProbe.Track audio = probe.getAudioTrack();
+        return isSupported() && audio != null && isMuxable(audio.mime);
+    }
+
+    /**
+     * @return <code>true</code> if <code>dst</code> is named as an MP4 file, the only
+     * container this engine writes
+     */
+    static boolean canWrite(File dst) {
+        String name = dst.getName().toLowerCase(Locale.US);
+        return name.endsWith(".mp4") || name.endsWith(".m4v") || name.endsWith(".m4a");
+    }
+
+    private static int findAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isMuxable(String mime) {
+        if (mime == null) {
+            return false;
+        }
+        if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime)) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+        }
+        return VIDEO_MIMES.contains(mime) || AUDIO_MIMES.contains(mime);
+    }
+
+    @Override
+    public String getName() {
+        return TrimEngines.MUXER;
+    }
+
+    @Override
+    public boolean usesFFmpeg() {
+        return false;
+    }
+
+    @Override
+    public int trim(File src, File dst, long startMs, long endMs, String streams, TrimJob job) throws IOException {
+        long startUs = startMs * 1000;
+        long endUs = endMs * 1000;
+        MediaExtractor extractor = new MediaExtractor();
+        MediaMuxer muxer = null;
+        boolean muxerStarted = false;
+        try {
+            extractor.setDataSource(src.getAbsolutePath());
+            boolean video = TrimStreams.hasVideo(streams);
+            /* the track the cut is aligned on */
+            int mainTrack = video ? VideoReencoder.findVideoTrack(extractor) : findAudioTrack(extractor);
+            if (mainTrack < 0) {
+                Log.w(TAG, "No " + (video ? "video" : "audio") + " track in " + src);
+                return 1;
+            }
+            muxer = new MediaMuxer(dst.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int trackCount = extractor.getTrackCount();
+            int[] muxerTracks = new int[trackCount];
+            boolean[] ended = new boolean[trackCount];
+            int selected = 0;
+            int bufferSize = DEFAULT_BUFFER_SIZE;
+            for (int i = 0; i < trackCount; i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                muxerTracks[i] = -1;
+                if (i != mainTrack && (!video || !TrimStreams.hasAudio(streams))) {
+                    /* a single stream is kept, the others are never read */
+                    continue;
+                }
+                if (!isMuxable(format.getString(MediaFormat.KEY_MIME))) {
+                    if (i == mainTrack) {
+                        Log.w(TAG, "Cannot remux " + format.getString(MediaFormat.KEY_MIME) + " to MP4");
+                        return 1;
+                    }
+                    continue;
+                }
+                muxerTracks[i] = muxer.addTrack(format);
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+                selected++;
+            }
+            if (video) {
+                muxer.setOrientationHint(rotation(src, extractor.getTrackFormat(mainTrack)));
+            }
+
+            /* find the sync frame the cut starts at, then bring the other tracks there */
+            extractor.selectTrack(mainTrack);
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            long baseUs = Math.max(0, extractor.getSampleTime());
+            for (int i = 0; i < trackCount; i++) {
+                if (i != mainTrack && muxerTracks[i] >= 0) {
+                    extractor.selectTrack(i);
+                }
+            }
+            extractor.seekTo(baseUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+            ByteBuffer buffer = buffer(bufferSize);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            muxer.start();
+            muxerStarted = true;
+            long bytes = 0;
+            int endedCount = 0;
+            while (endedCount < selected) {
+                if (job != null && job.isCancelled()) {
+                    return FFmpeg.RETURN_CODE_CANCEL;
+                }
+                int track = extractor.getSampleTrackIndex();
+                if (track < 0) {
+                    break;
+                }
+                long timeUs = extractor.getSampleTime();
+                if (timeUs > endUs) {
+                    if (!ended[track]) {
+                        ended[track] = true;
+                        endedCount++;
+                    }
+                } else if (timeUs >= baseUs && !ended[track]) {
+                    buffer.clear();
+                    int size = extractor.readSampleData(buffer, 0);
+                    if (size > 0) {
+                        int flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                                ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+                        info.set(0, size, timeUs - baseUs, flags);
+                        muxer.writeSampleData(muxerTracks[track], buffer, info);
+                        bytes += size;
+                        if (job != null) {
+                            job.reportProgress((timeUs - baseUs) / 1000, bytes);
+                        }
+                    }
+                }
+                extractor.advance();
+            }
+            muxer.stop();
+            muxerStarted = false;
+            return 0;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not remux " + src, e);
+            return 1;
+        } finally {
+            extractor.release();
+            if (muxer != null) {
+                try {
+                    if (muxerStarted) {
+                        muxer.stop();
+                    }
+                } catch (IllegalStateException ignore) {
+                }
+                muxer.release();
+            }
+        }
+    }
+
+    private static ByteBuffer buffer(int size) {
+        ByteBuffer buffer = BUFFER.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static int rotation(File src, MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_ROTATION)) {
+            return format.getInteger(MediaFormat.KEY_ROTATION);
+        }
+        return TrimVideoUtils.getRotation(src);
+    }
+}
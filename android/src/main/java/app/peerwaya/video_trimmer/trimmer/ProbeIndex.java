@@ -0,0 +1,192 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of {@link VideoProbe}s: an in-memory LRU backed by one small file per source in the
+ * application cache dir.
+ * <p>
+ * Entries are keyed by the source identity of {@link ThumbnailCache#sourceKey}, so a file
+ * replaced in place is probed again; sources it gives no identity are probed on every lookup.
+ * A source is probed at most once at a time; concurrent lookups of the same source wait for
+ * that probe. Safe to use from any thread.
+ */
+public class ProbeIndex {
+
+    private static final String TAG = ProbeIndex.class.getSimpleName();
+    private static final String DIRECTORY = "video_trimmer_probes";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MEMORY_ENTRIES = 32;
+    static final int MAX_DISK_ENTRIES = 256;
+
+    private final Context context;
+    private final File directory;
+    private final LruCache<String, VideoProbe> memory = new LruCache<>(MEMORY_ENTRIES);
+    /* one lock per source being looked up, so that a source is only probed once */
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    public ProbeIndex(Context context) {
+        this.context = context;
+        this.directory = new File(context.getCacheDir(), DIRECTORY);
+    }
+
+    public VideoProbe get(File file) throws IOException {
+        return get(Uri.fromFile(file));
+    }
+
+    /**
+     * The probe of <code>uri</code>, from memory, disk or, failing both, probed now. Call this
+     * off the main thread.
+     *
+     * @throws IOException if the source has to be probed and cannot be read
+     */
+    public VideoProbe get(Uri uri) throws IOException {
+        String key = ThumbnailCache.sourceKey(context, uri);
+        if (key == null) {
+            /* a later version of the source would get the same key */
+            return VideoProbe.probe(context, uri);
+        }
+        VideoProbe probe = memory.get(key);
+        if (probe != null) {
+            return probe;
+        }
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(key, lock);
+        if (existing != null) {
+            lock = existing;
+        }
+        try {
+            synchronized (lock) {
+                probe = memory.get(key);
+                if (probe != null) {
+                    return probe;
+                }
+                File file = fileFor(key);
+                probe = read(file);
+                if (probe == null) {
+                    probe = VideoProbe.probe(context, uri);
+                    write(file, probe);
+                } else {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.setLastModified(System.currentTimeMillis());
+                }
+                memory.put(key, probe);
+                return probe;
+            }
+        } finally {
+            /* only our lock: a waiter done after a new lookup started must not drop that one's */
+            locks.remove(key, lock);
+        }
+    }
+
+    /**
+     * Like {@link #get(File)}, <code>null</code> instead of an exception for sources that
+     * cannot be probed: for callers that can do without.
+     */
+    public VideoProbe find(File file) {
+        try {
+            return get(file);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not probe " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Like {@link #get(Uri)}, <code>null</code> instead of an exception for sources that
+     * cannot be probed.
+     */
+    public VideoProbe find(Uri uri) {
+        try {
+            return get(uri);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not probe " + uri, e);
+            return null;
+        }
+    }
+
+    private static VideoProbe read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return VideoProbe.readFrom(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable " + file, e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    private void write(File file, VideoProbe probe) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create " + directory);
+            return;
+        }
+        File temp = new File(directory, file.getName() + '.' + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            probe.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + temp, e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    /**
+     * Evict the least recently used entries beyond {@link #MAX_DISK_ENTRIES}.
+     */
+    private synchronized void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= MAX_DISK_ENTRIES) {
+            return;
+        }
+        long[] lastModified = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+        }
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long x = lastModified[a];
+                long y = lastModified[b];
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < order.length - MAX_DISK_ENTRIES; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            files[order[i]].delete();
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, ThumbnailCache.hash(key));
+    }
+}
@@ -0,0 +1,184 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.arthenica.mobileffmpeg.FFmpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Frame-accurate trim at close to remux speed.
+ * <p>
+ * Only the partial GOPs at the edges of the range are re-encoded (with
+ * {@link VideoReencoder}, mobile-ffmpeg-min has no H.264 encoder); the GOPs in between are
+ * stream-copied. The pieces are converted to Annex B MPEG-TS, so that each carries its own
+ * parameter sets, and joined with the concat demuxer. Audio is stream-copied over the whole
+ * range and muxed back in.
+ * <p>
+ * The edges are encoded at the profile and level of the source. Where the encoder cannot do
+ * that (before API 23, or a profile it lacks) the whole range is re-encoded instead, rather
+ * than mixing profiles in one stream.
+ * <p>
+ * Sources that are not H.264, or platforms without surface encoding, fall back to the plain
+ * key frame aligned copy of {@link TrimVideoUtils#startTrim}.
+ */
+final class SmartTrimmer {
+
+    private static final String TAG = SmartTrimmer.class.getSimpleName();
+
+    private SmartTrimmer() {
+    }
+
+    /**
+     * Trim synchronously; runs on the FFmpeg thread.
+     *
+     * @param streams {@link TrimStreams#VIDEO} to drop the audio, <code>null</code> or
+     *                {@link TrimStreams#ALL} to keep it
+     * @param probe   the probe of <code>src</code>, whose key frame table saves a look at the
+     *                file; may be <code>null</code>
+     * @param job     polled for cancellation between steps, may be <code>null</code>
+     * @return an FFmpeg return code: 0 on success, {@link FFmpeg#RETURN_CODE_CANCEL} if
+     * cancelled
+     */
+    static int trim(File src, File dst, long startMs, long endMs, String streams, VideoProbe probe, TrimJob job) {
+        long startUs = startMs * 1000;
+        long endUs = endMs * 1000;
+        long[] keyFrames;
+        try {
+            if (!VideoReencoder.isSupported()) {
+                keyFrames = null;
+            } else if (probe != null) {
+                keyFrames = MediaFormat.MIMETYPE_VIDEO_AVC.equals(probe.getVideoMime())
+                        ? new long[]{probe.nextKeyFrameUs(startUs), probe.previousKeyFrameUs(endUs)} : null;
+            } else {
+                keyFrames = keyFramesAround(src, startUs, endUs);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read key frames of " + src, e);
+            keyFrames = null;
+        }
+        if (keyFrames == null) {
+            try {
+                return TrimVideoUtils.runFFmpeg(job, TrimVideoUtils.copyArguments(src, dst, startMs, endMs, streams));
+            } catch (CancellationException e) {
+                return FFmpeg.RETURN_CODE_CANCEL;
+            }
+        }
+        long firstKeyFrameUs = keyFrames[0];
+        long lastKeyFrameUs = keyFrames[1];
+        boolean copyMiddle = firstKeyFrameUs < endUs && firstKeyFrameUs < lastKeyFrameUs;
+        AvcProfile profile = null;
+        if (copyMiddle && (startUs < firstKeyFrameUs || lastKeyFrameUs < endUs)) {
+            /* the re-encoded edges must have the profile and level of the copied middle */
+            try {
+                profile = AvcProfile.read(src);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read the profile of " + src, e);
+            }
+            if (profile == null || !profile.isEncodable()) {
+                Log.i(TAG, "Cannot encode the profile of " + src + ", re-encoding the whole range");
+                copyMiddle = false;
+            }
+        }
+
+        File parts = new File(dst.getParentFile(), "." + dst.getName() + ".parts");
+        if (!parts.isDirectory() && !parts.mkdirs()) {
+            Log.w(TAG, "Could not create " + parts);
+            return 1;
+        }
+        try {
+            List<File> pieces = new ArrayList<>();
+            int rc;
+            if (!copyMiddle) {
+                /* no GOP inside the range, or edges that could not match it: it is all edge */
+                rc = reencodePiece(src, startUs, endUs, null, parts, pieces, job);
+            } else {
+                rc = 0;
+                if (startUs < firstKeyFrameUs) {
+                    rc = reencodePiece(src, startUs, firstKeyFrameUs, profile, parts, pieces, job);
+                }
+                if (rc == 0) {
+                    File middle = new File(parts, pieces.size() + ".ts");
+                    rc = TrimVideoUtils.runFFmpeg(job, "-ss", TrimVideoUtils.formatMicros(firstKeyFrameUs), "-i", src.getAbsolutePath(),
+                            "-t", TrimVideoUtils.formatMicros(lastKeyFrameUs - firstKeyFrameUs),
+                            "-map", "0:v:0", "-codec", "copy", "-bsf:v", "h264_mp4toannexb", "-f", "mpegts", middle.getAbsolutePath());
+                    pieces.add(middle);
+                }
+                if (rc == 0 && lastKeyFrameUs < endUs) {
+                    rc = reencodePiece(src, lastKeyFrameUs, endUs, profile, parts, pieces, job);
+                }
+            }
+            if (rc != 0) {
+                return rc;
+            }
+
+            File list = TrimVideoUtils.writeConcatList(new File(parts, "pieces.txt"), pieces);
+            String rotation = "rotate=" + TrimVideoUtils.getRotation(src);
+            if (!TrimStreams.hasAudio(streams)) {
+                return TrimVideoUtils.runFFmpeg(job, "-f", "concat", "-safe", "0", "-i", list.getAbsolutePath(),
+                        "-map", "0:v:0", "-codec", "copy", "-metadata:s:v:0", rotation, dst.getAbsolutePath());
+            }
+            return TrimVideoUtils.runFFmpeg(job, "-f", "concat", "-safe", "0", "-i", list.getAbsolutePath(),
+                    "-ss", TrimVideoUtils.formatMicros(startUs), "-t", TrimVideoUtils.formatMicros(endUs - startUs), "-i", src.getAbsolutePath(),
+                    "-map", "0:v:0", "-map", "1:a?", "-codec", "copy",
+                    "-metadata:s:v:0", rotation,
+                    "-avoid_negative_ts", "1", dst.getAbsolutePath());
+        } catch (CancellationException e) {
+            return FFmpeg.RETURN_CODE_CANCEL;
+        } catch (IOException | IllegalStateException e) {
+            Log.w(TAG, "Smart trim of " + src + " failed", e);
+            return 1;
+        } finally {
+            TrimVideoUtils.deleteParts(parts);
+        }
+    }
+
+    /**
+     * Re-encode <code>[fromUs, toUs)</code> and append it to <code>pieces</code> as MPEG-TS.
+     *
+     * @param profile the profile and level to encode at, <code>null</code> for the encoder's
+     *                default
+     */
+    private static int reencodePiece(File src, long fromUs, long toUs, AvcProfile profile, File parts, List<File> pieces,
+                                     TrimJob job) throws IOException {
+        File mp4 = new File(parts, pieces.size() + ".mp4");
+        File ts = new File(parts, pieces.size() + ".ts");
+        VideoReencoder.reencode(src, fromUs, toUs, profile, mp4, job);
+        int rc = TrimVideoUtils.runFFmpeg(job, "-i", mp4.getAbsolutePath(), "-map", "0:v:0", "-codec", "copy",
+                "-bsf:v", "h264_mp4toannexb", "-f", "mpegts", ts.getAbsolutePath());
+        pieces.add(ts);
+        return rc;
+    }
+
+    /**
+     * The first key frame at or after <code>startUs</code> and the last one at or before
+     * <code>endUs</code>.
+     *
+     * @return <code>{first, last}</code> in microseconds, <code>first</code> being
+     * {@link Long#MAX_VALUE} if there is none; or <code>null</code> if the video is not H.264
+     */
+    private static long[] keyFramesAround(File src, long startUs, long endUs) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(src.getAbsolutePath());
+            int track = VideoReencoder.findVideoTrack(extractor);
+            if (track < 0 || !MediaFormat.MIMETYPE_VIDEO_AVC.equals(extractor.getTrackFormat(track).getString(MediaFormat.KEY_MIME))) {
+                return null;
+            }
+            extractor.selectTrack(track);
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            long first = extractor.getSampleTime();
+            extractor.seekTo(endUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            long last = extractor.getSampleTime();
+            return new long[]{first < 0 ? Long.MAX_VALUE : first, last};
+        } finally {
+            extractor.release();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A thumbnail strip composed into one bitmap, so that it crosses the channel as one message
+ * and is drawn by Flutter from one texture.
+ * <p>
+ * Tiles are laid out row by row, {@link #getColumns()} to a row, and drawn into the atlas in
+ * place as they are decoded, in any order. The tile rects are known up front. Safe to use from
+ * any thread.
+ */
+public class ThumbnailAtlas {
+
+    /** Widest atlas, within the texture size limit of the GPUs Flutter runs on. */
+    static final int MAX_WIDTH = 4096;
+    /** Tallest atlas, for the same limit; it also caps the bitmap at 64 MB. */
+    static final int MAX_HEIGHT = 4096;
+
+    private final int count;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int columns;
+    private final long updateIntervalMs;
+    private final Bitmap bitmap;
+    private final Canvas canvas;
+    private final boolean[] filled;
+    private final AndroidBmpUtil.Encoder bmpEncoder = new AndroidBmpUtil.Encoder();
+    private int filledCount;
+    private long updatedAt;
+    private boolean recycled;
+
+    /**
+     * @param updateIntervalMs how often {@link #draw} asks for a partial update, 0 for never
+     */
+    public ThumbnailAtlas(int count, int tileWidth, int tileHeight, long updateIntervalMs) {
+        check(count, tileWidth, tileHeight);
+        this.count = count;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.columns = columns(count, tileWidth);
+        this.updateIntervalMs = updateIntervalMs;
+        this.bitmap = Bitmap.createBitmap(columns * tileWidth, rows(count, columns) * tileHeight, Bitmap.Config.ARGB_8888);
+        this.canvas = new Canvas(bitmap);
+        this.filled = new boolean[count];
+        this.updatedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Check a layout sent by Dart before anything is allocated for it.
+     *
+     * @throws IllegalArgumentException if a size is not positive or the atlas would be wider
+     *                                  than {@link #MAX_WIDTH} or taller than {@link #MAX_HEIGHT}
+     */
+    public static void check(int count, int tileWidth, int tileHeight) {
+        if (count <= 0 || tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("Invalid atlas of " + count + " tiles of " + tileWidth + "x" + tileHeight);
+        }
+        if (tileWidth > MAX_WIDTH) {
+            throw new IllegalArgumentException("Atlas tiles are at most " + MAX_WIDTH + " wide: " + tileWidth);
+        }
+        long height = (long) rows(count, columns(count, tileWidth)) * tileHeight;
+        if (height > MAX_HEIGHT) {
+            throw new IllegalArgumentException("An atlas of " + count + " tiles of " + tileWidth + "x" + tileHeight
+                    + " would be " + height + " high, over " + MAX_HEIGHT);
+        }
+    }
+
+    /**
+     * Tiles to a row: all of them if they fit in {@link #MAX_WIDTH}, at least one.
+     */
+    static int columns(int count, int tileWidth) {
+        return Math.max(1, Math.min(count, MAX_WIDTH / Math.max(1, tileWidth)));
+    }
+
+    static int rows(int count, int columns) {
+        return Math.max(1, (count + columns - 1) / columns);
+    }
+
+    /**
+     * The tile rects, <code>{left, top, width, height}</code> for each tile in turn.
+     */
+    static int[] rects(int count, int tileWidth, int tileHeight, int columns) {
+        int[] rects = new int[count * 4];
+        for (int i = 0; i < count; i++) {
+            rects[i * 4] = i % columns * tileWidth;
+            rects[i * 4 + 1] = i / columns * tileHeight;
+            rects[i * 4 + 2] = tileWidth;
+            rects[i * 4 + 3] = tileHeight;
+        }
+        return rects;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Draw tile <code>index</code>, which must be tile-sized, into its rect.
+     *
+     * @return <code>true</code> if a partial update is due: the update interval has passed
+     * since the last one and tiles are still missing
+     */
+    public synchronized boolean draw(int index, Bitmap tile) {
+        if (recycled) {
+            return false;
+        }
+        canvas.drawBitmap(tile, index % columns * tileWidth, index / columns * tileHeight, null);
+        if (!filled[index]) {
+            filled[index] = true;
+            filledCount++;
+        }
+        if (updateIntervalMs <= 0 || filledCount == count) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now - updatedAt < updateIntervalMs) {
+            return false;
+        }
+        updatedAt = now;
+        return true;
+    }
+
+    public synchronized boolean isComplete() {
+        return filledCount == count;
+    }
+
+    /**
+     * The atlas as sent over the channel: the encoded bitmap, its layout and the tiles drawn
+     * so far.
+     * <p>
+     * The bitmap is copied under the lock and encoded outside it, so that tiles keep being
+     * drawn meanwhile.
+     */
+    public Map<String, Object> toMap(ThumbnailFormat format, int quality) {
+        List<Integer> filledIndices;
+        boolean complete;
+        Bitmap snapshot;
+        synchronized (this) {
+            filledIndices = new ArrayList<>(filledCount);
+            for (int i = 0; i < count; i++) {
+                if (filled[i]) {
+                    filledIndices.add(i);
+                }
+            }
+            complete = filledCount == count;
+            snapshot = recycled ? null : bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        byte[] data = null;
+        if (snapshot != null) {
+            try {
+                /* the encoder's buffers are reused, one encode at a time */
+                synchronized (bmpEncoder) {
+                    data = format.encode(snapshot, quality, bmpEncoder);
+                }
+            } finally {
+                snapshot.recycle();
+            }
+        }
+        Map<String, Object> map = new HashMap<>();
+        map.put("width", columns * tileWidth);
+        map.put("height", rows(count, columns) * tileHeight);
+        map.put("tileWidth", tileWidth);
+        map.put("tileHeight", tileHeight);
+        map.put("count", count);
+        map.put("rects", rects(count, tileWidth, tileHeight, columns));
+        map.put("filled", filledIndices);
+        map.put("complete", complete);
+        map.put("format", format.getFormatName());
+        map.put("data", data);
+        return map;
+    }
+
+    /**
+     * Free the bitmap; later tiles are dropped.
+     */
+    public synchronized void recycle() {
+        if (!recycled) {
+            recycled = true;
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier cache of encoded thumbnail tiles: a size-bounded in-memory LRU backed by a
+ * directory in the application cache dir.
+ * <p>
+ * Entries are keyed by the source identity (uri, file length and modification time), the
+ * frame time in microseconds, the tile size and the encoding, see {@link #key}. Sources
+ * without a known modification time are not cached. Both tiers
+ * are safe to use from any thread.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = ThumbnailCache.class.getSimpleName();
+    private static final String DIRECTORY = "video_trimmer_thumbnails";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final LruCache<String, byte[]> memory;
+    private final File directory;
+    private final long maxDiskBytes;
+    private final AtomicLong diskBytes = new AtomicLong(-1);
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param context        used to locate the application cache dir
+     * @param maxMemoryBytes the budget of the in-memory tier, in bytes
+     * @param maxDiskBytes   the budget of the disk tier, in bytes
+     */
+    public ThumbnailCache(Context context, int maxMemoryBytes, long maxDiskBytes) {
+        this.memory = new LruCache<String, byte[]>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+        this.directory = new File(context.getCacheDir(), DIRECTORY);
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Identity of a video source: its uri plus its length and last modification time, so that
+     * a file replaced in place does not serve stale tiles. For a content uri the time is asked
+     * of its provider, as a document's last modification or a media store entry's.
+     *
+     * @return <code>null</code> if the modification time cannot be determined: the source
+     * must then not be cached, a later version of it would get the same key
+     */
+    public static String sourceKey(Context context, Uri uri) {
+        long length = 0;
+        long lastModified;
+        String scheme = uri.getScheme();
+        if (scheme == null || ContentResolver.SCHEME_FILE.equals(scheme)) {
+            File file = new File(uri.getPath());
+            length = file.length();
+            lastModified = file.lastModified();
+        } else {
+            ContentResolver resolver = context.getContentResolver();
+            try (ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r")) {
+                if (descriptor != null) {
+                    length = descriptor.getStatSize();
+                }
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Could not stat " + uri, e);
+            }
+            lastModified = queryLong(resolver, uri, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (lastModified <= 0) {
+                /* in seconds */
+                lastModified = queryLong(resolver, uri, MediaStore.MediaColumns.DATE_MODIFIED) * 1000;
+            }
+            if (lastModified <= 0) {
+                return null;
+            }
+        }
+        return uri.toString() + '|' + length + '|' + lastModified;
+    }
+
+    /**
+     * @return the value of <code>column</code> for <code>uri</code>, 0 if the provider does
+     * not have it
+     */
+    private static long queryLong(ContentResolver resolver, Uri uri, String column) {
+        try (Cursor cursor = resolver.query(uri, new String[]{column}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int index = cursor.getColumnIndex(column);
+                if (index >= 0 && !cursor.isNull(index)) {
+                    return cursor.getLong(index);
+                }
+            }
+        } catch (RuntimeException e) {
+            /* providers throw on columns they do not know */
+            Log.d(TAG, "No " + column + " for " + uri);
+        }
+        return 0;
+    }
+
+    /**
+     * Key of one encoded tile.
+     *
+     * @param sourceKey the source identity, see {@link #sourceKey}
+     * @param timeUs    the frame time, in microseconds
+     * @param width     the tile width
+     * @param height    the tile height
+     * @param encoding  the tile encoding
+     */
+    public static String key(String sourceKey, long timeUs, int width, int height, String encoding) {
+        return sourceKey + '|' + timeUs + '|' + width + 'x' + height + '|' + encoding;
+    }
+
+    /**
+     * Look a tile up in memory, then on disk. Disk hits are promoted to memory.
+     *
+     * @return the encoded tile, or <code>null</code> on a miss
+     */
+    public byte[] get(String key) {
+        byte[] data = memory.get(key);
+        if (data != null) {
+            memoryHits.incrementAndGet();
+            return data;
+        }
+        File file = fileFor(key);
+        if (file.isFile()) {
+            data = read(file);
+            if (data != null) {
+                diskHits.incrementAndGet();
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+                memory.put(key, data);
+                return data;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store a tile in both tiers.
+     */
+    public void put(String key, byte[] data) {
+        memory.put(key, data);
+        File file = fileFor(key);
+        if (file.isFile()) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create " + directory);
+            return;
+        }
+        File temp = new File(directory, file.getName() + '.' + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + temp, e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        if (addDiskBytes(data.length) > maxDiskBytes) {
+            trimDisk();
+        }
+    }
+
+    /**
+     * Drop every tile from both tiers. Hit and miss counters are kept.
+     */
+    public void clear() {
+        memory.evictAll();
+        synchronized (this) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+            diskBytes.set(0);
+        }
+    }
+
+    /**
+     * Counters and sizes, suitable for sending over the method channel.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("memoryHits", memoryHits.get());
+        stats.put("diskHits", diskHits.get());
+        stats.put("misses", misses.get());
+        stats.put("memoryBytes", memory.size());
+        stats.put("maxMemoryBytes", memory.maxSize());
+        stats.put("diskBytes", Math.max(0, diskBytes.get()));
+        stats.put("maxDiskBytes", maxDiskBytes);
+        return stats;
+    }
+
+    public void resetStats() {
+        memoryHits.set(0);
+        diskHits.set(0);
+        misses.set(0);
+    }
+
+    private long addDiskBytes(long delta) {
+        if (diskBytes.get() < 0) {
+            synchronized (this) {
+                if (diskBytes.get() < 0) {
+                    long total = 0;
+                    File[] files = directory.listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            total += file.length();
+                        }
+                    }
+                    /* the file that triggered this scan is already counted */
+                    diskBytes.set(total);
+                    return total;
+                }
+            }
+        }
+        return diskBytes.addAndGet(delta);
+    }
+
+    /**
+     * Evict the least recently used files until the disk tier is at 3/4 of its budget.
+     */
+    private synchronized void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long[] lastModified = new long[files.length];
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            total += files[i].length();
+        }
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long x = lastModified[a];
+                long y = lastModified[b];
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        long target = maxDiskBytes * 3 / 4;
+        for (int i = 0; i < order.length && total > target; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+        diskBytes.set(total);
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, hash(key));
+    }
+
+    private static byte[] read(File file) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            int length = (int) file.length();
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int read = in.read(data, offset, length - offset);
+                if (read < 0) {
+                    return null;
+                }
+                offset += read;
+            }
+            return data;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + file, e);
+            return null;
+        }
+    }
+
+    static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes());
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode()) + '_' + key.length();
+        }
+    }
+}
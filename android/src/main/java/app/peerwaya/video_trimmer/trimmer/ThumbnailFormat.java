@@ -0,0 +1,139 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodings a thumbnail tile can be sent over the channel in.
+ * <p>
+ * The choice trades native encode time against channel bytes and Dart decode time:
+ * {@link #RAW} skips encoding entirely and can be handed to <code>decodeImageFromPixels</code>,
+ * {@link #BMP} is nearly as cheap and decodes with the regular codecs, {@link #JPEG} and
+ * {@link #WEBP} are small but lossy, {@link #PNG} is lossless and the slowest.
+ */
+public enum ThumbnailFormat {
+
+    /** Tightly packed RGBA_8888 pixels, no header. */
+    RAW("raw", false),
+    JPEG("jpeg", true),
+    WEBP("webp", true),
+    /** 24 bit Windows BMP with file header. */
+    BMP("bmp", false),
+    PNG("png", false);
+
+    /** Quality used for lossy formats when the caller does not pick one. */
+    public static final int DEFAULT_QUALITY = 90;
+
+    private final String formatName;
+    private final boolean lossy;
+
+    ThumbnailFormat(String formatName, boolean lossy) {
+        this.formatName = formatName;
+        this.lossy = lossy;
+    }
+
+    /**
+     * Name used on the method channel.
+     */
+    public String getFormatName() {
+        return formatName;
+    }
+
+    /**
+     * Look a format up by its channel name.
+     *
+     * @param name     the name sent by Dart, may be <code>null</code>
+     * @param fallback returned when <code>name</code> is <code>null</code>
+     * @throws IllegalArgumentException if <code>name</code> is not a known format
+     */
+    public static ThumbnailFormat fromName(String name, ThumbnailFormat fallback) {
+        if (name == null) {
+            return fallback;
+        }
+        for (ThumbnailFormat format : values()) {
+            if (format.formatName.equals(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown thumbnail format: " + name);
+    }
+
+    /**
+     * Part of a cache key identifying this format at the given quality. Quality only takes
+     * part in it for lossy formats.
+     */
+    public String cacheKey(int quality) {
+        return lossy ? formatName + quality : formatName;
+    }
+
+    /**
+     * Encode a tile.
+     *
+     * @param bitmap     the tile
+     * @param quality    0-100, only used by lossy formats
+     * @param bmpEncoder reusable encoder for {@link #BMP}
+     */
+    public byte[] encode(Bitmap bitmap, int quality, AndroidBmpUtil.Encoder bmpEncoder) {
+        long start = Metrics.start();
+        try {
+            return encodeBitmap(bitmap, quality, bmpEncoder);
+        } finally {
+            Metrics.record(Metrics.Stage.ENCODE, start);
+        }
+    }
+
+    private byte[] encodeBitmap(Bitmap bitmap, int quality, AndroidBmpUtil.Encoder bmpEncoder) {
+        switch (this) {
+            case RAW:
+                return rgba(bitmap);
+            case BMP:
+                return bmpEncoder.encode(bitmap);
+            default:
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                bitmap.compress(compressFormat(), lossy ? quality : 100, baos);
+                return baos.toByteArray();
+        }
+    }
+
+    private Bitmap.CompressFormat compressFormat() {
+        switch (this) {
+            case JPEG:
+                return Bitmap.CompressFormat.JPEG;
+            case WEBP:
+                return Bitmap.CompressFormat.WEBP;
+            default:
+                return Bitmap.CompressFormat.PNG;
+        }
+    }
+
+    private static byte[] rgba(Bitmap bitmap) {
+        Bitmap source = bitmap;
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            source = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        try {
+            int width = source.getWidth();
+            int height = source.getHeight();
+            int rowBytes = width * 4;
+            int stride = source.getRowBytes();
+            if (stride == rowBytes) {
+                byte[] data = new byte[rowBytes * height];
+                source.copyPixelsToBuffer(ByteBuffer.wrap(data));
+                return data;
+            }
+            ByteBuffer pixels = ByteBuffer.allocate(stride * height);
+            source.copyPixelsToBuffer(pixels);
+            byte[] data = new byte[rowBytes * height];
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(pixels.array(), row * stride, data, row * rowBytes, rowBytes);
+            }
+            return data;
+        } finally {
+            if (source != bitmap) {
+                source.recycle();
+            }
+        }
+    }
+}
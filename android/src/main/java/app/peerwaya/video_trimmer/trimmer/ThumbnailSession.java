@@ -0,0 +1,190 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+
+/**
+ * Keeps a single {@link MediaMetadataRetriever} open on one video source so that every
+ * frame requested for a thumbnail handle is served from the same parsed container.
+ * <p>
+ * The retriever is opened lazily on the first frame request and stays open until
+ * {@link #release()} is called. A retriever is not safe for concurrent use, so all
+ * access goes through this object's monitor.
+ * <p>
+ * When a {@link ThumbnailCache} is supplied, encoded tiles requested through
+ * {@link #extractThumbnailData} are looked up there first and the retriever is only opened
+ * on a miss.
+ * <p>
+ * When a {@link ProbeIndex} is supplied, frame times are snapped to the key frame the
+ * retriever would decode for them, so that tiles of different times showing the same frame
+ * share one cache entry and one decode.
+ */
+public class ThumbnailSession {
+
+    private final Context context;
+    private final Uri videoUri;
+    private final ThumbnailCache cache;
+    private final ProbeIndex probes;
+    private final AndroidBmpUtil.Encoder bmpEncoder = new AndroidBmpUtil.Encoder();
+    private MediaMetadataRetriever retriever;
+    private int[] videoSize;
+    private String sourceKey;
+    private boolean sourceKeyKnown;
+    private VideoProbe probe;
+    private boolean probed;
+    private volatile boolean released;
+
+    public ThumbnailSession(Context context, Uri videoUri) {
+        this(context, videoUri, null);
+    }
+
+    public ThumbnailSession(Context context, Uri videoUri, ThumbnailCache cache) {
+        this(context, videoUri, cache, null);
+    }
+
+    public ThumbnailSession(Context context, Uri videoUri, ThumbnailCache cache, ProbeIndex probes) {
+        this.context = context;
+        this.videoUri = videoUri;
+        this.cache = cache;
+        this.probes = probes;
+    }
+
+    public Uri getVideoUri() {
+        return videoUri;
+    }
+
+    /**
+     * Extract the frame closest to <code>timeUs</code> scaled to the given tile size.
+     *
+     * @param timeUs      the frame time, in microseconds
+     * @param frameWidth  the tile width
+     * @param frameHeight the tile height
+     * @return the tile bitmap, owned by the caller
+     * @throws IllegalStateException if the session has been released
+     */
+    public synchronized Bitmap extractThumbnail(long timeUs, int frameWidth, int frameHeight) {
+        MediaMetadataRetriever mediaMetadataRetriever = open();
+        return TrimVideoUtils.extractThumbnail(mediaMetadataRetriever, videoSize, timeUs, frameWidth, frameHeight);
+    }
+
+    /**
+     * Encoded tile for the frame closest to <code>timeUs</code>, served from the cache when
+     * possible.
+     *
+     * @param format  the tile encoding
+     * @param quality 0-100, only used by lossy formats
+     * @throws IllegalStateException if the session has been released
+     */
+    public byte[] extractThumbnailData(long timeUs, int frameWidth, int frameHeight, ThumbnailFormat format, int quality) {
+        timeUs = snapTimeUs(timeUs);
+        String key = null;
+        String sourceKey = cache != null ? getSourceKey() : null;
+        if (sourceKey != null) {
+            key = ThumbnailCache.key(sourceKey, timeUs, frameWidth, frameHeight, format.cacheKey(quality));
+            byte[] data = cache.get(key);
+            if (data != null) {
+                return data;
+            }
+        }
+        Bitmap bitmap = extractThumbnail(timeUs, frameWidth, frameHeight);
+        byte[] data;
+        try {
+            data = encode(bitmap, format, quality);
+        } finally {
+            bitmap.recycle();
+        }
+        if (key != null) {
+            cache.put(key, data);
+        }
+        return data;
+    }
+
+    /**
+     * The time of the key frame the retriever decodes for <code>timeUs</code>, or
+     * <code>timeUs</code> itself without a probe.
+     */
+    public long snapTimeUs(long timeUs) {
+        VideoProbe probe = getProbe();
+        return probe != null ? probe.closestKeyFrameUs(timeUs) : timeUs;
+    }
+
+    /**
+     * Like {@link TrimVideoUtils#thumbnailTimeUs}, with <code>endMs</code> clamped to the
+     * duration of the source when it is known, so that no tile lands past the last frame.
+     */
+    public long thumbnailTimeUs(long startMs, long endMs, int count, int index) {
+        VideoProbe probe = getProbe();
+        if (probe != null && probe.getDurationMs() > 0) {
+            endMs = Math.max(startMs, Math.min(endMs, probe.getDurationMs()));
+        }
+        return TrimVideoUtils.thumbnailTimeUs(startMs, endMs, count, index);
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Release the native retriever. Any later frame request fails; a frame being extracted
+     * when this is called completes first, so this may block for the length of one decode.
+     */
+    public void release() {
+        released = true;
+        synchronized (this) {
+            if (retriever != null) {
+                retriever.release();
+                retriever = null;
+            }
+        }
+    }
+
+    /**
+     * @return the source key, looked up once; <code>null</code> if the source must not be
+     * cached
+     */
+    private synchronized String getSourceKey() {
+        if (!sourceKeyKnown) {
+            sourceKey = ThumbnailCache.sourceKey(context, videoUri);
+            sourceKeyKnown = true;
+        }
+        return sourceKey;
+    }
+
+    /**
+     * @return the probe of the source, <code>null</code> without an index or if the source
+     * cannot be probed
+     */
+    public synchronized VideoProbe getProbe() {
+        if (!probed && probes != null) {
+            probe = probes.find(videoUri);
+            probed = true;
+        }
+        return probe;
+    }
+
+    private synchronized byte[] encode(Bitmap bitmap, ThumbnailFormat format, int quality) {
+        return format.encode(bitmap, quality, bmpEncoder);
+    }
+
+    private MediaMetadataRetriever open() {
+        if (released) {
+            throw new IllegalStateException("Thumbnail session for " + videoUri + " has been released");
+        }
+        if (retriever == null) {
+            long start = Metrics.start();
+            MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+            try {
+                mediaMetadataRetriever.setDataSource(context, videoUri);
+            } catch (RuntimeException e) {
+                mediaMetadataRetriever.release();
+                throw e;
+            }
+            Metrics.record(Metrics.Stage.SET_DATA_SOURCE, start);
+            retriever = mediaMetadataRetriever;
+            videoSize = TrimVideoUtils.getVideoSize(mediaMetadataRetriever);
+        }
+        return retriever;
+    }
+}
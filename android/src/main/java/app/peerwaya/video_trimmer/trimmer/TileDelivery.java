@@ -0,0 +1,63 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How the tiles of a thumbnail strip reach Dart, by channel name.
+ */
+public final class TileDelivery {
+
+    /** The encoded tile travels in the event, copied by the message codec on both sides. */
+    public static final String BYTES = "bytes";
+    /**
+     * The encoded tile is written to a {@link TileFile}; the event only carries its
+     * <code>path</code>, <code>offset</code> and <code>length</code>.
+     */
+    public static final String FILE = "file";
+
+    private TileDelivery() {
+    }
+
+    /**
+     * Check a delivery name sent by Dart.
+     *
+     * @param name the name, <code>null</code> meaning {@link #BYTES}
+     * @throws IllegalArgumentException if the delivery is unknown
+     */
+    public static void checkName(String name) {
+        if (name != null && !BYTES.equals(name) && !FILE.equals(name)) {
+            throw new IllegalArgumentException("Unknown thumbnail delivery: " + name);
+        }
+    }
+
+    /**
+     * The <code>result</code> event of a tile, just encoded.
+     * <p>
+     * <code>encodedAtUs</code> stamps it on {@link System#nanoTime}, the monotonic clock Dart's
+     * <code>Timeline.now</code> also reads, so that Dart can time the tile up to its bytes.
+     *
+     * @param file where the tile is written, <code>null</code> to send it in the event
+     * @throws IOException if the tile cannot be written to <code>file</code>
+     */
+    public static Map<String, Object> tileEvent(int handle, int index, int width, int height, ThumbnailFormat format,
+                                                byte[] data, TileFile file) throws IOException {
+        Map<String, Object> arguments = new HashMap<>();
+        arguments.put("encodedAtUs", System.nanoTime() / 1000);
+        arguments.put("handle", handle);
+        arguments.put("index", index);
+        arguments.put("width", width);
+        arguments.put("height", height);
+        arguments.put("format", format.getFormatName());
+        if (file != null) {
+            arguments.put("path", file.getFile().getAbsolutePath());
+            arguments.put("offset", file.write(data));
+            arguments.put("length", data.length);
+        } else {
+            arguments.put("data", data);
+        }
+        arguments.put("eventType", "result");
+        return arguments;
+    }
+}
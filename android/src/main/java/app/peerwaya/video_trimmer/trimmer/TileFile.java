@@ -0,0 +1,120 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only, memory-mapped file encoded tiles are written into, so that only their position
+ * crosses the event channel and Dart reads the bytes straight from the file.
+ * <p>
+ * The file is mapped in regions of at least {@link #REGION_SIZE} bytes. A tile that does not
+ * fit in what is left of the current region maps the next one, starting right after the last
+ * tile. Writing a tile is a copy into the page cache, without a system call. Safe to use from
+ * any thread.
+ */
+public class TileFile implements Closeable {
+
+    static final int REGION_SIZE = 4 * 1024 * 1024;
+    public static final String SUFFIX = ".tiles";
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long length;
+    private long bytesWritten;
+
+    public TileFile(File file) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Append a tile.
+     *
+     * @return the offset of the tile in the file
+     * @throws IOException if the file is closed or cannot grow
+     */
+    public synchronized long write(byte[] data) throws IOException {
+        if (!channel.isOpen()) {
+            throw new IOException(file + " is closed");
+        }
+        if (region == null || region.remaining() < data.length) {
+            regionStart = length;
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, data.length));
+        }
+        long offset = regionStart + region.position();
+        region.put(data);
+        length = offset + data.length;
+        bytesWritten += data.length;
+        return offset;
+    }
+
+    /**
+     * @return the bytes of tiles written so far
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Stop writing and trim the unused end of the last region. Tiles written so far stay
+     * readable until the file is deleted.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        /* the mapping itself goes away with the buffer */
+        region = null;
+        try {
+            channel.truncate(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Close and delete the file. A reader that already opened it keeps reading it.
+     */
+    public void delete() {
+        try {
+            close();
+        } catch (IOException ignore) {
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Delete the tile files left in <code>directory</code>, by a process that died before
+     * deleting them.
+     */
+    public static void deleteAll(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+}
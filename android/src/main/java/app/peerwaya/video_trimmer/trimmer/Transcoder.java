@@ -0,0 +1,105 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.util.Log;
+
+import com.arthenica.mobileffmpeg.FFmpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Frame-accurate trim re-encoded to an {@link ExportProfile}.
+ * <p>
+ * The video is decoded and re-encoded to H.264 with the platform codecs by
+ * {@link VideoReencoder}: the decoder renders into a GL stage, {@link FrameScaler}, which
+ * draws the frames onto the encoder's input surface at the target size, and frames are
+ * dropped to stay under the frame rate cap. FFmpeg then muxes the audio of the range back in,
+ * copied or re-encoded to AAC at the profile's audio bit rate.
+ */
+final class Transcoder {
+
+    private static final String TAG = Transcoder.class.getSimpleName();
+
+    private Transcoder() {
+    }
+
+    /**
+     * Transcode synchronously; runs on the FFmpeg thread.
+     *
+     * @param streams {@link TrimStreams#VIDEO} to drop the audio, <code>null</code> or
+     *                {@link TrimStreams#ALL} to keep it
+     * @param probe   the probe of <code>src</code>
+     * @param job     told the progress, polled for cancellation between steps; may be
+     *                <code>null</code>
+     * @return an FFmpeg return code: 0 on success, {@link FFmpeg#RETURN_CODE_CANCEL} if
+     * cancelled
+     */
+    static int transcode(File src, File dst, long startMs, long endMs, ExportProfile profile, String streams,
+                         VideoProbe probe, TrimJob job) {
+        VideoProbe.Track video = probe != null ? probe.getVideoTrack() : null;
+        if (video == null) {
+            Log.w(TAG, "No video in " + src);
+            return 1;
+        }
+        if (!VideoReencoder.isSupported()) {
+            Log.w(TAG, "Transcoding needs API 18");
+            return 1;
+        }
+        long startUs = startMs * 1000;
+        long endUs = endMs * 1000;
+        File parts = new File(dst.getParentFile(), "." + dst.getName() + ".parts");
+        if (!parts.isDirectory() && !parts.mkdirs()) {
+            Log.w(TAG, "Could not create " + parts);
+            return 1;
+        }
+        try {
+            File encoded = new File(parts, "video.mp4");
+            int[] size = profile.targetSize(video.width, video.height);
+            VideoReencoder.reencode(src, startUs, endUs, size[0], size[1], profile.getVideoBitRate(), profile.getMaxFrameRate(),
+                    encoded, job);
+
+            List<String> arguments = new ArrayList<>();
+            arguments.add("-i");
+            arguments.add(encoded.getAbsolutePath());
+            boolean audio = TrimStreams.hasAudio(streams);
+            if (audio) {
+                arguments.add("-ss");
+                arguments.add(TrimVideoUtils.formatMicros(startUs));
+                arguments.add("-t");
+                arguments.add(TrimVideoUtils.formatMicros(endUs - startUs));
+                arguments.add("-i");
+                arguments.add(src.getAbsolutePath());
+            }
+            arguments.add("-map");
+            arguments.add("0:v:0");
+            arguments.add("-c:v");
+            arguments.add("copy");
+            if (audio) {
+                arguments.add("-map");
+                arguments.add("1:a:0?");
+                arguments.add("-c:a");
+                if (profile.getAudioBitRate() > 0) {
+                    arguments.add("aac");
+                    arguments.add("-b:a");
+                    arguments.add(String.valueOf(profile.getAudioBitRate()));
+                } else {
+                    arguments.add("copy");
+                }
+            }
+            arguments.add("-metadata:s:v:0");
+            arguments.add("rotate=" + probe.getRotation());
+            arguments.add(dst.getAbsolutePath());
+            return TrimVideoUtils.runFFmpeg(job, arguments.toArray(new String[0]));
+        } catch (CancellationException e) {
+            return FFmpeg.RETURN_CODE_CANCEL;
+        } catch (IOException | IllegalStateException e) {
+            Log.w(TAG, "Transcoding " + src + " failed", e);
+            return 1;
+        } finally {
+            TrimVideoUtils.deleteParts(parts);
+        }
+    }
+}
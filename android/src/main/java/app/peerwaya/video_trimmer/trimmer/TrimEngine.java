@@ -0,0 +1,34 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Something that can cut <code>[startMs, endMs]</code> of a video by stream copy.
+ *
+ * @see TrimEngines
+ */
+public interface TrimEngine {
+
+    /**
+     * Name used on the method channel.
+     */
+    String getName();
+
+    /**
+     * Whether the engine runs FFmpeg. Such engines run one at a time on FFmpeg's serial
+     * executor and report progress through FFmpeg statistics; the others run on the
+     * {@link BackgroundExecutor} and may run concurrently.
+     */
+    boolean usesFFmpeg();
+
+    /**
+     * Trim synchronously on the calling thread.
+     *
+     * @param streams the {@link TrimStreams} to keep
+     * @param job     polled for cancellation and told about progress, may be <code>null</code>
+     * @return 0 on success, {@link com.arthenica.mobileffmpeg.FFmpeg#RETURN_CODE_CANCEL} if
+     * cancelled, any other value on failure
+     */
+    int trim(File src, File dst, long startMs, long endMs, String streams, TrimJob job) throws IOException;
+}
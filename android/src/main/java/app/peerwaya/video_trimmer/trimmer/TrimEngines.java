@@ -0,0 +1,89 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import java.io.File;
+
+/**
+ * The available {@link TrimEngine}s, by channel name.
+ */
+public final class TrimEngines {
+
+    /**
+     * Pick the muxer engine when its output is the same as FFmpeg's, FFmpeg otherwise; see
+     * {@link #select(String, File, File, VideoProbe, String)}.
+     */
+    public static final String AUTO = "auto";
+    public static final String FFMPEG = "ffmpeg";
+    public static final String MUXER = "muxer";
+
+    private static final TrimEngine FFMPEG_ENGINE = new FFmpegTrimEngine();
+    private static final TrimEngine MUXER_ENGINE = new MuxerTrimEngine();
+
+    private TrimEngines() {
+    }
+
+    /**
+     * Check an engine name sent by Dart without touching the input.
+     *
+     * @param name the name, <code>null</code> meaning {@link #AUTO}
+     * @throws IllegalArgumentException if the engine is unknown or unavailable on this device
+     */
+    public static void checkName(String name) {
+        if (name == null || AUTO.equals(name) || FFMPEG.equals(name)) {
+            return;
+        }
+        if (MUXER.equals(name)) {
+            if (!MuxerTrimEngine.isSupported()) {
+                throw new IllegalArgumentException("The muxer trim engine needs API 18");
+            }
+            return;
+        }
+        throw new IllegalArgumentException("Unknown trim engine: " + name);
+    }
+
+    /**
+     * Check that the engine named <code>name</code> can write <code>dst</code>: the muxer
+     * engine only writes MP4, so it is refused for any other extension rather than writing MP4
+     * bytes under a misleading name.
+     *
+     * @throws IllegalArgumentException if it cannot
+     */
+    public static void checkOutput(String name, File dst) {
+        if (MUXER.equals(name) && !MuxerTrimEngine.canWrite(dst)) {
+            throw new IllegalArgumentException("The muxer trim engine only writes .mp4, .m4v and .m4a files: " + dst.getName());
+        }
+    }
+
+    /**
+     * Resolve an engine name whose output container is not known: {@link #AUTO} then picks
+     * FFmpeg.
+     *
+     * @param name a name accepted by {@link #checkName}
+     */
+    public static TrimEngine select(String name, File src) {
+        return select(name, src, null, null, TrimStreams.ALL);
+    }
+
+    /**
+     * Resolve an engine name for a trim of <code>src</code> into <code>dst</code> keeping
+     * <code>streams</code>. {@link #AUTO} only picks the muxer when nothing would differ from
+     * an FFmpeg copy: <code>dst</code> is an MP4 file and every track kept can be remuxed.
+     * Without a <code>probe</code> it opens <code>src</code>, so call this off the main thread.
+     *
+     * @param dst   the output, <code>null</code> if not known
+     * @param probe the probe of <code>src</code>, may be <code>null</code>
+     */
+    public static TrimEngine select(String name, File src, File dst, VideoProbe probe, String streams) {
+        checkName(name);
+        if (FFMPEG.equals(name)) {
+            return FFMPEG_ENGINE;
+        }
+        if (MUXER.equals(name)) {
+            return MUXER_ENGINE;
+        }
+        if (dst == null || !MuxerTrimEngine.canWrite(dst)) {
+            return FFMPEG_ENGINE;
+        }
+        boolean remux = probe != null ? MuxerTrimEngine.canRemux(probe, streams) : MuxerTrimEngine.canRemux(src, streams);
+        return remux ? MUXER_ENGINE : FFMPEG_ENGINE;
+    }
+}
@@ -0,0 +1,328 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.arthenica.mobileffmpeg.Config;
+import com.arthenica.mobileffmpeg.FFmpeg;
+import com.arthenica.mobileffmpeg.Statistics;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * A trim that can be followed and cancelled through its handle. Progress is streamed to
+ * <code>&lt;channel&gt;/trimProgress/&lt;handle&gt;</code>.
+ * <p>
+ * Progress of FFmpeg runs comes from the FFmpeg statistics callback. mobile-ffmpeg has a
+ * single, global callback and runs one command at a time (FFmpeg trims go through the serial
+ * {@link android.os.AsyncTask} executor), so statistics are routed to whichever FFmpeg job is
+ * running. Engines that do not use FFmpeg call {@link #reportProgress} themselves.
+ * <p>
+ * <code>progress</code> events are throttled to one per {@link #PROGRESS_INTERVAL_MILLIS} and
+ * carry the processed media time, percentage, bytes written, speed (x realtime) and ETA. The
+ * job ends with one <code>done</code> event, carrying the return code and overall throughput,
+ * followed by the end of the stream; a job stopped by {@link #cancel()} ends with a
+ * <code>cancelled</code> event instead.
+ * <p>
+ * A job cancelled after {@link #onStart} let it run deletes its partially written outputs; one
+ * cancelled before, e.g. while the source is probed, leaves the output paths alone.
+ * <p>
+ * A job may have followers: jobs of callers waiting on the same trim (see
+ * {@link TrimScheduler}). They receive every event of the job under their own handle.
+ */
+public class TrimJob {
+
+    static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+    /* guards running and the cancelled/finished state of every job */
+    private static final Object RUN_LOCK = new Object();
+    private static volatile TrimJob running;
+    private static boolean statisticsEnabled;
+
+    private final int handle;
+    private final EventChannel eventChannel;
+    private final List<TrimJob> followers = new CopyOnWriteArrayList<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile EventChannel.EventSink eventSink;
+    private long durationMs;
+    private long progressOffsetMs;
+    private long startedAt;
+    private long lastEventAt;
+    private long lastTimeMs;
+    private long lastBytes;
+    private double lastSpeed;
+    private final List<File> outputs = new ArrayList<>();
+    private boolean cancelled;
+    /* guarded by RUN_LOCK, like cancelled: outputs are only ours once a run has started */
+    private boolean started;
+    private boolean finished;
+
+    public TrimJob(BinaryMessenger messenger, String channelName, int handle) {
+        this.handle = handle;
+        enableStatistics();
+        eventChannel = new EventChannel(messenger, channelName + "/trimProgress/" + handle);
+        eventChannel.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink eventSink) {
+                TrimJob.this.eventSink = eventSink;
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                TrimJob.this.eventSink = null;
+            }
+        });
+    }
+
+    /**
+     * A job without a channel of its own, only observed through its followers.
+     */
+    TrimJob() {
+        handle = -1;
+        enableStatistics();
+        eventChannel = null;
+    }
+
+    private static synchronized void enableStatistics() {
+        if (!statisticsEnabled) {
+            Config.enableStatisticsCallback(statistics -> {
+                TrimJob job = running;
+                if (job != null) {
+                    job.onStatistics(statistics);
+                }
+            });
+            statisticsEnabled = true;
+        }
+    }
+
+    public int getHandle() {
+        return handle;
+    }
+
+    /**
+     * @param durationMs length of media the command has to process, used for the percentage
+     *                   and the ETA
+     */
+    public synchronized void setDurationMs(long durationMs) {
+        this.durationMs = durationMs;
+    }
+
+    /**
+     * Set the media time already processed by earlier steps of a job made of several runs,
+     * added to the time each run reports.
+     */
+    synchronized void setProgressOffsetMs(long progressOffsetMs) {
+        this.progressOffsetMs = progressOffsetMs;
+    }
+
+    /**
+     * @param outputs files written by the command, deleted if the job is cancelled once
+     *                started
+     */
+    public synchronized void setOutputs(List<File> outputs) {
+        this.outputs.clear();
+        this.outputs.addAll(outputs);
+    }
+
+    /**
+     * Stop the job: a queued job will not run, a running one has its FFmpeg command
+     * cancelled.
+     *
+     * @return <code>false</code> if the job had already finished or been cancelled
+     */
+    public boolean cancel() {
+        synchronized (RUN_LOCK) {
+            if (cancelled || finished) {
+                return false;
+            }
+            cancelled = true;
+            if (running == this) {
+                /* FFmpeg.cancel() stops whatever runs, only call it while that is us */
+                FFmpeg.cancel();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Forward the events of this job to <code>follower</code> until this job finishes or the
+     * follower is removed.
+     */
+    void addFollower(TrimJob follower) {
+        followers.add(follower);
+    }
+
+    void removeFollower(TrimJob follower) {
+        followers.remove(follower);
+    }
+
+    public boolean isCancelled() {
+        synchronized (RUN_LOCK) {
+            return cancelled;
+        }
+    }
+
+    boolean isFinished() {
+        synchronized (RUN_LOCK) {
+            return finished;
+        }
+    }
+
+    /**
+     * Called on the worker thread right before the trim runs.
+     *
+     * @param ffmpeg whether the trim runs FFmpeg; only then does the job receive FFmpeg
+     *               statistics and cancel FFmpeg when cancelled
+     * @return <code>false</code> if the job was cancelled and the trim must not run
+     */
+    boolean onStart(boolean ffmpeg) {
+        synchronized (this) {
+            if (ffmpeg) {
+                Config.resetStatistics();
+            }
+            startedAt = SystemClock.elapsedRealtime();
+            progressOffsetMs = 0;
+            lastEventAt = 0;
+            lastTimeMs = 0;
+            lastBytes = 0;
+            lastSpeed = 0;
+        }
+        synchronized (RUN_LOCK) {
+            if (cancelled) {
+                return false;
+            }
+            started = true;
+            if (ffmpeg) {
+                running = this;
+            }
+            return true;
+        }
+    }
+
+    private void onStatistics(Statistics statistics) {
+        onProgress(statistics.getTime(), statistics.getSize(), statistics.getSpeed());
+    }
+
+    /**
+     * Report the progress of a trim that does not run FFmpeg.
+     *
+     * @param timeMs media time processed so far
+     * @param bytes  bytes written so far
+     */
+    public void reportProgress(long timeMs, long bytes) {
+        long elapsedMs;
+        synchronized (this) {
+            elapsedMs = SystemClock.elapsedRealtime() - startedAt;
+        }
+        onProgress(timeMs, bytes, elapsedMs > 0 ? (double) timeMs / elapsedMs : 0d);
+    }
+
+    private void onProgress(long timeMs, long bytes, double speed) {
+        long now = SystemClock.elapsedRealtime();
+        Map<String, Object> event;
+        synchronized (this) {
+            /* multi-pass trims report each pass from 0; keep the media time from going back */
+            lastTimeMs = Math.max(lastTimeMs, progressOffsetMs + timeMs);
+            lastBytes = bytes;
+            lastSpeed = speed;
+            if (now - lastEventAt < PROGRESS_INTERVAL_MILLIS) {
+                return;
+            }
+            lastEventAt = now;
+            event = progressEvent("progress");
+        }
+        post(event, false);
+    }
+
+    /**
+     * Called on the worker thread once the trim has returned.
+     */
+    void onFinish(int rc) {
+        boolean wasCancelled;
+        boolean wasStarted;
+        synchronized (RUN_LOCK) {
+            if (running == this) {
+                running = null;
+            }
+            finished = true;
+            wasCancelled = cancelled;
+            wasStarted = started;
+            for (TrimJob follower : followers) {
+                follower.finished = true;
+            }
+        }
+        Map<String, Object> event;
+        synchronized (this) {
+            if (wasCancelled && wasStarted) {
+                /* a job cancelled before it started has written nothing; the files are not its own */
+                for (File output : outputs) {
+                    if (output.exists() && !output.delete()) {
+                        output.deleteOnExit();
+                    }
+                }
+            }
+            event = progressEvent(wasCancelled ? "cancelled" : "done");
+            /* a job may finish without having started, e.g. a follower leaving a shared trim */
+            long elapsedMs = startedAt > 0 ? SystemClock.elapsedRealtime() - startedAt : 0;
+            event.put("rc", rc);
+            event.put("elapsedMs", elapsedMs);
+            Object timeMs = event.get("timeMs");
+            event.put("averageSpeed", elapsedMs > 0 ? ((Number) timeMs).doubleValue() / elapsedMs : 0d);
+        }
+        post(event, true);
+    }
+
+    /**
+     * Stop listening for subscribers. Events of a job still running are dropped.
+     */
+    public void release() {
+        handler.post(() -> {
+            if (eventChannel != null) {
+                eventChannel.setStreamHandler(null);
+            }
+            eventSink = null;
+        });
+    }
+
+    private Map<String, Object> progressEvent(String eventType) {
+        long timeMs = lastTimeMs;
+        double speed = lastSpeed;
+        Map<String, Object> event = new HashMap<>();
+        event.put("handle", handle);
+        event.put("eventType", eventType);
+        event.put("timeMs", timeMs);
+        event.put("bytes", lastBytes);
+        event.put("speed", speed);
+        if (durationMs > 0) {
+            event.put("percent", Math.min(100d, timeMs * 100d / durationMs));
+            event.put("etaMs", speed > 0 ? (long) (Math.max(0, durationMs - timeMs) / speed) : null);
+        }
+        return event;
+    }
+
+    private void post(Map<String, Object> event, boolean last) {
+        for (TrimJob follower : followers) {
+            Map<String, Object> followerEvent = new HashMap<>(event);
+            followerEvent.put("handle", follower.handle);
+            follower.post(followerEvent, last);
+        }
+        handler.post(() -> {
+            EventChannel.EventSink sink = eventSink;
+            if (sink != null) {
+                sink.success(event);
+                if (last) {
+                    sink.endOfStream();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,527 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.arthenica.mobileffmpeg.FFmpeg;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Runs trims with bounded concurrency and without doing the same work twice.
+ * <p>
+ * At most {@link #getMaxConcurrency()} trims run at once, the others wait in arrival order.
+ * A trim of the same input (path, size and modification time), range, mode, engine, streams
+ * and export profile as one queued or running, to an output of the same extension, joins it
+ * instead of running again: the trim writes to the output of the first caller and is copied
+ * to the outputs of the others once done. The outputs of the last
+ * {@link #COMPLETED_CAPACITY} successful trims are remembered and reused, copied if need be,
+ * as long as they are unchanged on disk.
+ * <p>
+ * Callers waiting on a shared trim each have their own {@link TrimJob}, following the one of
+ * the trim. Cancelling one of them only lets it go; the trim is cancelled with the last one.
+ */
+public class TrimScheduler {
+
+    private static final String TAG = TrimScheduler.class.getSimpleName();
+    public static final int DEFAULT_MAX_CONCURRENCY = 2;
+    static final int COMPLETED_CAPACITY = 16;
+
+    public static final String MODE_COPY = "copy";
+    public static final String MODE_SMART = "smart";
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<Run> queue = new ArrayDeque<>();
+    private final Map<String, Run> runs = new HashMap<>();
+    private final LinkedHashMap<String, Completed> completed = new LinkedHashMap<String, Completed>(COMPLETED_CAPACITY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Completed> eldest) {
+            return size() > COMPLETED_CAPACITY;
+        }
+    };
+    private final ProbeIndex probes;
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int running;
+
+    /**
+     * @param probes where trims look their source up, may be <code>null</code>
+     */
+    public TrimScheduler(ProbeIndex probes) {
+        this.probes = probes;
+    }
+
+    /**
+     * What a trim computes; two equal requests produce the same output, in the container
+     * picked by the extension of the output.
+     */
+    public static final class Request {
+        final File src;
+        final long startMs;
+        final long endMs;
+        final String mode;
+        final String engine;
+        final String streams;
+        final ExportProfile profile;
+        final String key;
+
+        /**
+         * @param mode   {@link #MODE_COPY} or {@link #MODE_SMART}, <code>null</code> for copy
+         * @param engine the {@link TrimEngines} name of a copy, <code>null</code> for
+         *               {@link TrimEngines#AUTO}
+         */
+        public Request(@NonNull File src, long startMs, long endMs, String mode, String engine) {
+            this(src, startMs, endMs, mode, engine, null, null);
+        }
+
+        /**
+         * @param streams the {@link TrimStreams} to keep, <code>null</code> for all;
+         *                {@link TrimStreams#AUDIO} is only supported by copies
+         * @param profile what to re-encode the range to, <code>null</code> to keep the source
+         *                encoding; a transcode is frame-accurate and ignores the mode and
+         *                engine
+         */
+        public Request(@NonNull File src, long startMs, long endMs, String mode, String engine, String streams,
+                       ExportProfile profile) {
+            this.src = src;
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.streams = streams != null ? streams : TrimStreams.ALL;
+            this.profile = profile;
+            this.mode = profile != null ? null : mode != null ? mode : MODE_COPY;
+            /* smart trims and transcodes do not pick an engine */
+            this.engine = profile != null || MODE_SMART.equals(this.mode) ? null : engine != null ? engine : TrimEngines.AUTO;
+            /* a rewritten input must not match the trims of its previous content */
+            this.key = src.getAbsolutePath() + '|' + src.length() + '|' + src.lastModified()
+                    + '|' + startMs + '|' + endMs + '|' + this.mode + '|' + this.engine + '|' + this.streams
+                    + '|' + (profile != null ? profile.cacheKey() : null);
+        }
+    }
+
+    /**
+     * A caller waiting for a trim.
+     */
+    private static final class Waiter {
+        final File output;
+        final TrimJob job;
+        final MethodChannel.Result result;
+
+        Waiter(File output, TrimJob job, MethodChannel.Result result) {
+            this.output = output;
+            this.job = job;
+            this.result = result;
+        }
+    }
+
+    private static final class Run {
+        final Request request;
+        final File output;
+        final String key;
+        final TrimJob job = new TrimJob();
+        final List<Waiter> waiters = new ArrayList<>();
+        boolean started;
+        long startedAt;
+
+        Run(Request request, File output) {
+            this.request = request;
+            this.output = output;
+            this.key = key(request, output);
+        }
+    }
+
+    /**
+     * Key of <code>request</code> written to <code>output</code>: the extension of the output
+     * picks its container, so trims to different extensions are not shared.
+     */
+    static String key(Request request, File output) {
+        String name = output.getName();
+        int dot = name.lastIndexOf('.');
+        return request.key + '|' + (dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.US) : "");
+    }
+
+    private static final class Completed {
+        final File output;
+        final long length;
+        final long lastModified;
+
+        Completed(File output) {
+            this.output = output;
+            this.length = output.length();
+            this.lastModified = output.lastModified();
+        }
+
+        boolean isIntact() {
+            return output.isFile() && output.length() == length && output.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * @return the number of trims waiting for one of the running ones to finish
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of trims running
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public synchronized int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Change how many trims may run at once. Lowering it lets running trims finish.
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        synchronized (this) {
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+        }
+        startQueued();
+    }
+
+    /**
+     * Trim <code>request</code> to <code>output</code>, or reuse an identical trim.
+     *
+     * @param job    receives the progress of the trim, may be <code>null</code>
+     * @param result completed on the main thread with the FFmpeg return code, or a
+     *               <code>cancelled</code> error
+     */
+    public void submit(@NonNull Request request, @NonNull File output, TrimJob job, @NonNull MethodChannel.Result result) {
+        Waiter waiter = new Waiter(output, job, result);
+        String key = key(request, output);
+        Completed done;
+        synchronized (this) {
+            done = completed.get(key);
+            if (done != null && !done.isIntact()) {
+                completed.remove(key);
+                done = null;
+            }
+        }
+        if (done == null) {
+            schedule(request, waiter);
+        } else if (done.output.equals(output)) {
+            Log.d(TAG, "Reusing " + output);
+            finishWaiter(waiter, 0);
+        } else {
+            reuse(request, done, waiter);
+        }
+    }
+
+    /**
+     * Copy a completed output to the one of <code>waiter</code>, scheduling the trim if that
+     * fails.
+     */
+    private void reuse(final Request request, final Completed done, final Waiter waiter) {
+        BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "", BackgroundExecutor.PRIORITY_VISIBLE) {
+            @Override
+            public void execute() {
+                try {
+                    copy(done.output, waiter.output);
+                    Log.d(TAG, "Reusing " + done.output + " for " + waiter.output);
+                    finishWaiter(waiter, 0);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not reuse " + done.output, e);
+                    handler.post(() -> schedule(request, waiter));
+                }
+            }
+        });
+    }
+
+    private void schedule(Request request, Waiter waiter) {
+        synchronized (this) {
+            Run run = runs.get(key(request, waiter.output));
+            /* a run whose job has finished is only waiting for its result to be delivered */
+            if (run != null && !run.job.isFinished()) {
+                Log.d(TAG, "Joining the trim to " + run.output);
+            } else {
+                run = new Run(request, waiter.output);
+                runs.put(run.key, run);
+                queue.add(run);
+            }
+            run.waiters.add(waiter);
+            if (waiter.job != null) {
+                run.job.addFollower(waiter.job);
+            }
+        }
+        startQueued();
+    }
+
+    private void startQueued() {
+        List<Run> starting = new ArrayList<>();
+        synchronized (this) {
+            while (running < maxConcurrency && !queue.isEmpty()) {
+                Run run = queue.poll();
+                run.started = true;
+                running++;
+                starting.add(run);
+            }
+        }
+        for (Run run : starting) {
+            start(run);
+        }
+    }
+
+    private void start(final Run run) {
+        MethodChannel.Result result = new MethodChannel.Result() {
+            @Override
+            public void success(Object rc) {
+                onRunFinished(run, (Integer) rc);
+            }
+
+            @Override
+            public void error(String errorCode, String errorMessage, Object errorDetails) {
+                onRunFinished(run, FFmpeg.RETURN_CODE_CANCEL);
+            }
+
+            @Override
+            public void notImplemented() {
+                onRunFinished(run, 1);
+            }
+        };
+        run.startedAt = Metrics.start();
+        Request request = run.request;
+        if (request.profile != null) {
+            TrimVideoUtils.startTranscode(request.src, run.output, request.startMs, request.endMs, request.profile, request.streams,
+                    probes, run.job, result);
+        } else if (MODE_SMART.equals(request.mode)) {
+            TrimVideoUtils.startSmartTrim(request.src, run.output, request.startMs, request.endMs, request.streams, probes,
+                    run.job, result);
+        } else {
+            TrimVideoUtils.startTrim(request.src, run.output, request.startMs, request.endMs, request.engine, request.streams,
+                    probes, run.job, result);
+        }
+    }
+
+    private void onRunFinished(final Run run, final int rc) {
+        Metrics.record(Metrics.Stage.TRIM, run.startedAt);
+        final List<Waiter> waiters;
+        synchronized (this) {
+            running--;
+            if (runs.get(run.key) == run) {
+                runs.remove(run.key);
+            }
+            waiters = new ArrayList<>(run.waiters);
+            run.waiters.clear();
+        }
+        startQueued();
+        if (rc != 0 || run.job.isCancelled()) {
+            for (Waiter waiter : waiters) {
+                completeWaiter(waiter, rc, run.job.isCancelled());
+            }
+            return;
+        }
+        if (waiters.size() == 1 && waiters.get(0).output.equals(run.output)) {
+            remember(run);
+            completeWaiter(waiters.get(0), rc, false);
+            return;
+        }
+        /* copies of the output, off the main thread */
+        BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "", BackgroundExecutor.PRIORITY_VISIBLE) {
+            @Override
+            public void execute() {
+                deliver(run, waiters);
+            }
+        });
+    }
+
+    /**
+     * Hand the output of a shared trim to each waiter. If the caller it was written for has
+     * left, it is moved to the first waiter still there.
+     */
+    private void deliver(Run run, List<Waiter> waiters) {
+        File source = run.output;
+        boolean kept = false;
+        for (Waiter waiter : waiters) {
+            kept |= waiter.output.equals(source);
+        }
+        for (Waiter waiter : waiters) {
+            if (!waiter.output.equals(source)) {
+                try {
+                    if (!kept && move(source, waiter.output)) {
+                        source = waiter.output;
+                        kept = true;
+                    } else {
+                        copy(source, waiter.output);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not copy " + source + " to " + waiter.output, e);
+                    completeWaiter(waiter, 1, false);
+                    continue;
+                }
+            }
+            completeWaiter(waiter, 0, false);
+        }
+        if (!kept) {
+            source.delete();
+            return;
+        }
+        synchronized (this) {
+            completed.put(run.key, new Completed(source));
+        }
+    }
+
+    private synchronized void remember(Run run) {
+        if (run.output.isFile()) {
+            completed.put(run.key, new Completed(run.output));
+        }
+    }
+
+    private void completeWaiter(final Waiter waiter, final int rc, boolean cancelled) {
+        if (waiter.job != null && waiter.job.isCancelled()) {
+            cancelled = true;
+        }
+        if (cancelled) {
+            Metrics.post(handler, () -> waiter.result.error("cancelled", "the trim was cancelled", rc));
+        } else {
+            Metrics.post(handler, () -> waiter.result.success(rc));
+        }
+    }
+
+    /**
+     * Complete a waiter served without running a trim.
+     */
+    private void finishWaiter(Waiter waiter, int rc) {
+        if (waiter.job != null) {
+            waiter.job.onStart(false);
+            waiter.job.onFinish(rc);
+        }
+        completeWaiter(waiter, rc, false);
+    }
+
+    /**
+     * Cancel the trim <code>job</code> waits for, or only stop waiting if others still do.
+     *
+     * @return <code>false</code> if the job had already finished or been cancelled
+     */
+    public boolean cancel(@NonNull TrimJob job) {
+        Run run = null;
+        Waiter waiter = null;
+        boolean last;
+        synchronized (this) {
+            for (Run candidate : runs.values()) {
+                for (Waiter w : candidate.waiters) {
+                    if (w.job == job) {
+                        run = candidate;
+                        waiter = w;
+                        break;
+                    }
+                }
+                if (run != null) {
+                    break;
+                }
+            }
+            if (run == null) {
+                return job.cancel();
+            }
+            last = run.waiters.size() == 1;
+            /* the last waiter of a running trim stays, the trim reports to it when it stops */
+            if (!last || !run.started) {
+                run.waiters.remove(waiter);
+                run.job.removeFollower(job);
+                if (last) {
+                    queue.remove(run);
+                    runs.remove(run.key);
+                }
+            }
+        }
+        if (last && run.started) {
+            job.cancel();
+            return run.job.cancel();
+        }
+        if (!job.cancel()) {
+            return false;
+        }
+        job.onFinish(FFmpeg.RETURN_CODE_CANCEL);
+        completeWaiter(waiter, FFmpeg.RETURN_CODE_CANCEL, true);
+        return true;
+    }
+
+    /**
+     * Cancel everything queued or running.
+     */
+    public void cancelAll() {
+        List<TrimJob> jobs = new ArrayList<>();
+        List<Run> started = new ArrayList<>();
+        List<Waiter> dropped = new ArrayList<>();
+        synchronized (this) {
+            for (Run run : runs.values()) {
+                for (Waiter waiter : run.waiters) {
+                    if (waiter.job != null) {
+                        jobs.add(waiter.job);
+                    }
+                }
+                if (run.started) {
+                    started.add(run);
+                } else {
+                    dropped.addAll(run.waiters);
+                }
+            }
+            for (Run run : queue) {
+                if (runs.get(run.key) == run) {
+                    runs.remove(run.key);
+                }
+            }
+            queue.clear();
+        }
+        for (TrimJob job : jobs) {
+            job.cancel();
+        }
+        for (Run run : started) {
+            run.job.cancel();
+        }
+        for (Waiter waiter : dropped) {
+            if (waiter.job != null) {
+                waiter.job.onFinish(FFmpeg.RETURN_CODE_CANCEL);
+            }
+            completeWaiter(waiter, FFmpeg.RETURN_CODE_CANCEL, true);
+        }
+    }
+
+    private static boolean move(File src, File dst) {
+        dst.delete();
+        return src.renameTo(dst);
+    }
+
+    private static void copy(File src, File dst) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        try {
+            FileOutputStream out = new FileOutputStream(dst);
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel target = out.getChannel();
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            } catch (IOException e) {
+                out.close();
+                dst.delete();
+                throw e;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One <code>[startMs, endMs]</code> range of an input video and the file it is cut to.
+ */
+public class TrimSegment {
+
+    private final long startMs;
+    private final long endMs;
+    private final File output;
+
+    public TrimSegment(long startMs, long endMs, @NonNull File output) {
+        if (startMs < 0 || endMs <= startMs) {
+            throw new IllegalArgumentException("Invalid range [" + startMs + ", " + endMs + "]");
+        }
+        this.startMs = startMs;
+        this.endMs = endMs;
+        this.output = output;
+    }
+
+    /**
+     * Read a segment sent over the method channel as
+     * <code>{startMs, endMs, outputFile}</code>.
+     *
+     * @throws IllegalArgumentException if an entry is missing or the range is empty
+     */
+    public static TrimSegment fromMap(Map<?, ?> map) {
+        Object startMs = map.get("startMs");
+        Object endMs = map.get("endMs");
+        Object outputFile = map.get("outputFile");
+        if (!(startMs instanceof Number) || !(endMs instanceof Number) || !(outputFile instanceof String)) {
+            throw new IllegalArgumentException("A segment needs startMs, endMs and outputFile");
+        }
+        return new TrimSegment(((Number) startMs).longValue(), ((Number) endMs).longValue(), new File((String) outputFile));
+    }
+
+    public long getStartMs() {
+        return startMs;
+    }
+
+    public long getEndMs() {
+        return endMs;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    /**
+     * Outcome of cutting this segment, as sent back over the method channel.
+     *
+     * @param index position of the segment in the request
+     */
+    public Map<String, Object> toResult(int index, boolean success) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("index", index);
+        map.put("outputFile", output.getAbsolutePath());
+        map.put("success", success);
+        map.put("size", output.length());
+        return map;
+    }
+}
@@ -0,0 +1,37 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+/**
+ * The streams a trim keeps, by channel name.
+ */
+public final class TrimStreams {
+
+    /** The video and the audio. */
+    public static final String ALL = "all";
+    /** The video track alone, silent. */
+    public static final String VIDEO = "video";
+    /** The audio track alone. */
+    public static final String AUDIO = "audio";
+
+    private TrimStreams() {
+    }
+
+    /**
+     * Check a stream selection sent by Dart.
+     *
+     * @param name the name, <code>null</code> meaning {@link #ALL}
+     * @throws IllegalArgumentException if the selection is unknown
+     */
+    public static void checkName(String name) {
+        if (name != null && !ALL.equals(name) && !VIDEO.equals(name) && !AUDIO.equals(name)) {
+            throw new IllegalArgumentException("Unknown trim streams: " + name);
+        }
+    }
+
+    static boolean hasVideo(String streams) {
+        return !AUDIO.equals(streams);
+    }
+
+    static boolean hasAudio(String streams) {
+        return !VIDEO.equals(streams);
+    }
+}
@@ -1,25 +1,37 @@
 package app.peerwaya.video_trimmer.trimmer;
 
-import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Rect;
+import android.graphics.Matrix;
 import android.media.MediaMetadataRetriever;
-import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.arthenica.mobileffmpeg.FFmpeg;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 import io.flutter.plugin.common.MethodChannel;
 
 public class TrimVideoUtils {
 
     private static final String TAG = TrimVideoUtils.class.getSimpleName();
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
 
     public static  byte[] extractThumbnailWithResult(MethodChannel.Result result, @NonNull File src) throws IOException {
         FileInputStream fis = null;
@@ -46,22 +58,46 @@ public class TrimVideoUtils {
 
     }
 
-    public static Bitmap extractThumbnail(Context context, Uri videoUri, long interval, int frameWidth, int frameHeight) {
-        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-        mediaMetadataRetriever.setDataSource(context, videoUri);
-        Bitmap bitmap = mediaMetadataRetriever.getFrameAtTime(interval, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+    public static Bitmap extractThumbnail(MediaMetadataRetriever mediaMetadataRetriever, long interval, int frameWidth, int frameHeight) {
+        return extractThumbnail(mediaMetadataRetriever, getVideoSize(mediaMetadataRetriever), interval, frameWidth, frameHeight);
+    }
+
+    /**
+     * Extract a <code>frameWidth</code> x <code>frameHeight</code> tile that covers the frame at
+     * <code>interval</code> (center-cropped, aspect ratio preserved).
+     * <p>
+     * On API 27+ the decoder is asked for a frame already scaled to the cover size, so the
+     * full-resolution frame is never materialized. Older platforms decode the full frame and
+     * point-sample the visible region straight into the tile.
+     *
+     * @param videoSize the displayed video size as returned by {@link #getVideoSize}, or
+     *                  <code>null</code> if unknown
+     */
+    public static Bitmap extractThumbnail(MediaMetadataRetriever mediaMetadataRetriever, int[] videoSize, long interval, int frameWidth, int frameHeight) {
+        long start = Metrics.start();
+        Bitmap bitmap = null;
+        boolean filter = false;
+        if (videoSize != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            float scale = Math.max((float) frameWidth / videoSize[0], (float) frameHeight / videoSize[1]);
+            if (scale < 1f) {
+                int dstWidth = Math.max(frameWidth, (int) Math.ceil(videoSize[0] * scale));
+                int dstHeight = Math.max(frameHeight, (int) Math.ceil(videoSize[1] * scale));
+                bitmap = mediaMetadataRetriever.getScaledFrameAtTime(interval, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, dstWidth, dstHeight);
+                filter = true;
+            }
+        }
+        if (bitmap == null) {
+            bitmap = mediaMetadataRetriever.getFrameAtTime(interval, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            filter = false;
+        }
+        Metrics.record(Metrics.Stage.GET_FRAME, start);
         if (bitmap != null) {
-            Bitmap result = Bitmap.createBitmap(frameWidth, frameHeight, bitmap.getConfig());
-            Canvas canvas = new Canvas(result);
-            float scaleX = (float) frameWidth / (float) bitmap.getWidth();
-            float scaleY = (float) frameHeight / (float) bitmap.getHeight();
-            float scale = scaleX > scaleY ? scaleX : scaleY;
-            int w = (int) (bitmap.getWidth() * scale);
-            int h = (int) (bitmap.getHeight() * scale);
-            Rect srcRect = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
-            Rect destRect = new Rect((frameWidth - w) / 2, (frameHeight - h) / 2, w, h);
-            canvas.drawBitmap(bitmap, srcRect, destRect, null);
-            bitmap.recycle();
+            start = Metrics.start();
+            Bitmap result = centerCrop(bitmap, frameWidth, frameHeight, filter);
+            Metrics.record(Metrics.Stage.SCALE, start);
+            if (result != bitmap) {
+                bitmap.recycle();
+            }
             bitmap = result;
         } else {
             bitmap = Bitmap.createBitmap(frameWidth, frameHeight, Bitmap.Config.ARGB_8888);
@@ -69,47 +105,469 @@ public class TrimVideoUtils {
         return bitmap;
     }
 
+    /**
+     * Displayed size of the source video (rotation applied), as <code>{width, height}</code>.
+     *
+     * @return the size, or <code>null</code> if the container does not report it
+     */
+    public static int[] getVideoSize(MediaMetadataRetriever mediaMetadataRetriever) {
+        try {
+            int width = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            int height = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+            String rotation = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                    ? mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION) : null;
+            if ("90".equals(rotation) || "270".equals(rotation)) {
+                return new int[]{height, width};
+            }
+            return new int[]{width, height};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Rotation tag of the video track of <code>src</code>.
+     *
+     * @return the rotation in degrees, 0 if unknown
+     */
+    static int getRotation(File src) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(src.getAbsolutePath());
+            String rotation = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                    ? retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION) : null;
+            return rotation != null ? Integer.parseInt(rotation) : 0;
+        } catch (RuntimeException e) {
+            return 0;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    /**
+     * Scale and crop <code>src</code> so it covers a <code>width</code> x <code>height</code>
+     * tile, keeping the center. Only the visible region of the source is sampled; large
+     * reductions are point-sampled unless <code>filter</code> is set.
+     *
+     * @return a new tile-sized bitmap, or <code>src</code> itself if it already has the tile size
+     */
+    private static Bitmap centerCrop(Bitmap src, int width, int height, boolean filter) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        if (srcWidth == width && srcHeight == height) {
+            return src;
+        }
+        float scale = Math.max((float) width / srcWidth, (float) height / srcHeight);
+        filter |= scale > 0.5f;
+        int cropWidth = Math.min(srcWidth, Math.max(1, Math.round(width / scale)));
+        int cropHeight = Math.min(srcHeight, Math.max(1, Math.round(height / scale)));
+        Matrix matrix = new Matrix();
+        matrix.setScale((float) width / cropWidth, (float) height / cropHeight);
+        Bitmap tile = Bitmap.createBitmap(src, (srcWidth - cropWidth) / 2, (srcHeight - cropHeight) / 2, cropWidth, cropHeight, matrix, filter);
+        if (tile.getWidth() != width || tile.getHeight() != height) {
+            /* matrix rounding can leave the tile a pixel off */
+            Bitmap exact = Bitmap.createScaledBitmap(tile, width, height, filter);
+            if (exact != tile && tile != src) {
+                tile.recycle();
+            }
+            tile = exact;
+        }
+        return tile;
+    }
+
+    /**
+     * Time of the <code>index</code>-th of <code>count</code> thumbnails spread evenly over
+     * <code>[startMs, endMs]</code>, both ends included.
+     *
+     * @return the frame time, in microseconds
+     */
+    public static long thumbnailTimeUs(long startMs, long endMs, int count, int index) {
+        if (count <= 1) {
+            return startMs * 1000;
+        }
+        return startMs * 1000 + (endMs - startMs) * 1000 * index / (count - 1);
+    }
+
     public static void startTrim(@NonNull File src, @NonNull File dst, long startMs, long endMs, MethodChannel.Result result) {
-        String start = convertSecondsToTime(startMs / 1000);
-        String duration = convertSecondsToTime((endMs - startMs) / 1000);
+        startTrim(src, dst, startMs, endMs, null, null, null, result);
+    }
+
+    public static void startTrim(@NonNull final File src, @NonNull final File dst, final long startMs, final long endMs,
+                                 final String engine, final ProbeIndex probes, final TrimJob job, final MethodChannel.Result result) {
+        startTrim(src, dst, startMs, endMs, engine, null, probes, job, result);
+    }
+
+    /**
+     * Stream-copy trim with the given engine. Engines running FFmpeg go through its serial
+     * executor, the others run on the {@link BackgroundExecutor}.
+     *
+     * @param engine a {@link TrimEngines} name, <code>null</code> for
+     *               {@link TrimEngines#AUTO}; must have passed {@link TrimEngines#checkName}
+     * @param streams the {@link TrimStreams} to keep, <code>null</code> for
+     *                {@link TrimStreams#ALL}
+     * @param probes where the source is looked up to pick the engine, clamp the range to the
+     *               duration and size the progress to the key frame the cut starts at; may be
+     *               <code>null</code>
+     * @param job    reports the progress of the trim, may be <code>null</code>
+     */
+    public static void startTrim(@NonNull final File src, @NonNull final File dst, final long startMs, final long endMs,
+                                 final String engine, String streams, final ProbeIndex probes, final TrimJob job,
+                                 final MethodChannel.Result result) {
+        final String kept = streams != null ? streams : TrimStreams.ALL;
+        if (job != null) {
+            job.setDurationMs(endMs - startMs);
+            job.setOutputs(Collections.singletonList(dst));
+        }
+        if (TrimEngines.FFMPEG.equals(engine) && probes == null) {
+            /* no need to look at the input */
+            startFFmpegTrim(src, dst, startMs, endMs, TrimEngines.select(engine, src), kept, job, result);
+            return;
+        }
+        BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "", BackgroundExecutor.PRIORITY_VISIBLE) {
+            @Override
+            public void execute() {
+                final VideoProbe probe = probes != null ? probes.find(src) : null;
+                final long end = clampEndMs(probe, endMs);
+                if (job != null && probe != null && TrimStreams.hasVideo(kept)) {
+                    /* the copy starts at the key frame at or before startMs */
+                    long keyFrameUs = probe.previousKeyFrameUs(startMs * 1000);
+                    job.setDurationMs(end - (keyFrameUs >= 0 ? Math.min(startMs, keyFrameUs / 1000) : startMs));
+                }
+                final TrimEngine selected = TrimEngines.select(engine, src, dst, probe, kept);
+                if (selected.usesFFmpeg()) {
+                    /* AsyncTask must be started from the main thread */
+                    MAIN_HANDLER.post(() -> startFFmpegTrim(src, dst, startMs, end, selected, kept, job, result));
+                    return;
+                }
+                int rc;
+                if (job != null && !job.onStart(false)) {
+                    rc = FFmpeg.RETURN_CODE_CANCEL;
+                } else {
+                    rc = trim(selected, src, dst, startMs, end, kept, job);
+                }
+                if (job != null) {
+                    job.onFinish(rc);
+                }
+                final int code = rc;
+                if (job != null && job.isCancelled()) {
+                    MAIN_HANDLER.post(() -> result.error("cancelled", "the trim was cancelled", code));
+                } else {
+                    MAIN_HANDLER.post(() -> result.success(code));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return <code>endMs</code>, clamped to the duration of the source if it is known
+     */
+    static long clampEndMs(VideoProbe probe, long endMs) {
+        return probe != null && probe.getDurationMs() > 0 ? Math.min(endMs, probe.getDurationMs()) : endMs;
+    }
+
+    /**
+     * Run an FFmpeg engine on FFmpeg's serial executor.
+     */
+    private static void startFFmpegTrim(final File src, final File dst, final long startMs, final long endMs,
+                                        final TrimEngine engine, final String streams, final TrimJob job, MethodChannel.Result result) {
+        FlutterFFmpegExecuteAsyncArgumentsTask task = new FlutterFFmpegExecuteAsyncArgumentsTask(null, job, result) {
+            @Override
+            protected int run() {
+                return trim(engine, src, dst, startMs, endMs, streams, job);
+            }
+        };
+        task.execute("dummy-trigger");
+    }
+
+    /**
+     * Run an engine on the calling thread.
+     *
+     * @return the engine's return code, 1 if it threw
+     */
+    static int trim(TrimEngine engine, File src, File dst, long startMs, long endMs, String streams, TrimJob job) {
+        try {
+            return engine.trim(src, dst, startMs, endMs, streams, job);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, engine.getName() + " trim of " + src + " failed", e);
+            return 1;
+        }
+    }
+
+    /**
+     * Frame-accurate trim: only the partial GOPs at both ends of the range are re-encoded, the
+     * rest is stream-copied. See {@link SmartTrimmer}.
+     *
+     * @param streams {@link TrimStreams#ALL} or {@link TrimStreams#VIDEO}, <code>null</code> for
+     *                all
+     * @param probes  where the key frames of the source are looked up, may be <code>null</code>
+     * @param job     reports the progress of the trim, may be <code>null</code>
+     */
+    public static void startSmartTrim(@NonNull final File src, @NonNull final File dst, final long startMs, final long endMs,
+                                      final String streams, final ProbeIndex probes, final TrimJob job, MethodChannel.Result result) {
+        if (job != null) {
+            job.setDurationMs(endMs - startMs);
+            job.setOutputs(Collections.singletonList(dst));
+        }
+        FlutterFFmpegExecuteAsyncArgumentsTask task = new FlutterFFmpegExecuteAsyncArgumentsTask(null, job, result) {
+            @Override
+            protected int run() {
+                VideoProbe probe = probes != null ? probes.find(src) : null;
+                long end = clampEndMs(probe, endMs);
+                if (job != null) {
+                    job.setDurationMs(end - startMs);
+                }
+                return SmartTrimmer.trim(src, dst, startMs, end, streams, probe, job);
+            }
+        };
+        task.execute("dummy-trigger");
+    }
+
+    /**
+     * Trim <code>[startMs, endMs)</code> of <code>src</code> frame-accurately, re-encoding it
+     * to <code>profile</code>. See {@link Transcoder}.
+     *
+     * @param streams {@link TrimStreams#ALL} or {@link TrimStreams#VIDEO}, <code>null</code> for
+     *                all
+     * @param probes  where the source is looked up
+     * @param job     reports the progress of the transcode, may be <code>null</code>
+     */
+    public static void startTranscode(@NonNull final File src, @NonNull final File dst, final long startMs, final long endMs,
+                                      @NonNull final ExportProfile profile, final String streams, @NonNull final ProbeIndex probes,
+                                      final TrimJob job, MethodChannel.Result result) {
+        if (job != null) {
+            job.setDurationMs(endMs - startMs);
+            job.setOutputs(Collections.singletonList(dst));
+        }
+        FlutterFFmpegExecuteAsyncArgumentsTask task = new FlutterFFmpegExecuteAsyncArgumentsTask(null, job, result) {
+            @Override
+            protected int run() {
+                VideoProbe probe = probes.find(src);
+                long end = clampEndMs(probe, endMs);
+                if (job != null) {
+                    job.setDurationMs(end - startMs);
+                }
+                return Transcoder.transcode(src, dst, startMs, end, profile, streams, probe, job);
+            }
+        };
+        task.execute("dummy-trigger");
+    }
+
+    /**
+     * Join <code>inputs</code> end to end into <code>dst</code>, by stream copy when they
+     * match and re-encoding otherwise. See {@link VideoConcatenator}.
+     *
+     * @param probes where the inputs are looked up
+     * @param job    reports the progress of the concatenation, may be <code>null</code>
+     */
+    public static void startConcat(@NonNull final List<File> inputs, @NonNull final File dst, @NonNull final ProbeIndex probes,
+                                   final TrimJob job, MethodChannel.Result result) {
+        if (job != null) {
+            job.setOutputs(Collections.singletonList(dst));
+        }
+        FlutterFFmpegExecuteAsyncArgumentsTask task = new FlutterFFmpegExecuteAsyncArgumentsTask(null, job, result) {
+            @Override
+            protected int run() {
+                return VideoConcatenator.concat(inputs, dst, probes, job);
+            }
+        };
+        task.execute("dummy-trigger");
+    }
+
+    /**
+     * ffmpeg arguments of a key frame aligned, stream-copied trim. The range is passed to the
+     * millisecond, so the cut is the one {@link MuxerTrimEngine} makes: from the key frame at
+     * or before <code>startMs</code> to <code>endMs</code>.
+     */
+    static String[] copyArguments(@NonNull File src, @NonNull File dst, long startMs, long endMs) {
+        return copyArguments(src, dst, startMs, endMs, TrimStreams.ALL);
+    }
+
+    /**
+     * Like {@link #copyArguments(File, File, long, long)}, keeping only <code>streams</code>:
+     * the other streams are not demuxed at all.
+     */
+    static String[] copyArguments(@NonNull File src, @NonNull File dst, long startMs, long endMs, String streams) {
+        String start = formatSeconds(startMs);
+        String duration = formatSeconds(endMs - startMs);
         // String cmd = "-ss " + start + " -t " + duration + " -accurate_seek" + " -i " + src.getAbsolutePath() + " -codec copy -avoid_negative_ts 1 " + dst.getAbsolutePath();
         // Log.d(TAG, String.format("FFmpeg command: %s", cmd));
-        String[] commands = new String[]{ "-ss", start,"-t",duration,"-accurate_seek","-i",src.getAbsolutePath(),"-codec", "copy", "-avoid_negative_ts", "1",dst.getAbsolutePath()};
-        // Log.d(TAG, String.format("FFmpeg command: %s", commands));
-        FlutterFFmpegExecuteAsyncArgumentsTask task = new FlutterFFmpegExecuteAsyncArgumentsTask(commands, result);
+        if (TrimStreams.AUDIO.equals(streams)) {
+            return new String[]{ "-ss", start,"-t",duration,"-accurate_seek","-i",src.getAbsolutePath(),"-map", "0:a:0", "-codec", "copy", "-avoid_negative_ts", "1",dst.getAbsolutePath()};
+        }
+        if (TrimStreams.VIDEO.equals(streams)) {
+            return new String[]{ "-ss", start,"-t",duration,"-accurate_seek","-i",src.getAbsolutePath(),"-map", "0:v:0", "-codec", "copy", "-avoid_negative_ts", "1",dst.getAbsolutePath()};
+        }
+        return new String[]{ "-ss", start,"-t",duration,"-accurate_seek","-i",src.getAbsolutePath(),"-codec", "copy", "-avoid_negative_ts", "1",dst.getAbsolutePath()};
+    }
+
+    /**
+     * Cut several ranges of <code>src</code> in a single ffmpeg run: the input is opened,
+     * probed and demuxed once and every segment is written as its own output.
+     * <p>
+     * Like {@link #startTrim}, each segment starts at the key frame at or before its
+     * <code>startMs</code>, found in the probe of <code>src</code>, the audio with it; ranges
+     * may overlap and come in any order.
+     * <p>
+     * <code>result</code> receives one {@link TrimSegment#toResult} map per segment, in request
+     * order. A segment succeeded if ffmpeg exited cleanly and its output is not empty.
+     *
+     * @param probes where the key frames of <code>src</code> are looked up, may be
+     *               <code>null</code>
+     * @param job    reports the progress of the run, may be <code>null</code>
+     */
+    public static void startTrimSegments(@NonNull final File src, @NonNull final List<TrimSegment> segments, final ProbeIndex probes,
+                                         final TrimJob job, final MethodChannel.Result result) {
+        if (probes == null) {
+            runTrimSegments(src, segments, null, job, result);
+            return;
+        }
+        BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "", BackgroundExecutor.PRIORITY_VISIBLE) {
+            @Override
+            public void execute() {
+                final VideoProbe probe = probes.find(src);
+                /* AsyncTask must be started from the main thread */
+                MAIN_HANDLER.post(() -> runTrimSegments(src, segments, probe, job, result));
+            }
+        });
+    }
+
+    /**
+     * ffmpeg arguments cutting <code>segments</code> of <code>src</code> in one run. Each
+     * output seeks to the key frame at or before its start in <code>probe</code>, a
+     * millisecond early so that the key frame itself is kept; without a key frame table it
+     * seeks to the start, and the video then begins at the key frame after it.
+     *
+     * @param probe the probe of <code>src</code>, may be <code>null</code>
+     */
+    static String[] segmentArguments(@NonNull File src, @NonNull List<TrimSegment> segments, VideoProbe probe) {
+        List<String> commands = new ArrayList<>();
+        commands.add("-i");
+        commands.add(src.getAbsolutePath());
+        for (TrimSegment segment : segments) {
+            long startUs = segment.getStartMs() * 1000;
+            long keyFrameUs = probe != null ? probe.previousKeyFrameUs(startUs) : -1;
+            if (keyFrameUs >= 0 && keyFrameUs <= startUs) {
+                startUs = Math.max(0, keyFrameUs - 1000);
+            }
+            commands.add("-map");
+            commands.add("0");
+            commands.add("-ss");
+            commands.add(formatMicros(startUs));
+            commands.add("-to");
+            commands.add(formatSeconds(segment.getEndMs()));
+            commands.add("-codec");
+            commands.add("copy");
+            commands.add("-avoid_negative_ts");
+            commands.add("1");
+            commands.add(segment.getOutput().getAbsolutePath());
+        }
+        return commands.toArray(new String[0]);
+    }
+
+    private static void runTrimSegments(File src, final List<TrimSegment> segments, VideoProbe probe, TrimJob job,
+                                        final MethodChannel.Result result) {
+        List<File> outputs = new ArrayList<>();
+        long durationMs = 0;
+        for (TrimSegment segment : segments) {
+            /* the input is read from its start up to the last segment end */
+            durationMs = Math.max(durationMs, segment.getEndMs());
+            outputs.add(segment.getOutput());
+        }
+        if (job != null) {
+            job.setDurationMs(durationMs);
+            job.setOutputs(outputs);
+        }
+        FlutterFFmpegExecuteAsyncArgumentsTask task = new FlutterFFmpegExecuteAsyncArgumentsTask(segmentArguments(src, segments, probe), job, new MethodChannel.Result() {
+            @Override
+            public void success(Object rc) {
+                List<Map<String, Object>> results = new ArrayList<>();
+                for (int i = 0; i < segments.size(); i++) {
+                    TrimSegment segment = segments.get(i);
+                    results.add(segment.toResult(i, Integer.valueOf(0).equals(rc) && segment.getOutput().length() > 0));
+                }
+                result.success(results);
+            }
+
+            @Override
+            public void error(String errorCode, String errorMessage, Object errorDetails) {
+                result.error(errorCode, errorMessage, errorDetails);
+            }
+
+            @Override
+            public void notImplemented() {
+                result.notImplemented();
+            }
+        });
         task.execute("dummy-trigger");
     }
 
-    private static String convertSecondsToTime(long seconds) {
-        String timeStr = null;
-        int hour = 0;
-        int minute = 0;
-        int second = 0;
-        if (seconds <= 0) {
-            return "00:00";
-        } else {
-            minute = (int) seconds / 60;
-            if (minute < 60) {
-                second = (int) seconds % 60;
-                timeStr = "00:" + unitFormat(minute) + ":" + unitFormat(second);
-            } else {
-                hour = minute / 60;
-                if (hour > 99) return "99:59:59";
-                minute = minute % 60;
-                second = (int) (seconds - hour * 3600 - minute * 60);
-                timeStr = unitFormat(hour) + ":" + unitFormat(minute) + ":" + unitFormat(second);
+    /**
+     * Run FFmpeg on the calling thread, as one step of a job made of several.
+     *
+     * @param job polled for cancellation before the run, may be <code>null</code>
+     * @return the FFmpeg return code
+     * @throws CancellationException if the job is cancelled before or during the run
+     */
+    static int runFFmpeg(TrimJob job, String... arguments) {
+        if (job != null && job.isCancelled()) {
+            throw new CancellationException();
+        }
+        Log.d(FlutterFFmpegExecuteAsyncArgumentsTask.LIBRARY_NAME, String.format("Running FFmpeg with arguments: %s.", Arrays.toString(arguments)));
+        long start = Metrics.start();
+        int rc = FFmpeg.execute(arguments);
+        Metrics.record(Metrics.Stage.FFMPEG, start);
+        if (rc == FFmpeg.RETURN_CODE_CANCEL) {
+            throw new CancellationException();
+        }
+        return rc;
+    }
+
+    /**
+     * Write an input list for the FFmpeg concat demuxer.
+     *
+     * @return <code>list</code>
+     */
+    static File writeConcatList(File list, List<File> files) throws IOException {
+        Writer writer = new FileWriter(list);
+        try {
+            for (File file : files) {
+                writer.write("file '" + file.getAbsolutePath().replace("'", "'\\''") + "'\n");
             }
+        } finally {
+            writer.close();
         }
-        return timeStr;
+        return list;
     }
 
-    private static String unitFormat(int i) {
-        String retStr = null;
-        if (i >= 0 && i < 10) {
-            retStr = "0" + Integer.toString(i);
-        } else {
-            retStr = "" + i;
+    /**
+     * Delete a directory of intermediate files and its content.
+     */
+    static void deleteParts(File parts) {
+        File[] files = parts.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
         }
-        return retStr;
+        //noinspection ResultOfMethodCallIgnored
+        parts.delete();
+    }
+
+    /**
+     * ffmpeg duration with microsecond precision, e.g. <code>12.345678</code>
+     */
+    static String formatMicros(long us) {
+        return String.format(Locale.US, "%d.%06d", us / 1000000, us % 1000000);
+    }
+
+    /**
+     * ffmpeg duration with millisecond precision, e.g. <code>12.345</code>
+     */
+    private static String formatSeconds(long ms) {
+        return String.format(Locale.US, "%d.%03d", ms / 1000, ms % 1000);
     }
 }
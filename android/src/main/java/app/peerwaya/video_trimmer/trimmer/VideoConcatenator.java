@@ -0,0 +1,217 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.arthenica.mobileffmpeg.FFmpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Joins clips end to end into one MP4.
+ * <p>
+ * Clips whose streams match (same codecs, video size, rotation, codec parameter sets and
+ * audio layout) are joined by stream copy with the concat demuxer. Otherwise every clip is
+ * brought to the format of the first one: its video is re-encoded to H.264 at the first
+ * clip's size and orientation with {@link VideoReencoder} (mobile-ffmpeg-min has no H.264
+ * encoder) and its audio to AAC, silence standing in for missing audio, before the same
+ * concatenation. A clip of another rotation is turned to the first clip's, and one of
+ * another aspect ratio is letterboxed in black: a portrait clip joined to a landscape one
+ * shows between pillars.
+ */
+final class VideoConcatenator {
+
+    private static final String TAG = VideoConcatenator.class.getSimpleName();
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final String AUDIO_LAYOUT = "stereo";
+
+    private VideoConcatenator() {
+    }
+
+    /**
+     * Concatenate synchronously; runs on the FFmpeg thread.
+     *
+     * @param probes where the inputs are looked up
+     * @param job    told the progress, polled for cancellation between steps; may be
+     *               <code>null</code>
+     * @return an FFmpeg return code: 0 on success, {@link FFmpeg#RETURN_CODE_CANCEL} if
+     * cancelled
+     */
+    static int concat(List<File> inputs, File dst, ProbeIndex probes, TrimJob job) {
+        List<VideoProbe> clips = new ArrayList<>();
+        long durationMs = 0;
+        for (File input : inputs) {
+            VideoProbe probe = probes.find(input);
+            if (probe == null || probe.getVideoMime() == null) {
+                Log.w(TAG, "No video in " + input);
+                return 1;
+            }
+            clips.add(probe);
+            durationMs += probe.getDurationMs();
+        }
+        if (job != null) {
+            job.setDurationMs(durationMs);
+        }
+        File parts = new File(dst.getParentFile(), "." + dst.getName() + ".parts");
+        if (!parts.isDirectory() && !parts.mkdirs()) {
+            Log.w(TAG, "Could not create " + parts);
+            return 1;
+        }
+        try {
+            if (canCopy(inputs, clips)) {
+                File list = TrimVideoUtils.writeConcatList(new File(parts, "inputs.txt"), inputs);
+                return TrimVideoUtils.runFFmpeg(job, "-f", "concat", "-safe", "0", "-i", list.getAbsolutePath(),
+                        "-map", "0:v:0", "-map", "0:a:0?", "-codec", "copy",
+                        "-metadata:s:v:0", "rotate=" + clips.get(0).getRotation(), dst.getAbsolutePath());
+            }
+            if (!VideoReencoder.isSupported()) {
+                Log.w(TAG, "The clips differ and re-encoding needs API 18");
+                return 1;
+            }
+            Log.d(TAG, "The clips differ, re-encoding them");
+            return reencode(inputs, clips, dst, parts, job);
+        } catch (CancellationException e) {
+            return FFmpeg.RETURN_CODE_CANCEL;
+        } catch (IOException | IllegalStateException e) {
+            Log.w(TAG, "Concatenation to " + dst + " failed", e);
+            return 1;
+        } finally {
+            TrimVideoUtils.deleteParts(parts);
+        }
+    }
+
+    private static int reencode(List<File> inputs, List<VideoProbe> clips, File dst, File parts, TrimJob job) throws IOException {
+        VideoProbe first = clips.get(0);
+        VideoProbe.Track firstVideo = first.getVideoTrack();
+        boolean audio = false;
+        for (VideoProbe clip : clips) {
+            audio |= clip.getAudioTrack() != null;
+        }
+        List<File> pieces = new ArrayList<>();
+        long offsetMs = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            File input = inputs.get(i);
+            VideoProbe clip = clips.get(i);
+            File video = new File(parts, i + ".mp4");
+            File piece = new File(parts, i + ".ts");
+            if (job != null) {
+                job.setProgressOffsetMs(offsetMs);
+            }
+            /* the output carries the first clip's rotation tag: turn the picture by the difference */
+            VideoReencoder.reencode(input, 0, Long.MAX_VALUE, firstVideo.width, firstVideo.height,
+                    clip.getRotation() - first.getRotation(), 0, 0, video, job);
+
+            List<String> arguments = new ArrayList<>();
+            arguments.add("-i");
+            arguments.add(video.getAbsolutePath());
+            if (audio && clip.getAudioTrack() == null) {
+                arguments.add("-f");
+                arguments.add("lavfi");
+                arguments.add("-t");
+                arguments.add(TrimVideoUtils.formatMicros(clip.getDurationMs() * 1000));
+                arguments.add("-i");
+                arguments.add("anullsrc=r=" + AUDIO_SAMPLE_RATE + ":cl=" + AUDIO_LAYOUT);
+            } else if (audio) {
+                arguments.add("-i");
+                arguments.add(input.getAbsolutePath());
+            }
+            arguments.add("-map");
+            arguments.add("0:v:0");
+            if (audio) {
+                arguments.add("-map");
+                arguments.add("1:a:0");
+                arguments.add("-c:a");
+                arguments.add("aac");
+                arguments.add("-ar");
+                arguments.add(String.valueOf(AUDIO_SAMPLE_RATE));
+                arguments.add("-ac");
+                arguments.add("2");
+                arguments.add("-shortest");
+            }
+            arguments.add("-c:v");
+            arguments.add("copy");
+            arguments.add("-bsf:v");
+            arguments.add("h264_mp4toannexb");
+            arguments.add("-f");
+            arguments.add("mpegts");
+            arguments.add(piece.getAbsolutePath());
+            int rc = TrimVideoUtils.runFFmpeg(job, arguments.toArray(new String[0]));
+            if (rc != 0) {
+                return rc;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            video.delete();
+            pieces.add(piece);
+            offsetMs += clip.getDurationMs();
+        }
+        if (job != null) {
+            job.setProgressOffsetMs(0);
+        }
+        File list = TrimVideoUtils.writeConcatList(new File(parts, "pieces.txt"), pieces);
+        return TrimVideoUtils.runFFmpeg(job, "-f", "concat", "-safe", "0", "-i", list.getAbsolutePath(),
+                "-map", "0", "-codec", "copy", "-bsf:a", "aac_adtstoasc",
+                "-metadata:s:v:0", "rotate=" + first.getRotation(), dst.getAbsolutePath());
+    }
+
+    /**
+     * Whether the clips can be joined by stream copy: their video and audio tracks match in
+     * codec and parameters, down to the codec specific data.
+     */
+    private static boolean canCopy(List<File> inputs, List<VideoProbe> clips) throws IOException {
+        VideoProbe first = clips.get(0);
+        for (VideoProbe clip : clips) {
+            if (clip.getRotation() != first.getRotation()
+                    || !sameVideo(first.getVideoTrack(), clip.getVideoTrack())
+                    || !sameAudio(first.getAudioTrack(), clip.getAudioTrack())) {
+                return false;
+            }
+        }
+        if (clips.size() == 1) {
+            return true;
+        }
+        ByteBuffer[] parameterSets = parameterSets(inputs.get(0));
+        for (int i = 1; i < inputs.size(); i++) {
+            ByteBuffer[] other = parameterSets(inputs.get(i));
+            for (int j = 0; j < parameterSets.length; j++) {
+                if (parameterSets[j] == null ? other[j] != null : !parameterSets[j].equals(other[j])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameVideo(VideoProbe.Track a, VideoProbe.Track b) {
+        return a.mime.equals(b.mime) && a.width == b.width && a.height == b.height;
+    }
+
+    private static boolean sameAudio(VideoProbe.Track a, VideoProbe.Track b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.mime.equals(b.mime) && a.sampleRate == b.sampleRate && a.channelCount == b.channelCount;
+    }
+
+    /**
+     * The codec specific data of the video track: SPS and PPS for H.264.
+     */
+    private static ByteBuffer[] parameterSets(File input) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(input.getAbsolutePath());
+            int track = VideoReencoder.findVideoTrack(extractor);
+            MediaFormat format = extractor.getTrackFormat(track);
+            return new ByteBuffer[]{
+                    format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null,
+                    format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null};
+        } finally {
+            extractor.release();
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Facts about a video source that trims and thumbnails need: duration, rotation, frame rate,
+ * the formats of its tracks and the presentation times of every sync sample (key frame) of its
+ * video track.
+ * <p>
+ * Computed by {@link #probe} in one sequential pass over the video samples, and cached by
+ * {@link ProbeIndex}.
+ */
+public final class VideoProbe {
+
+    /* bumped whenever the serialized layout changes */
+    static final int VERSION = 1;
+
+    private final long durationUs;
+    private final int width;
+    private final int height;
+    private final int rotation;
+    private final float frameRate;
+    private final int videoTrack;
+    private final List<Track> tracks;
+    private final long[] keyFramesUs;
+
+    /**
+     * Format of one track of the source. Fields that do not apply to the kind of track, or
+     * that the container does not report, are 0.
+     */
+    public static final class Track {
+        final String mime;
+        final String language;
+        final long durationUs;
+        final int width;
+        final int height;
+        final float frameRate;
+        final int sampleRate;
+        final int channelCount;
+        final int bitRate;
+
+        Track(String mime, String language, long durationUs, int width, int height, float frameRate,
+              int sampleRate, int channelCount, int bitRate) {
+            this.mime = mime;
+            this.language = language;
+            this.durationUs = durationUs;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.bitRate = bitRate;
+        }
+
+        static Track of(MediaFormat format) {
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            return new Track(mime != null ? mime : "",
+                    format.containsKey(MediaFormat.KEY_LANGUAGE) ? format.getString(MediaFormat.KEY_LANGUAGE) : "",
+                    format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0,
+                    getInt(format, MediaFormat.KEY_WIDTH),
+                    getInt(format, MediaFormat.KEY_HEIGHT),
+                    getFrameRate(format),
+                    getInt(format, MediaFormat.KEY_SAMPLE_RATE),
+                    getInt(format, MediaFormat.KEY_CHANNEL_COUNT),
+                    getInt(format, MediaFormat.KEY_BIT_RATE));
+        }
+
+        public String getMime() {
+            return mime;
+        }
+
+        public boolean isVideo() {
+            return mime.startsWith("video/");
+        }
+
+        public boolean isAudio() {
+            return mime.startsWith("audio/");
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("mime", mime);
+            map.put("language", language.isEmpty() ? null : language);
+            map.put("durationMs", durationUs / 1000);
+            if (isVideo()) {
+                map.put("width", width);
+                map.put("height", height);
+                map.put("frameRate", (double) frameRate);
+            } else if (isAudio()) {
+                map.put("sampleRate", sampleRate);
+                map.put("channelCount", channelCount);
+            }
+            map.put("bitRate", bitRate > 0 ? bitRate : null);
+            return map;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(mime);
+            out.writeUTF(language);
+            out.writeLong(durationUs);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeFloat(frameRate);
+            out.writeInt(sampleRate);
+            out.writeInt(channelCount);
+            out.writeInt(bitRate);
+        }
+
+        static Track readFrom(DataInputStream in) throws IOException {
+            return new Track(in.readUTF(), in.readUTF(), in.readLong(), in.readInt(), in.readInt(), in.readFloat(),
+                    in.readInt(), in.readInt(), in.readInt());
+        }
+    }
+
+    VideoProbe(long durationUs, int width, int height, int rotation, float frameRate, int videoTrack,
+               List<Track> tracks, long[] keyFramesUs) {
+        this.durationUs = durationUs;
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.frameRate = frameRate;
+        this.videoTrack = videoTrack;
+        this.tracks = tracks;
+        this.keyFramesUs = keyFramesUs;
+    }
+
+    /**
+     * Probe <code>uri</code>. Reads the whole video track, so call this off the main thread.
+     *
+     * @throws IOException if the source cannot be read
+     */
+    public static VideoProbe probe(Context context, Uri uri) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, uri, null);
+            List<Track> tracks = new ArrayList<>();
+            long durationUs = 0;
+            int videoTrack = -1;
+            MediaFormat videoFormat = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                Track track = Track.of(format);
+                tracks.add(track);
+                durationUs = Math.max(durationUs, track.durationUs);
+                if (videoTrack < 0 && track.isVideo()) {
+                    videoTrack = i;
+                    videoFormat = format;
+                }
+            }
+            if (videoTrack < 0) {
+                return new VideoProbe(durationUs, 0, 0, 0, 0, -1, tracks, new long[0]);
+            }
+
+            /* the sync sample table: one pass over the video samples, without reading them */
+            extractor.selectTrack(videoTrack);
+            long[] keyFrames = new long[64];
+            int keyFrameCount = 0;
+            int sampleCount = 0;
+            long lastSampleUs = 0;
+            for (long timeUs = extractor.getSampleTime(); timeUs >= 0; timeUs = extractor.getSampleTime()) {
+                if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    if (keyFrameCount == keyFrames.length) {
+                        keyFrames = Arrays.copyOf(keyFrames, keyFrameCount * 2);
+                    }
+                    keyFrames[keyFrameCount++] = timeUs;
+                }
+                sampleCount++;
+                lastSampleUs = Math.max(lastSampleUs, timeUs);
+                if (!extractor.advance()) {
+                    break;
+                }
+            }
+            keyFrames = Arrays.copyOf(keyFrames, keyFrameCount);
+            /* samples come in decode order, which may differ from presentation order */
+            Arrays.sort(keyFrames);
+
+            Track video = tracks.get(videoTrack);
+            if (durationUs <= 0) {
+                durationUs = lastSampleUs;
+            }
+            float frameRate = video.frameRate;
+            if (frameRate <= 0 && sampleCount > 1 && lastSampleUs > 0) {
+                frameRate = (sampleCount - 1) * 1000000f / lastSampleUs;
+            }
+            return new VideoProbe(durationUs, video.width, video.height, getRotation(context, uri, videoFormat),
+                    frameRate, videoTrack, tracks, keyFrames);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static int getRotation(Context context, Uri uri, MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_ROTATION)) {
+            return format.getInteger(MediaFormat.KEY_ROTATION);
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return 0;
+        }
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(context, uri);
+            String rotation = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+            return rotation != null ? Integer.parseInt(rotation) : 0;
+        } catch (RuntimeException e) {
+            return 0;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    private static int getInt(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getInteger(key) : 0;
+    }
+
+    /**
+     * Frame rate of a track format, 0 if not known.
+     */
+    static float getFrameRate(MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return 0;
+        }
+        /* stored as an int or a float depending on the extractor */
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+        }
+    }
+
+    public long getDurationMs() {
+        return durationUs / 1000;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return the mime type of the video track, or <code>null</code> if there is none
+     */
+    public String getVideoMime() {
+        return videoTrack >= 0 ? tracks.get(videoTrack).mime : null;
+    }
+
+    public List<Track> getTracks() {
+        return tracks;
+    }
+
+    /**
+     * @return the video track, or <code>null</code> if there is none
+     */
+    public Track getVideoTrack() {
+        return videoTrack >= 0 ? tracks.get(videoTrack) : null;
+    }
+
+    /**
+     * @return the first audio track, or <code>null</code> if there is none
+     */
+    public Track getAudioTrack() {
+        for (Track track : tracks) {
+            if (track.isAudio()) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the last key frame at or before <code>timeUs</code>, or the first key frame if
+     * there is none; -1 if the table is empty
+     */
+    public long previousKeyFrameUs(long timeUs) {
+        if (keyFramesUs.length == 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(keyFramesUs, timeUs);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return keyFramesUs[Math.max(0, i)];
+    }
+
+    /**
+     * @return the first key frame at or after <code>timeUs</code>, or
+     * {@link Long#MAX_VALUE} if there is none
+     */
+    public long nextKeyFrameUs(long timeUs) {
+        int i = Arrays.binarySearch(keyFramesUs, timeUs);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i < keyFramesUs.length ? keyFramesUs[i] : Long.MAX_VALUE;
+    }
+
+    /**
+     * The key frame closest to <code>timeUs</code>, the one
+     * {@link MediaMetadataRetriever#OPTION_CLOSEST_SYNC} decodes.
+     *
+     * @return the key frame time, or <code>timeUs</code> if the table is empty
+     */
+    public long closestKeyFrameUs(long timeUs) {
+        long previous = previousKeyFrameUs(timeUs);
+        if (previous < 0) {
+            return timeUs;
+        }
+        long next = nextKeyFrameUs(timeUs);
+        return next != Long.MAX_VALUE && next - timeUs < Math.abs(timeUs - previous) ? next : previous;
+    }
+
+    /**
+     * Suitable for sending over the method channel.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("durationMs", getDurationMs());
+        map.put("width", width);
+        map.put("height", height);
+        map.put("rotation", rotation);
+        map.put("frameRate", (double) frameRate);
+        map.put("videoTrack", videoTrack >= 0 ? videoTrack : null);
+        List<Map<String, Object>> trackMaps = new ArrayList<>();
+        for (Track track : tracks) {
+            trackMaps.add(track.toMap());
+        }
+        map.put("tracks", trackMaps);
+        map.put("keyFramesUs", keyFramesUs);
+        return map;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeLong(durationUs);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(rotation);
+        out.writeFloat(frameRate);
+        out.writeInt(videoTrack);
+        out.writeInt(tracks.size());
+        for (Track track : tracks) {
+            track.writeTo(out);
+        }
+        out.writeInt(keyFramesUs.length);
+        for (long keyFrameUs : keyFramesUs) {
+            out.writeLong(keyFrameUs);
+        }
+    }
+
+    /**
+     * @throws IOException if the data is truncated or was written by another version
+     */
+    static VideoProbe readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unsupported probe version");
+        }
+        long durationUs = in.readLong();
+        int width = in.readInt();
+        int height = in.readInt();
+        int rotation = in.readInt();
+        float frameRate = in.readFloat();
+        int videoTrack = in.readInt();
+        int trackCount = in.readInt();
+        List<Track> tracks = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            tracks.add(Track.readFrom(in));
+        }
+        long[] keyFramesUs = new long[in.readInt()];
+        for (int i = 0; i < keyFramesUs.length; i++) {
+            keyFramesUs[i] = in.readLong();
+        }
+        return new VideoProbe(durationUs, width, height, rotation, frameRate, videoTrack, tracks, keyFramesUs);
+    }
+}
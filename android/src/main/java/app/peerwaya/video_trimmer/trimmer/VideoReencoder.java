@@ -0,0 +1,331 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Re-encodes a time range of the video track of a file to H.264 with the platform codecs.
+ * <p>
+ * The decoder renders into a {@link FrameScaler}, which draws each frame onto the encoder's
+ * input surface at the output size; frames outside the range are decoded (they may be
+ * references) but not rendered. Decoding starts at the sync frame
+ * at or before the range and stops at the first sync frame at or after its end, so frames
+ * reordered across the end are still complete. The output is an MP4 holding only the
+ * re-encoded video track, in the source orientation and without rotation metadata.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+final class VideoReencoder {
+
+    private static final long TIMEOUT_US = 10000;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int I_FRAME_INTERVAL_SECONDS = 1;
+    /* MediaFormat.KEY_ROTATION, API 23 */
+    private static final String KEY_ROTATION = "rotation-degrees";
+
+    private VideoReencoder() {
+    }
+
+    /**
+     * @return <code>true</code> if this platform can re-encode (API 18+)
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * Index of the first video track of <code>extractor</code>, or -1.
+     */
+    static int findVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Re-encode the frames of <code>src</code> presented in <code>[fromUs, toUs)</code> into
+     * <code>dst</code>.
+     *
+     * @param job polled for cancellation between buffers and told the progress, may be
+     *            <code>null</code>
+     * @throws CancellationException if <code>job</code> is cancelled
+     */
+    static void reencode(File src, long fromUs, long toUs, File dst, TrimJob job) throws IOException {
+        reencode(src, fromUs, toUs, 0, 0, dst, job);
+    }
+
+    /**
+     * Like {@link #reencode(File, long, long, File, TrimJob)}, asking the encoder for
+     * <code>profile</code>, which it must support (see {@link AvcProfile#isEncodable()}).
+     */
+    static void reencode(File src, long fromUs, long toUs, AvcProfile profile, File dst, TrimJob job) throws IOException {
+        reencode(src, fromUs, toUs, 0, 0, 0, 0, 0, profile, dst, job);
+    }
+
+    /**
+     * Like {@link #reencode(File, long, long, File, TrimJob)}, scaling the frames to fit
+     * <code>width</code> x <code>height</code>; 0 keeps the source size.
+     */
+    static void reencode(File src, long fromUs, long toUs, int width, int height, File dst, TrimJob job) throws IOException {
+        reencode(src, fromUs, toUs, width, height, 0, 0, dst, job);
+    }
+
+    /**
+     * Like {@link #reencode(File, long, long, int, int, File, TrimJob)}, at
+     * <code>bitRate</code> and dropping frames to stay under <code>maxFrameRate</code>; 0
+     * keeps the source bit rate or frame rate.
+     */
+    static void reencode(File src, long fromUs, long toUs, int width, int height, int bitRate, int maxFrameRate,
+                         File dst, TrimJob job) throws IOException {
+        reencode(src, fromUs, toUs, width, height, 0, bitRate, maxFrameRate, dst, job);
+    }
+
+    /**
+     * Like {@link #reencode(File, long, long, int, int, int, int, File, TrimJob)}, turning the
+     * frames clockwise by <code>rotationDegrees</code>, a multiple of 90, before fitting them.
+     * Frames whose aspect ratio differs from the output's are letterboxed, never stretched.
+     */
+    static void reencode(File src, long fromUs, long toUs, int width, int height, int rotationDegrees, int bitRate,
+                         int maxFrameRate, File dst, TrimJob job) throws IOException {
+        reencode(src, fromUs, toUs, width, height, rotationDegrees, bitRate, maxFrameRate, null, dst, job);
+    }
+
+    private static void reencode(File src, long fromUs, long toUs, int width, int height, int rotationDegrees, int bitRate,
+                                 int maxFrameRate, AvcProfile profile, File dst, TrimJob job) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        MediaCodec encoder = null;
+        Surface surface = null;
+        FrameScaler scaler = null;
+        MediaMuxer muxer = null;
+        boolean muxerStarted = false;
+        try {
+            extractor.setDataSource(src.getAbsolutePath());
+            int track = findVideoTrack(extractor);
+            if (track < 0) {
+                throw new IOException("No video track in " + src);
+            }
+            MediaFormat inputFormat = extractor.getTrackFormat(track);
+            extractor.selectTrack(track);
+            extractor.seekTo(fromUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+            int sourceWidth = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+            int sourceHeight = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+            if (width <= 0 || height <= 0) {
+                boolean turned = FrameGeometry.quarterTurns(rotationDegrees) % 2 != 0;
+                width = turned ? sourceHeight : sourceWidth;
+                height = turned ? sourceWidth : sourceHeight;
+            }
+
+            encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            encoder.configure(outputFormat(src, inputFormat, width, height, bitRate, maxFrameRate, profile), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = encoder.createInputSurface();
+            encoder.start();
+            scaler = new FrameScaler(surface, width, height);
+            scaler.setSource(sourceWidth, sourceHeight, rotationDegrees);
+            if (inputFormat.containsKey(KEY_ROTATION)) {
+                /* the scaler turns the frames; the decoder must not turn them as well */
+                inputFormat.setInteger(KEY_ROTATION, 0);
+            }
+            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            decoder.configure(inputFormat, scaler.getDecoderSurface(), null, 0);
+            decoder.start();
+            muxer = new MediaMuxer(dst.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+
+            ByteBuffer[] decoderInputs = decoder.getInputBuffers();
+            ByteBuffer[] encoderOutputs = encoder.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            FrameRateLimiter limiter = new FrameRateLimiter(maxFrameRate);
+            int muxerTrack = -1;
+            long bytes = 0;
+            boolean inputDone = false;
+            boolean decoderDone = false;
+            boolean encoderDone = false;
+            while (!encoderDone) {
+                if (job != null && job.isCancelled()) {
+                    throw new CancellationException();
+                }
+                if (!inputDone) {
+                    int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        long sampleTime = extractor.getSampleTime();
+                        boolean pastEnd = sampleTime >= toUs && (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                        int size = sampleTime < 0 || pastEnd ? -1 : extractor.readSampleData(decoderInputs[index], 0);
+                        if (size < 0) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(index, 0, size, sampleTime, 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                if (!decoderDone) {
+                    int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                    if (index >= 0) {
+                        boolean render = info.size > 0 && info.presentationTimeUs >= fromUs && info.presentationTimeUs < toUs
+                                && limiter.accept(info.presentationTimeUs);
+                        decoder.releaseOutputBuffer(index, render);
+                        if (render) {
+                            scaler.awaitFrame();
+                            scaler.drawFrame(info.presentationTimeUs);
+                        }
+                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            encoder.signalEndOfInputStream();
+                            decoderDone = true;
+                        }
+                    }
+                }
+                int index = encoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    muxerTrack = muxer.addTrack(encoder.getOutputFormat());
+                    muxer.start();
+                    muxerStarted = true;
+                } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    encoderOutputs = encoder.getOutputBuffers();
+                } else if (index >= 0) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        /* already part of the output format */
+                        info.size = 0;
+                    }
+                    if (info.size > 0 && muxerStarted) {
+                        ByteBuffer data = encoderOutputs[index];
+                        data.position(info.offset);
+                        data.limit(info.offset + info.size);
+                        muxer.writeSampleData(muxerTrack, data, info);
+                        bytes += info.size;
+                        if (job != null) {
+                            job.reportProgress(Math.max(0, info.presentationTimeUs - fromUs) / 1000, bytes);
+                        }
+                    }
+                    encoder.releaseOutputBuffer(index, false);
+                    encoderDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+        } finally {
+            extractor.release();
+            if (decoder != null) {
+                try {
+                    decoder.stop();
+                } catch (IllegalStateException ignore) {
+                }
+                decoder.release();
+            }
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (IllegalStateException ignore) {
+                }
+                encoder.release();
+            }
+            if (scaler != null) {
+                scaler.release();
+            }
+            if (surface != null) {
+                surface.release();
+            }
+            if (muxer != null) {
+                try {
+                    if (muxerStarted) {
+                        muxer.stop();
+                    }
+                } catch (IllegalStateException ignore) {
+                }
+                muxer.release();
+            }
+        }
+    }
+
+    /**
+     * H.264 format of the given size, bit rate and frame rate cap. Where those are 0 it
+     * matches the source: its size, its frame rate and its bit rate (estimated from the file
+     * size when the container does not report it, and scaled with the picture area).
+     *
+     * @param profile the profile and level to ask for, <code>null</code> for the encoder's
+     *                default
+     */
+    private static MediaFormat outputFormat(File src, MediaFormat inputFormat, int width, int height, int bitRate, int maxFrameRate,
+                                            AvcProfile profile) {
+        int sourceWidth = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int sourceHeight = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        int frameRate = Math.round(VideoProbe.getFrameRate(inputFormat));
+        if (frameRate <= 0) {
+            frameRate = DEFAULT_FRAME_RATE;
+        }
+        if (maxFrameRate > 0) {
+            frameRate = Math.min(frameRate, maxFrameRate);
+        }
+        if (bitRate <= 0) {
+            bitRate = (int) Math.min(Integer.MAX_VALUE,
+                    (long) sourceBitRate(src, inputFormat, width, height, frameRate) * width * height / ((long) sourceWidth * sourceHeight));
+        }
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS);
+        if (profile != null) {
+            profile.applyTo(format);
+        }
+        return format;
+    }
+
+    private static int sourceBitRate(File src, MediaFormat inputFormat, int width, int height, int frameRate) {
+        int bitRate;
+        if (inputFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            bitRate = inputFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        } else if (inputFormat.containsKey(MediaFormat.KEY_DURATION) && inputFormat.getLong(MediaFormat.KEY_DURATION) > 0) {
+            bitRate = (int) Math.min(Integer.MAX_VALUE, src.length() * 8 * 1000000L / inputFormat.getLong(MediaFormat.KEY_DURATION));
+        } else {
+            /* about 0.2 bits per pixel */
+            bitRate = width * height * frameRate / 5;
+        }
+        return bitRate;
+    }
+
+    /**
+     * Picks the frames to keep under a frame rate cap, given presentation times in increasing
+     * order: a frame is kept once a frame interval has passed since the last slot.
+     */
+    static final class FrameRateLimiter {
+
+        /* timestamps are rounded to the container's time base */
+        private static final long TOLERANCE_US = 1000;
+
+        private final long intervalUs;
+        private long nextUs = Long.MIN_VALUE;
+
+        /**
+         * @param maxFrameRate the cap, 0 to keep every frame
+         */
+        FrameRateLimiter(int maxFrameRate) {
+            intervalUs = maxFrameRate > 0 ? 1000000L / maxFrameRate : 0;
+        }
+
+        boolean accept(long timeUs) {
+            if (intervalUs == 0) {
+                return true;
+            }
+            if (nextUs != Long.MIN_VALUE && timeUs + TOLERANCE_US < nextUs) {
+                return false;
+            }
+            /* after a gap, restart the slots from this frame rather than catching up */
+            nextUs = nextUs == Long.MIN_VALUE || timeUs - nextUs >= intervalUs ? timeUs + intervalUs : nextUs + intervalUs;
+            return true;
+        }
+    }
+}
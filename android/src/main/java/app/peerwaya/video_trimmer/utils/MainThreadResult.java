@@ -0,0 +1,52 @@
+package app.peerwaya.video_trimmer.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import app.peerwaya.video_trimmer.trimmer.Metrics;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Wraps a {@link MethodChannel.Result} that may be completed from any thread and by more
+ * than one party, e.g. by a worker finishing and by a cancellation racing it.
+ * <p>
+ * Completion is posted to the main thread and only the first completion is delivered; later
+ * ones are dropped.
+ */
+public class MainThreadResult implements MethodChannel.Result {
+
+    private final MethodChannel.Result result;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    public MainThreadResult(MethodChannel.Result result) {
+        this.result = result;
+    }
+
+    public boolean isCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public void success(final Object value) {
+        if (!completed.getAndSet(true)) {
+            Metrics.post(handler, () -> result.success(value));
+        }
+    }
+
+    @Override
+    public void error(final String errorCode, final String errorMessage, final Object errorDetails) {
+        if (!completed.getAndSet(true)) {
+            Metrics.post(handler, () -> result.error(errorCode, errorMessage, errorDetails));
+        }
+    }
+
+    @Override
+    public void notImplemented() {
+        if (!completed.getAndSet(true)) {
+            Metrics.post(handler, result::notImplemented);
+        }
+    }
+}
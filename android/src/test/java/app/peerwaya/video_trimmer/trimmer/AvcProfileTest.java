@@ -0,0 +1,59 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AvcProfileTest {
+
+    private static ByteBuffer bytes(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length);
+        for (int value : values) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void readsTheSpsOfAnAnnexBCsd() {
+        /* High 4.0, as a camera writes it */
+        AvcProfile profile = AvcProfile.parse(bytes(0, 0, 0, 1, 0x67, 100, 0x00, 40, 0xac, 0xd9, 0x40));
+        assertEquals(CodecProfileLevel.AVCProfileHigh, profile.profile);
+        assertEquals(CodecProfileLevel.AVCLevel4, profile.level);
+    }
+
+    @Test
+    public void skipsOtherNalUnits() {
+        /* an access unit delimiter before the SPS */
+        AvcProfile profile = AvcProfile.parse(bytes(0, 0, 1, 0x09, 0xf0, 0, 0, 1, 0x27, 77, 0x40, 31, 0x95));
+        assertEquals(CodecProfileLevel.AVCProfileMain, profile.profile);
+        assertEquals(CodecProfileLevel.AVCLevel31, profile.level);
+    }
+
+    @Test
+    public void readsAnAvcCRecord() {
+        AvcProfile profile = AvcProfile.parse(bytes(1, 66, 0xc0, 30, 0xff, 0xe1));
+        assertEquals(CodecProfileLevel.AVCProfileBaseline, profile.profile);
+        assertEquals(CodecProfileLevel.AVCLevel3, profile.level);
+    }
+
+    @Test
+    public void readsLevel1b() {
+        AvcProfile profile = AvcProfile.parse(bytes(0, 0, 0, 1, 0x67, 66, 0x10, 11, 0x00));
+        assertEquals(CodecProfileLevel.AVCLevel1b, profile.level);
+    }
+
+    @Test
+    public void rejectsUnknownStreams() {
+        assertNull(AvcProfile.parse(null));
+        assertNull(AvcProfile.parse(bytes(0, 0, 0, 1, 0x68, 0xee, 0x3c, 0x80)));
+        /* scalable baseline */
+        assertNull(AvcProfile.parse(bytes(0, 0, 0, 1, 0x67, 83, 0x00, 30, 0x00)));
+    }
+}
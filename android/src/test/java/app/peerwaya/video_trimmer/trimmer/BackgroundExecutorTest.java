@@ -0,0 +1,187 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackgroundExecutorTest {
+
+    private static final int THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    @After
+    public void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!isIdle() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("tasks left tracked", BackgroundExecutor.isIdle());
+        assertEquals("tasks left counted as queued", 0, BackgroundExecutor.getQueuedCount());
+        assertEquals("tasks left counted as running", 0, BackgroundExecutor.getRunningCount());
+    }
+
+    private static boolean isIdle() {
+        return BackgroundExecutor.isIdle() && BackgroundExecutor.getQueuedCount() == 0
+                && BackgroundExecutor.getRunningCount() == 0;
+    }
+
+    @Test
+    public void serialTasksRunOneAtATimeInOrder() throws InterruptedException {
+        final int serials = 16;
+        final int perSerial = 200;
+        final CountDownLatch done = new CountDownLatch(serials * perSerial);
+        final AtomicInteger overlaps = new AtomicInteger();
+        final List<List<Integer>> orders = new ArrayList<>();
+        final AtomicInteger[] running = new AtomicInteger[serials];
+        for (int s = 0; s < serials; s++) {
+            orders.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            running[s] = new AtomicInteger();
+        }
+
+        List<Thread> submitters = new ArrayList<>();
+        for (int s = 0; s < serials; s++) {
+            final int serial = s;
+            submitters.add(new Thread(() -> {
+                for (int i = 0; i < perSerial; i++) {
+                    final int index = i;
+                    BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "serial" + serial) {
+                        @Override
+                        public void execute() {
+                            if (running[serial].incrementAndGet() != 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            orders.get(serial).add(index);
+                            running[serial].decrementAndGet();
+                            done.countDown();
+                        }
+                    });
+                }
+            }));
+        }
+        for (Thread submitter : submitters) {
+            submitter.start();
+        }
+
+        assertTrue("serial queue stalled", done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (List<Integer> order : orders) {
+            for (int i = 0; i < perSerial; i++) {
+                assertEquals(Integer.valueOf(i), order.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void cancelledTasksDoNotRunAndDoNotBlockTheirSerial() throws InterruptedException {
+        /* occupy every worker so that everything below stays queued */
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blockersStarted = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "") {
+                @Override
+                public void execute() {
+                    blockersStarted.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+        }
+        assertTrue(blockersStarted.await(5, TimeUnit.SECONDS));
+
+        final AtomicInteger cancelledRuns = new AtomicInteger();
+        final CountDownLatch survivors = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            /* submitted to the executor, waiting for a thread */
+            BackgroundExecutor.execute(countingTask("doomed", "", cancelledRuns));
+            /* waiting for their serial behind a doomed task */
+            BackgroundExecutor.execute(countingTask("doomed", "serial" + i, cancelledRuns));
+            BackgroundExecutor.execute(countingTask("doomed", "serial" + i, cancelledRuns));
+            BackgroundExecutor.execute(latchTask("kept", "serial" + i, survivors));
+        }
+        assertEquals(THREADS, BackgroundExecutor.getRunningCount());
+        assertEquals(80, BackgroundExecutor.getQueuedCount());
+
+        BackgroundExecutor.cancelAll("doomed", false);
+        assertEquals(20, BackgroundExecutor.getQueuedCount());
+        release.countDown();
+
+        assertTrue("serial blocked by a cancelled task", survivors.await(10, TimeUnit.SECONDS));
+        assertEquals(0, cancelledRuns.get());
+    }
+
+    @Test
+    public void concurrentCancellationNeverStallsASerial() throws InterruptedException {
+        final int serials = 8;
+        final int perSerial = 500;
+        final Random random = new Random(42);
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger[] running = new AtomicInteger[serials];
+        final CountDownLatch tails = new CountDownLatch(serials);
+        for (int s = 0; s < serials; s++) {
+            running[s] = new AtomicInteger();
+        }
+
+        Thread canceller = new Thread(() -> {
+            Random local = new Random(7);
+            for (int i = 0; i < 5000; i++) {
+                BackgroundExecutor.cancelAll("batch" + local.nextInt(perSerial), local.nextBoolean());
+            }
+        });
+        canceller.start();
+
+        for (int i = 0; i < perSerial; i++) {
+            for (int s = 0; s < serials; s++) {
+                final int serial = s;
+                BackgroundExecutor.execute(new BackgroundExecutor.Task("batch" + random.nextInt(perSerial), 0L, "serial" + serial) {
+                    @Override
+                    public void execute() {
+                        if (running[serial].incrementAndGet() != 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        ran.incrementAndGet();
+                        running[serial].decrementAndGet();
+                    }
+                });
+            }
+        }
+        canceller.join();
+        for (int s = 0; s < serials; s++) {
+            BackgroundExecutor.execute(latchTask("tail", "serial" + s, tails));
+        }
+
+        assertTrue("serial queue stalled", tails.await(30, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        assertFalse(ran.get() > serials * perSerial);
+    }
+
+    private static BackgroundExecutor.Task countingTask(String id, String serial, final AtomicInteger runs) {
+        return new BackgroundExecutor.Task(id, 0L, serial) {
+            @Override
+            public void execute() {
+                runs.incrementAndGet();
+            }
+        };
+    }
+
+    private static BackgroundExecutor.Task latchTask(String id, String serial, final CountDownLatch latch) {
+        return new BackgroundExecutor.Task(id, 0L, serial) {
+            @Override
+            public void execute() {
+                latch.countDown();
+            }
+        };
+    }
+}
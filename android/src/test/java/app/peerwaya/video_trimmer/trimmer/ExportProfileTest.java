@@ -0,0 +1,69 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ExportProfileTest {
+
+    @Test
+    public void fitsLandscapeAndPortraitToTheSameEdges() {
+        ExportProfile profile = new ExportProfile(1280, 720, 0, 0, 0);
+        assertArrayEquals(new int[]{1280, 720}, profile.targetSize(3840, 2160));
+        assertArrayEquals(new int[]{720, 1280}, profile.targetSize(2160, 3840));
+    }
+
+    @Test
+    public void neverUpscales() {
+        ExportProfile profile = new ExportProfile(1920, 1080, 0, 0, 0);
+        assertArrayEquals(new int[]{640, 360}, profile.targetSize(640, 360));
+        assertArrayEquals(new int[]{640, 360}, new ExportProfile(0, 0, 0, 0, 0).targetSize(640, 360));
+    }
+
+    @Test
+    public void keepsTheAspectRatioWithinBothLimits() {
+        /* 4:3 is bound by the short edge */
+        assertArrayEquals(new int[]{960, 720}, new ExportProfile(1280, 720, 0, 0, 0).targetSize(1440, 1080));
+        /* a single limit bounds the long edge */
+        assertArrayEquals(new int[]{640, 480}, new ExportProfile(640, 0, 0, 0, 0).targetSize(1440, 1080));
+    }
+
+    @Test
+    public void roundsToEvenSizes() {
+        int[] size = new ExportProfile(1000, 0, 0, 0, 0).targetSize(1920, 1080);
+        assertEquals(1000, size[0]);
+        assertEquals(562, size[1]);
+        assertArrayEquals(new int[]{2, 2}, new ExportProfile(2, 0, 0, 0, 0).targetSize(1920, 1080));
+    }
+
+    @Test
+    public void readsOptionalEntries() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("maxWidth", 1280);
+        map.put("videoBitRate", 2000000L);
+        map.put("maxFrameRate", 30);
+        ExportProfile profile = ExportProfile.fromMap(map);
+        assertEquals(2000000, profile.getVideoBitRate());
+        assertEquals(30, profile.getMaxFrameRate());
+        assertEquals(0, profile.getAudioBitRate());
+        assertArrayEquals(new int[]{1280, 720}, profile.targetSize(1920, 1080));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeLimits() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("maxFrameRate", -1);
+        ExportProfile.fromMap(map);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonNumbers() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("videoBitRate", "2M");
+        ExportProfile.fromMap(map);
+    }
+}
@@ -0,0 +1,110 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Resizes frames the way {@link FrameScaler} draws them: the frame is cleared to black, and
+ * the quad is drawn into the viewport with the texture coordinates of its corners, sampling
+ * the source as a SurfaceTexture does (top row first, flipped by its transform matrix). GL
+ * does not run on the host JVM, so the draw is done in software here.
+ */
+public class FrameGeometryTest {
+
+    private static final int BLACK = 0xff000000;
+    private static final int RED = 0xffff0000;
+    private static final int GREEN = 0xff00ff00;
+    private static final int BLUE = 0xff0000ff;
+    private static final int WHITE = 0xffffffff;
+
+    /** A frame of four solid quadrants: red, green on top, blue, white below. */
+    private static int[] quadrants(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                boolean top = y < height / 2;
+                boolean left = x < width / 2;
+                pixels[y * width + x] = top ? (left ? RED : GREEN) : (left ? BLUE : WHITE);
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] draw(int[] src, int srcWidth, int srcHeight, int rotationDegrees, int dstWidth, int dstHeight) {
+        int quarterTurns = FrameGeometry.quarterTurns(rotationDegrees);
+        int[] viewport = FrameGeometry.viewport(srcWidth, srcHeight, quarterTurns, dstWidth, dstHeight);
+        float[] st = FrameGeometry.textureCoordinates(quarterTurns);
+        int[] dst = new int[dstWidth * dstHeight];
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                /* GL origin at the bottom left */
+                double u = (x + 0.5 - viewport[0]) / viewport[2];
+                double v = (dstHeight - y - 0.5 - viewport[1]) / viewport[3];
+                if (u < 0 || u >= 1 || v < 0 || v >= 1) {
+                    dst[y * dstWidth + x] = BLACK;
+                    continue;
+                }
+                double s = st[0] + u * (st[2] - st[0]) + v * (st[4] - st[0]);
+                double t = st[1] + u * (st[3] - st[1]) + v * (st[5] - st[1]);
+                int sx = Math.min(srcWidth - 1, (int) (s * srcWidth));
+                int sy = Math.min(srcHeight - 1, (int) ((1 - t) * srcHeight));
+                dst[y * dstWidth + x] = src[sy * srcWidth + sx];
+            }
+        }
+        return dst;
+    }
+
+    @Test
+    public void downscalesAFrameToTheEncoderSize() {
+        int[] frame = draw(quadrants(64, 36), 64, 36, 0, 16, 9);
+        assertEquals(RED, frame[0]);
+        assertEquals(GREEN, frame[15]);
+        assertEquals(BLUE, frame[8 * 16]);
+        assertEquals(WHITE, frame[8 * 16 + 15]);
+        assertArrayEquals(new int[]{0, 0, 1280, 720}, FrameGeometry.viewport(3840, 2160, 0, 1280, 720));
+    }
+
+    @Test
+    public void letterboxesAnotherAspectRatio() {
+        /* portrait into landscape: pillars on both sides */
+        int[] frame = draw(quadrants(4, 8), 4, 8, 0, 8, 4);
+        for (int y = 0; y < 4; y++) {
+            assertEquals(BLACK, frame[y * 8]);
+            assertEquals(BLACK, frame[y * 8 + 2]);
+            assertEquals(BLACK, frame[y * 8 + 5]);
+            assertEquals(BLACK, frame[y * 8 + 7]);
+        }
+        assertEquals(RED, frame[3]);
+        assertEquals(GREEN, frame[4]);
+        assertEquals(BLUE, frame[3 * 8 + 3]);
+        assertEquals(WHITE, frame[3 * 8 + 4]);
+    }
+
+    @Test
+    public void turnsAFrameClockwise() {
+        /* a landscape frame tagged 90 degrees is shown portrait, its left side on top */
+        int[] frame = draw(quadrants(8, 4), 8, 4, 90, 4, 8);
+        assertEquals(BLUE, frame[0]);
+        assertEquals(RED, frame[3]);
+        assertEquals(WHITE, frame[7 * 4]);
+        assertEquals(GREEN, frame[7 * 4 + 3]);
+
+        int[] upsideDown = draw(quadrants(8, 4), 8, 4, 180, 8, 4);
+        assertEquals(WHITE, upsideDown[0]);
+        assertEquals(RED, upsideDown[3 * 8 + 7]);
+
+        int[] counterClockwise = draw(quadrants(8, 4), 8, 4, 270, 4, 8);
+        assertEquals(GREEN, counterClockwise[0]);
+        assertEquals(BLUE, counterClockwise[7 * 4 + 3]);
+    }
+
+    @Test
+    public void roundsRotationsToQuarterTurns() {
+        assertEquals(0, FrameGeometry.quarterTurns(0));
+        assertEquals(1, FrameGeometry.quarterTurns(90));
+        assertEquals(3, FrameGeometry.quarterTurns(-90));
+        assertEquals(2, FrameGeometry.quarterTurns(540));
+    }
+}
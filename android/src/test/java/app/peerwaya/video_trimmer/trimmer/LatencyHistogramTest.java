@@ -0,0 +1,75 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsByPowerOfTwo() {
+        assertEquals(0, LatencyHistogram.bucket(0));
+        assertEquals(0, LatencyHistogram.bucket(1));
+        assertEquals(1, LatencyHistogram.bucket(2));
+        assertEquals(1, LatencyHistogram.bucket(3));
+        assertEquals(10, LatencyHistogram.bucket(1024));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesFallInTheBucketOfTheirRank() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5000);
+        }
+        long p50 = histogram.percentileUs(0.5);
+        assertTrue("p50 " + p50, p50 >= 64 && p50 < 128);
+        long p99 = histogram.percentileUs(0.99);
+        assertTrue("p99 " + p99, p99 >= 4096 && p99 <= 5000);
+        assertEquals(5000, histogram.percentileUs(1));
+    }
+
+    @Test
+    public void reportsAndResets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(30);
+        histogram.record(-5);
+        Map<String, Object> map = histogram.toMap();
+        assertEquals(3L, map.get("count"));
+        assertEquals(40L, map.get("totalUs"));
+        assertEquals(30L, map.get("maxUs"));
+        assertEquals(LatencyHistogram.BUCKETS, ((long[]) map.get("buckets")).length);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.percentileUs(0.5));
+        assertEquals(0, histogram.getMaxUs());
+    }
+
+    @Test
+    public void recordsFromManyThreads() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record(i + offset);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, histogram.getCount());
+        assertEquals(9999 + 7, histogram.getMaxUs());
+    }
+}
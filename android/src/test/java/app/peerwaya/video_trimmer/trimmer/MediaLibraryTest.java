@@ -0,0 +1,30 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MediaLibraryTest {
+
+    @Test
+    public void readsTheMimeTypeFromTheExtension() {
+        assertEquals("video/mp4", MediaLibrary.mimeType("clip.mp4"));
+        assertEquals("video/quicktime", MediaLibrary.mimeType("clip.MOV"));
+        assertEquals("audio/mp4", MediaLibrary.mimeType("voice.m4a"));
+    }
+
+    @Test
+    public void fallsBackToMp4() {
+        assertEquals("video/mp4", MediaLibrary.mimeType("clip"));
+        assertEquals("video/mp4", MediaLibrary.mimeType("clip.tmp"));
+        assertEquals("video/mp4", MediaLibrary.mimeType("archive.m4a.part"));
+    }
+
+    @Test
+    public void savesAudioAsAudio() {
+        assertTrue(MediaLibrary.isAudio(MediaLibrary.mimeType("voice.aac")));
+        assertFalse(MediaLibrary.isAudio(MediaLibrary.mimeType("clip.webm")));
+    }
+}
@@ -0,0 +1,58 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ThumbnailAtlasTest {
+
+    @Test
+    public void shortStripsFitOneRow() {
+        int columns = ThumbnailAtlas.columns(30, 96);
+        assertEquals(30, columns);
+        assertEquals(1, ThumbnailAtlas.rows(30, columns));
+    }
+
+    @Test
+    public void wideStripsWrapAtTheMaximumWidth() {
+        int columns = ThumbnailAtlas.columns(100, 100);
+        assertEquals(ThumbnailAtlas.MAX_WIDTH / 100, columns);
+        assertEquals(3, ThumbnailAtlas.rows(100, columns));
+        /* a tile wider than the limit still gets a column */
+        assertEquals(1, ThumbnailAtlas.columns(4, ThumbnailAtlas.MAX_WIDTH + 1));
+    }
+
+    @Test
+    public void acceptsAtlasesUpToTheTextureLimit() {
+        ThumbnailAtlas.check(30, 96, 54);
+        /* 6 to a row, 11 rows of 360 */
+        ThumbnailAtlas.check(64, 640, 360);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAtlasesTallerThanTheLimit() {
+        /* 6 to a row, 34 rows: 12240 high */
+        ThumbnailAtlas.check(200, 640, 360);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesTilesWiderThanTheLimit() {
+        ThumbnailAtlas.check(1, ThumbnailAtlas.MAX_WIDTH + 1, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesEmptyTiles() {
+        ThumbnailAtlas.check(10, 0, 54);
+    }
+
+    @Test
+    public void rectsFollowTheRows() {
+        assertArrayEquals(new int[]{
+                0, 0, 10, 20,
+                10, 0, 10, 20,
+                20, 0, 10, 20,
+                0, 20, 10, 20,
+                10, 20, 10, 20}, ThumbnailAtlas.rects(5, 10, 20, 3));
+    }
+}
@@ -0,0 +1,96 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TileFileTest {
+
+    private final File directory = createDirectory();
+
+    private static File createDirectory() {
+        try {
+            return Files.createTempDirectory("tiles").toFile();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @After
+    public void deleteDirectory() {
+        TileFile.deleteAll(directory);
+        directory.delete();
+    }
+
+    private static byte[] tile(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    private static byte[] read(File file, long offset, int length) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[length];
+            in.seek(offset);
+            in.readFully(data);
+            return data;
+        }
+    }
+
+    @Test
+    public void tilesAreReadableAtTheirOffsets() throws IOException {
+        TileFile file = new TileFile(new File(directory, "strip" + TileFile.SUFFIX));
+        /* enough tiles to span several regions, with one larger than a region */
+        int[] sizes = {1000, TileFile.REGION_SIZE - 500, 2000, TileFile.REGION_SIZE + 1, 7};
+        long[] offsets = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            offsets[i] = file.write(tile(sizes[i], i));
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            assertArrayEquals(tile(sizes[i], i), read(file.getFile(), offsets[i], sizes[i]));
+            if (i > 0) {
+                assertEquals(offsets[i - 1] + sizes[i - 1], offsets[i]);
+            }
+        }
+        long total = 0;
+        for (int size : sizes) {
+            total += size;
+        }
+        assertEquals(total, file.getBytesWritten());
+        file.close();
+        assertEquals(total, file.getFile().length());
+        assertArrayEquals(tile(7, 4), read(file.getFile(), offsets[4], 7));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWritesOnceClosed() throws IOException {
+        TileFile file = new TileFile(new File(directory, "closed" + TileFile.SUFFIX));
+        file.write(tile(10, 0));
+        file.close();
+        file.write(tile(10, 1));
+    }
+
+    @Test
+    public void deleteAllOnlyTouchesTileFiles() throws IOException {
+        new TileFile(new File(directory, "a" + TileFile.SUFFIX)).close();
+        File other = new File(directory, "other.bin");
+        Files.write(other.toPath(), tile(4, 0));
+        TileFile.deleteAll(directory);
+        assertFalse(new File(directory, "a" + TileFile.SUFFIX).exists());
+        assertTrue(other.exists());
+        assertTrue(Arrays.asList(directory.list()).contains("other.bin"));
+        other.delete();
+    }
+}
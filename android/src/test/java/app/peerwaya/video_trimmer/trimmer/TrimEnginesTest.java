@@ -0,0 +1,53 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrimEnginesTest {
+
+    private static final File SRC = new File("/videos/in.mp4");
+
+    @Test
+    public void autoKeepsTheContainerOfTheOutput() {
+        for (String name : new String[]{"out.mov", "out.mkv", "out.3gp", "clip.aac", "clip.mka"}) {
+            TrimEngine engine = TrimEngines.select(TrimEngines.AUTO, SRC, new File(name), null, TrimStreams.ALL);
+            assertEquals(name, TrimEngines.FFMPEG, engine.getName());
+        }
+        assertEquals(TrimEngines.FFMPEG, TrimEngines.select(null, SRC).getName());
+    }
+
+    @Test
+    public void muxerOnlyWritesMp4() {
+        assertTrue(MuxerTrimEngine.canWrite(new File("out.mp4")));
+        assertTrue(MuxerTrimEngine.canWrite(new File("OUT.M4V")));
+        assertTrue(MuxerTrimEngine.canWrite(new File("clip.m4a")));
+        assertFalse(MuxerTrimEngine.canWrite(new File("out.mov")));
+        assertFalse(MuxerTrimEngine.canWrite(new File("clip.aac")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesTheMuxerForAudioOtherThanM4a() {
+        TrimEngines.checkOutput(TrimEngines.MUXER, new File("clip.aac"));
+    }
+
+    @Test
+    public void acceptsAnyOutputForFFmpeg() {
+        TrimEngines.checkOutput(TrimEngines.MUXER, new File("clip.m4a"));
+        TrimEngines.checkOutput(TrimEngines.FFMPEG, new File("clip.aac"));
+        TrimEngines.checkOutput(null, new File("clip.mka"));
+    }
+
+    @Test
+    public void copiesCutToTheMillisecond() {
+        List<String> arguments = Arrays.asList(TrimVideoUtils.copyArguments(SRC, new File("out.mkv"), 754_250, 4_354_750));
+        assertEquals("754.250", arguments.get(arguments.indexOf("-ss") + 1));
+        assertEquals("3600.500", arguments.get(arguments.indexOf("-t") + 1));
+    }
+}
@@ -0,0 +1,43 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import com.arthenica.mobileffmpeg.FFmpeg;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrimJobTest {
+
+    private static File output() throws IOException {
+        File output = File.createTempFile("trim", ".mp4");
+        output.deleteOnExit();
+        return output;
+    }
+
+    @Test
+    public void keepsTheOutputOfAJobCancelledBeforeItStarted() throws IOException {
+        File output = output();
+        TrimJob job = new TrimJob();
+        job.setOutputs(Collections.singletonList(output));
+        assertTrue(job.cancel());
+        assertFalse(job.onStart(false));
+        job.onFinish(FFmpeg.RETURN_CODE_CANCEL);
+        assertTrue(output.exists());
+    }
+
+    @Test
+    public void deletesThePartialOutputOfACancelledRun() throws IOException {
+        File output = output();
+        TrimJob job = new TrimJob();
+        job.setOutputs(Collections.singletonList(output));
+        assertTrue(job.onStart(false));
+        assertTrue(job.cancel());
+        job.onFinish(FFmpeg.RETURN_CODE_CANCEL);
+        assertFalse(output.exists());
+    }
+}
@@ -0,0 +1,56 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import io.flutter.plugin.common.MethodChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TrimSchedulerTest {
+
+    private static final File SRC = new File("/videos/in.mp4");
+
+    private static final MethodChannel.Result IGNORED = new MethodChannel.Result() {
+        @Override
+        public void success(Object result) {
+        }
+
+        @Override
+        public void error(String errorCode, String errorMessage, Object errorDetails) {
+        }
+
+        @Override
+        public void notImplemented() {
+        }
+    };
+
+    private static TrimScheduler.Request request() {
+        return new TrimScheduler.Request(SRC, 1_000, 5_000, null, TrimEngines.FFMPEG);
+    }
+
+    @Test
+    public void keysTheOutputContainer() {
+        TrimScheduler.Request request = request();
+        assertNotEquals(TrimScheduler.key(request, new File("/out/a.mp4")), TrimScheduler.key(request, new File("/out/b.mkv")));
+        assertNotEquals(TrimScheduler.key(request, new File("/out/clip.m4a")), TrimScheduler.key(request, new File("/out/clip.aac")));
+        assertEquals(TrimScheduler.key(request, new File("/out/a.mp4")), TrimScheduler.key(request, new File("/other/b.MP4")));
+    }
+
+    @Test
+    public void onlyJoinsTrimsToTheSameContainer() {
+        TrimScheduler scheduler = new TrimScheduler(null);
+        scheduler.setMaxConcurrency(1);
+        scheduler.submit(request(), new File("/out/a.mp4"), null, IGNORED);
+        assertEquals(1, scheduler.getRunningCount());
+        /* another container: a trim of its own, queued behind the first */
+        scheduler.submit(request(), new File("/out/b.mkv"), null, IGNORED);
+        assertEquals(1, scheduler.getQueuedCount());
+        /* the same container: joins the running trim */
+        scheduler.submit(request(), new File("/out/c.mp4"), null, IGNORED);
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueuedCount());
+    }
+}
@@ -0,0 +1,53 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrimVideoUtilsTest {
+
+    private static final File SRC = new File("/videos/in.mp4");
+
+    private static VideoProbe probe(long... keyFramesUs) {
+        return new VideoProbe(60_000_000, 1280, 720, 0, 30, 0, Collections.<VideoProbe.Track>emptyList(), keyFramesUs);
+    }
+
+    private static String seekOf(List<String> arguments, File output) {
+        int end = arguments.indexOf(output.getAbsolutePath());
+        return arguments.get(arguments.subList(0, end).lastIndexOf("-ss") + 1);
+    }
+
+    @Test
+    public void segmentsStartAtTheKeyFrameBeforeThem() {
+        File first = new File("/out/0.mp4");
+        File second = new File("/out/1.mp4");
+        List<String> arguments = Arrays.asList(TrimVideoUtils.segmentArguments(SRC, Arrays.asList(
+                new TrimSegment(4_500, 9_000, first),
+                new TrimSegment(2_000, 3_000, second)), probe(0, 2_000_000, 4_000_000, 6_000_000)));
+        /* a millisecond early, so that the key frame is the first frame kept */
+        assertEquals("3.999000", seekOf(arguments, first));
+        assertEquals("1.999000", seekOf(arguments, second));
+        assertEquals("9.000", arguments.get(arguments.indexOf("-to") + 1));
+    }
+
+    @Test
+    public void segmentsSeekToTheirStartWithoutAKeyFrameTable() {
+        File output = new File("/out/0.mp4");
+        List<TrimSegment> segments = Collections.singletonList(new TrimSegment(4_500, 9_000, output));
+        assertEquals("4.500000", seekOf(Arrays.asList(TrimVideoUtils.segmentArguments(SRC, segments, null)), output));
+        assertEquals("4.500000", seekOf(Arrays.asList(TrimVideoUtils.segmentArguments(SRC, segments, probe())), output));
+    }
+
+    @Test
+    public void segmentsAtTheFirstKeyFrameStartAtZero() {
+        File output = new File("/out/0.mp4");
+        List<String> arguments = Arrays.asList(TrimVideoUtils.segmentArguments(SRC,
+                Collections.singletonList(new TrimSegment(0, 1_000, output)), probe(0, 2_000_000)));
+        assertEquals("0.000000", seekOf(arguments, output));
+    }
+}
@@ -0,0 +1,52 @@
+package app.peerwaya.video_trimmer.trimmer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VideoReencoderTest {
+
+    private static int kept(VideoReencoder.FrameRateLimiter limiter, double sourceFrameRate, int frames) {
+        int kept = 0;
+        for (int i = 0; i < frames; i++) {
+            /* container time bases round timestamps */
+            if (limiter.accept(Math.round(i * 1000000 / sourceFrameRate))) {
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    @Test
+    public void halvesSixtyToThirty() {
+        VideoReencoder.FrameRateLimiter limiter = new VideoReencoder.FrameRateLimiter(30);
+        for (int i = 0; i < 600; i++) {
+            assertEquals("frame " + i, i % 2 == 0, limiter.accept(Math.round(i * 1000000 / 60d)));
+        }
+    }
+
+    @Test
+    public void keepsTheCappedRateOnAverage() {
+        assertEquals(300, kept(new VideoReencoder.FrameRateLimiter(30), 59.94, 600), 1);
+        assertEquals(240, kept(new VideoReencoder.FrameRateLimiter(24), 30, 300), 1);
+    }
+
+    @Test
+    public void keepsEverythingUnderTheCap() {
+        assertEquals(300, kept(new VideoReencoder.FrameRateLimiter(30), 30, 300));
+        assertEquals(300, kept(new VideoReencoder.FrameRateLimiter(60), 30, 300));
+        assertEquals(300, kept(new VideoReencoder.FrameRateLimiter(0), 120, 300));
+    }
+
+    @Test
+    public void restartsAfterAGap() {
+        VideoReencoder.FrameRateLimiter limiter = new VideoReencoder.FrameRateLimiter(30);
+        assertTrue(limiter.accept(0));
+        assertFalse(limiter.accept(16667));
+        assertTrue(limiter.accept(5000000));
+        assertFalse(limiter.accept(5016667));
+        assertTrue(limiter.accept(5033333));
+    }
+}
@@ -0,0 +1,78 @@
+// Times thumbnail strips from each tile being encoded to its bytes being
+// available in Dart, for each ThumbnailDelivery, on a video on the device:
+//
+//   flutter test integration_test/thumbnail_delivery_test.dart \
+//       --dart-define=TILE_BENCHMARK_INPUT=/sdcard/Movies/in.mp4
+//
+// The deliveries are interleaved, so that caches and thermal state affect
+// them alike. Results are reported as the `thumbnailDelivery` data of the
+// run. Without an input the test is skipped.
+
+import 'dart:async';
+
+import 'package:flutter/widgets.dart';
+import 'package:flutter_test/flutter_test.dart';
+import 'package:integration_test/integration_test.dart';
+import 'package:video_trimmer/video_trimmer.dart';
+
+const String _input = String.fromEnvironment('TILE_BENCHMARK_INPUT');
+const int _tiles = 30;
+const int _iterations = 3;
+
+void main() {
+  final binding = IntegrationTestWidgetsFlutterBinding.ensureInitialized();
+
+  testWidgets('thumbnail delivery latency', (WidgetTester tester) async {
+    final probe = await VideoTrimmer.probeVideo(_input);
+    final latencies = Map<ThumbnailDelivery, List<int>>.fromIterable(
+        ThumbnailDelivery.values,
+        value: (_) => <int>[]);
+    for (var i = 0; i < _iterations; i++) {
+      for (final delivery in ThumbnailDelivery.values) {
+        latencies[delivery]
+            .addAll(await _deliverStrip(probe.durationMs, delivery));
+      }
+    }
+    binding.reportData = <String, dynamic>{
+      'thumbnailDelivery': latencies.map((delivery, values) =>
+          MapEntry(delivery.toString().split('.').last, _summary(values))),
+    };
+    for (final values in latencies.values) {
+      expect(values, hasLength(_tiles * _iterations));
+    }
+  }, skip: _input.isEmpty);
+}
+
+/// Delivers one strip, returning the latency of each tile.
+Future<List<int>> _deliverStrip(
+    int durationMs, ThumbnailDelivery delivery) async {
+  final latencies = <int>[];
+  final done = Completer<void>();
+  final task = await VideoTrimmer.createFetchVideoThumbnailnailTask(_input,
+      (thumbnail) {
+    latencies.add(thumbnail.deliveryLatencyUs);
+    if (latencies.length == _tiles && !done.isCompleted) {
+      done.complete();
+    }
+  });
+  try {
+    await task.start(0, durationMs, _tiles, const Size(96, 54),
+        format: ThumbnailFormat.jpeg, delivery: delivery);
+    await done.future.timeout(const Duration(minutes: 1));
+  } finally {
+    await task.dispose();
+  }
+  return latencies;
+}
+
+Map<String, int> _summary(List<int> values) {
+  final sorted = List<int>.from(values)..sort();
+  return <String, int>{
+    'tiles': sorted.length,
+    'averageLatencyUs': sorted.isEmpty
+        ? 0
+        : sorted.reduce((a, b) => a + b) ~/ sorted.length,
+    'p50LatencyUs': sorted.isEmpty ? 0 : sorted[sorted.length ~/ 2],
+    'maxLatencyUs': sorted.isEmpty ? 0 : sorted.last,
+  };
+}
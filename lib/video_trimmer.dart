@@ -2,21 +2,155 @@ import 'dart:async';
 
 import 'package:flutter/services.dart';
 import 'dart:convert';
+import 'dart:developer' show Timeline;
+import 'dart:io';
 import 'dart:typed_data';
 
 import 'package:flutter/widgets.dart';
 
+/// How thumbnail pixels are encoded when they cross the platform channel.
+enum ThumbnailFormat {
+  /// Uncompressed RGBA8888 pixels without any header, for
+  /// `decodeImageFromPixels`.
+  raw,
+
+  /// Lossy, small; honours the quality argument.
+  jpeg,
+
+  /// Lossy, small; honours the quality argument.
+  webp,
+
+  /// Uncompressed 24 bit BMP. Cheap to encode and decode.
+  bmp,
+
+  /// Lossless and the slowest to encode.
+  png,
+}
+
+ThumbnailFormat? _thumbnailFormatFromName(String? name) {
+  for (final format in ThumbnailFormat.values) {
+    if (_thumbnailFormatName(format) == name) {
+      return format;
+    }
+  }
+  return null;
+}
+
+String? _thumbnailFormatName(ThumbnailFormat? format) =>
+    format?.toString().split('.').last;
+
+/// Scheduling class of a background request. Queued work runs in priority
+/// order; work that has waited long enough runs regardless, so lower classes
+/// are delayed but never starved.
+enum TaskPriority {
+  /// The user is waiting on the result right now.
+  interactive,
+
+  /// The result is on screen.
+  visible,
+
+  /// The result will likely be needed soon.
+  prefetch,
+
+  /// Nobody is looking at the result.
+  background,
+}
+
+String? _taskPriorityName(TaskPriority? priority) =>
+    priority?.toString().split('.').last;
+
+/// How the thumbnails of a [FetchVideoThumbnailnailTask] cross the platform
+/// channel.
+enum ThumbnailDelivery {
+  /// In the events, copied by the message codec on both sides.
+  bytes,
+
+  /// Through a memory-mapped cache file the platform writes them into; the
+  /// events only say where, and the bytes are read straight from the file.
+  file,
+}
+
+String? _thumbnailDeliveryName(ThumbnailDelivery? delivery) =>
+    delivery?.toString().split('.').last;
+
+/// How a trim cuts the video.
+enum TrimMode {
+  /// Stream copy: fast, but the cut snaps to key frames.
+  copy,
+
+  /// Frame-accurate: only the partial groups of pictures at both ends are
+  /// re-encoded, everything in between is stream-copied.
+  smart,
+}
+
+String? _trimModeName(TrimMode? mode) => mode?.toString().split('.').last;
+
+/// The streams a trim keeps.
+enum TrimStreams {
+  /// The video and the audio.
+  all,
+
+  /// The video alone, silent.
+  video,
+
+  /// The audio alone; only for [TrimMode.copy] trims without a profile.
+  audio,
+}
+
+String? _trimStreamsName(TrimStreams? streams) =>
+    streams?.toString().split('.').last;
+
+/// What performs a [TrimMode.copy] trim.
+enum TrimEngine {
+  /// The platform remuxer when the output is an `.mp4`, `.m4v` or `.m4a` file
+  /// and it can hold every track kept, FFmpeg otherwise. Both cut from the key
+  /// frame at or before the start to the millisecond.
+  auto,
+
+  /// FFmpeg. Runs one trim at a time.
+  ffmpeg,
+
+  /// The platform MediaExtractor and MediaMuxer (Android 4.3+). Lighter and
+  /// runs trims concurrently, but always writes MP4 and drops tracks MP4
+  /// cannot hold, such as subtitles.
+  muxer,
+}
+
+String? _trimEngineName(TrimEngine? engine) =>
+    engine?.toString().split('.').last;
+
 class VideoThumbnail {
-  VideoThumbnail({required this.width, required this.height, this.data});
+  VideoThumbnail(
+      {required this.width,
+      required this.height,
+      this.data,
+      this.index,
+      this.format,
+      this.deliveryLatencyUs});
 
   final int width;
   final int height;
   final Uint8List? data;
 
+  /// Position of this thumbnail in its strip, when it belongs to one.
+  ///
+  /// Strip thumbnails are decoded in parallel and may arrive out of order.
+  final int? index;
+
+  /// Encoding of [data].
+  final ThumbnailFormat? format;
+
+  /// Time from the thumbnail being encoded to [data] being available in
+  /// Dart, whatever its [ThumbnailDelivery], for thumbnails of a strip.
+  final int? deliveryLatencyUs;
+
   VideoThumbnail.fromMap(Map m)
       : this(
             width: m["width"],
             height: m["height"],
+            index: m["index"],
+            format: _thumbnailFormatFromName(m["format"]),
+            deliveryLatencyUs: m["deliveryLatencyUs"],
             data: m["data"] != null
                 ? m["data"] is String
                     ? base64.decode(m["data"])
@@ -25,19 +159,168 @@ class VideoThumbnail {
 
   @override
   String toString() {
-    return "width:$width, height:$height, length=${data?.length}";
+    return "index:$index, width:$width, height:$height, length=${data?.length}";
   }
 
   Map<String, dynamic> toMap() {
     return {
       'width': width,
       'height': height,
+      'index': index,
+      'format': _thumbnailFormatName(format),
       'data': data != null ? base64.encode(data!) : null,
     };
   }
 }
 
+/// Limits a trim is re-encoded to; a limit left `null` keeps the source's.
+///
+/// [maxWidth] and [maxHeight] bound the long and short edges of the picture
+/// whatever its orientation, so a 1280 x 720 profile brings portrait 4K video
+/// down to 720 x 1280. Video is scaled, never upscaled or cropped.
+class ExportProfile {
+  const ExportProfile(
+      {this.maxWidth,
+      this.maxHeight,
+      this.videoBitRate,
+      this.maxFrameRate,
+      this.audioBitRate});
+
+  final int? maxWidth;
+  final int? maxHeight;
+
+  /// Video bit rate in bits per second.
+  final int? videoBitRate;
+  final int? maxFrameRate;
+
+  /// AAC bit rate in bits per second; `null` copies the source audio.
+  final int? audioBitRate;
+
+  Map<String, dynamic> toMap() {
+    return {
+      'maxWidth': maxWidth,
+      'maxHeight': maxHeight,
+      'videoBitRate': videoBitRate,
+      'maxFrameRate': maxFrameRate,
+      'audioBitRate': audioBitRate,
+    };
+  }
+}
+
+/// A `[startMs, endMs]` range of a video and the file it is cut to.
+class TrimSegment {
+  const TrimSegment(
+      {required this.startMs, required this.endMs, required this.outputFile});
+
+  final int startMs;
+  final int endMs;
+  final String outputFile;
+
+  Map<String, dynamic> toMap() {
+    return {
+      'startMs': startMs,
+      'endMs': endMs,
+      'outputFile': outputFile,
+    };
+  }
+}
+
+/// Outcome of cutting one [TrimSegment].
+class TrimSegmentResult {
+  TrimSegmentResult(
+      {required this.index,
+      required this.outputFile,
+      required this.success,
+      required this.size});
+
+  /// Position of the segment in the request.
+  final int index;
+  final String outputFile;
+  final bool success;
+
+  /// Size of the output file in bytes.
+  final int size;
+
+  TrimSegmentResult.fromMap(Map m)
+      : this(
+            index: m["index"],
+            outputFile: m["outputFile"],
+            success: m["success"],
+            size: m["size"]);
+
+  @override
+  String toString() {
+    return "index:$index, outputFile:$outputFile, success:$success, size:$size";
+  }
+}
+
 typedef OnLatestThumbnailAvailable = Function(VideoThumbnail image);
+typedef OnThumbnailAtlasAvailable = Function(ThumbnailAtlas atlas);
+
+/// A thumbnail strip composed into one image, laid out row by row.
+class ThumbnailAtlas {
+  ThumbnailAtlas(
+      {required this.width,
+      required this.height,
+      required this.tileWidth,
+      required this.tileHeight,
+      required this.count,
+      required this.rects,
+      required this.filled,
+      required this.isComplete,
+      this.format,
+      this.data});
+
+  final int width;
+  final int height;
+  final int tileWidth;
+  final int tileHeight;
+
+  /// Number of tiles in the strip.
+  final int count;
+
+  /// Where each tile of the strip is in the atlas, by index.
+  final List<Rect> rects;
+
+  /// Indices of the tiles drawn so far; the others are transparent.
+  final List<int> filled;
+
+  /// Whether every tile has been drawn. Partial atlases are sent while the
+  /// strip fills in, when asked for.
+  final bool isComplete;
+
+  /// Encoding of [data].
+  final ThumbnailFormat? format;
+  final Uint8List? data;
+
+  ThumbnailAtlas.fromMap(Map m)
+      : this(
+            width: m["width"],
+            height: m["height"],
+            tileWidth: m["tileWidth"],
+            tileHeight: m["tileHeight"],
+            count: m["count"],
+            rects: _rectsFromList(m["rects"]),
+            filled: List<int>.from(m["filled"]),
+            isComplete: m["complete"],
+            format: _thumbnailFormatFromName(m["format"]),
+            data: m["data"]);
+
+  static List<Rect> _rectsFromList(List<int> values) {
+    return List<Rect>.generate(
+        values.length ~/ 4,
+        (i) => Rect.fromLTWH(
+            values[i * 4].toDouble(),
+            values[i * 4 + 1].toDouble(),
+            values[i * 4 + 2].toDouble(),
+            values[i * 4 + 3].toDouble()));
+  }
+
+  @override
+  String toString() {
+    return "width:$width, height:$height, count:$count, filled:${filled.length}, isComplete:$isComplete, length=${data?.length}";
+  }
+}
 
 /// This is thrown when the plugin reports an error.
 class VideoTrimException implements Exception {
@@ -53,7 +336,10 @@ class VideoTrimException implements Exception {
 /// The state of a [FetchVideoThumbnailnailTaskValue].
 class FetchVideoThumbnailnailTaskValue {
   const FetchVideoThumbnailnailTaskValue(
-      {this.thumbnail, this.errorDescription, this.isRunning = false});
+      {this.thumbnail,
+      this.atlas,
+      this.errorDescription,
+      this.isRunning = false});
 
   const FetchVideoThumbnailnailTaskValue.uninitialized()
       : this(
@@ -64,6 +350,9 @@ class FetchVideoThumbnailnailTaskValue {
   /// True when fetching thumbnails have isRunning.
   final VideoThumbnail? thumbnail;
 
+  /// The latest atlas of a strip started in atlas mode.
+  final ThumbnailAtlas? atlas;
+
   final String? errorDescription;
 
   final bool isRunning;
@@ -72,12 +361,14 @@ class FetchVideoThumbnailnailTaskValue {
 
   FetchVideoThumbnailnailTaskValue copyWith({
     VideoThumbnail? thumbnail,
+    ThumbnailAtlas? atlas,
     String? errorDescription,
     bool? isRunning,
   }) {
     return FetchVideoThumbnailnailTaskValue(
       errorDescription: errorDescription,
       thumbnail: thumbnail ?? this.thumbnail,
+      atlas: atlas ?? this.atlas,
       isRunning: isRunning ?? this.isRunning,
     );
   }
@@ -86,6 +377,7 @@ class FetchVideoThumbnailnailTaskValue {
   String toString() {
     return '$runtimeType('
         'thumbnail: $thumbnail, '
+        'atlas: $atlas, '
         'isRunning: $isRunning, '
         'errorDescription: $errorDescription, ';
   }
@@ -98,21 +390,103 @@ class FetchVideoThumbnailnailTask
   final EventChannel eventChannel;
   late StreamSubscription<dynamic> _thumbnailStreamSubscription;
   bool _isDisposed = false;
+
+  /// The tile file of [ThumbnailDelivery.file] strips, kept open across tiles.
+  RandomAccessFile? _tileFile;
+  String? _tilePath;
+
+  /// The handling of the events received so far.
+  Future<void> _events = Future.value();
+
   FetchVideoThumbnailnailTask._internal(
-      this.videoPath, this.handle, OnLatestThumbnailAvailable callback)
+      this.videoPath, this.handle, OnLatestThumbnailAvailable callback,
+      {OnThumbnailAtlasAvailable? onAtlas})
       : eventChannel = EventChannel(
             'github.com/peerwaya/gotok/video_trimmer/thumbnailStream/$handle'),
         super(const FetchVideoThumbnailnailTaskValue.uninitialized()) {
     _thumbnailStreamSubscription =
-        eventChannel.receiveBroadcastStream().listen((dynamic imageData) {
-      final thumbnail = VideoThumbnail.fromMap(imageData);
-      callback(thumbnail);
-      value = value.copyWith(thumbnail: thumbnail);
+        eventChannel.receiveBroadcastStream().listen((dynamic event) {
+      // Tile files are read asynchronously; events are still handled in order.
+      _events = _events.then((_) => _onEvent(event, callback, onAtlas));
     });
   }
 
-  start(
-      int startMs, int endMs, int totalThumbsCount, Size thumbnailSize) async {
+  Future<void> _onEvent(dynamic event, OnLatestThumbnailAvailable callback,
+      OnThumbnailAtlasAvailable? onAtlas) async {
+    if (_isDisposed) {
+      return;
+    }
+    switch (event["eventType"]) {
+      case "done":
+      case "cancelled":
+        value = value.copyWith(isRunning: false);
+        break;
+      case "atlas":
+        final atlas = ThumbnailAtlas.fromMap(event);
+        onAtlas?.call(atlas);
+        value = value.copyWith(atlas: atlas);
+        break;
+      default:
+        if (event["path"] != null) {
+          final data = await _readTile(event);
+          if (data == null || _isDisposed) {
+            break;
+          }
+          event = Map.of(event)..["data"] = data;
+        }
+        if (event["encodedAtUs"] != null) {
+          // Both sides read the monotonic clock.
+          event = Map.of(event)
+            ..["deliveryLatencyUs"] = Timeline.now - event["encodedAtUs"];
+        }
+        final thumbnail = VideoThumbnail.fromMap(event);
+        callback(thumbnail);
+        value = value.copyWith(thumbnail: thumbnail);
+    }
+  }
+
+  /// Reads a tile delivered through a file, `null` if the file is gone: it
+  /// belonged to a strip since replaced.
+  Future<Uint8List?> _readTile(Map event) async {
+    final String path = event["path"];
+    try {
+      if (path != _tilePath) {
+        final previous = _tileFile;
+        _tileFile = null;
+        _tilePath = null;
+        await previous?.close();
+        _tileFile = await File(path).open();
+        _tilePath = path;
+      }
+      await _tileFile!.setPosition(event["offset"]);
+      return await _tileFile!.read(event["length"]);
+    } on FileSystemException {
+      return null;
+    }
+  }
+
+  /// Starts streaming [totalThumbsCount] thumbnails evenly spaced between
+  /// [startMs] and [endMs].
+  ///
+  /// Up to [parallelism] decoders work on the strip at once; the platform
+  /// picks a default when it is null. Thumbnails are sent as [format]
+  /// (BMP by default) at [quality] for lossy formats, and scheduled at
+  /// [priority] (visible by default). [delivery] picks how they cross the
+  /// channel, in the events by default.
+  ///
+  /// With [atlas] set the strip is instead composed into one
+  /// [ThumbnailAtlas], delivered once complete and, if [atlasUpdateMs] is
+  /// set, as partial atlases at that interval while it fills in. An atlas is
+  /// at most 4096 pixels wide and high; strips that do not fit fail with
+  /// `invalid_atlas`.
+  start(int startMs, int endMs, int totalThumbsCount, Size thumbnailSize,
+      {int? parallelism,
+      ThumbnailFormat? format,
+      int? quality,
+      TaskPriority? priority,
+      ThumbnailDelivery? delivery,
+      bool atlas = false,
+      int? atlasUpdateMs}) async {
     try {
       if (_isDisposed) {
         throw VideoTrimException(
@@ -134,7 +508,14 @@ class FetchVideoThumbnailnailTask
         "endMs": endMs,
         "totalThumbsCount": totalThumbsCount,
         "width": thumbnailSize.width,
-        "height": thumbnailSize.height
+        "height": thumbnailSize.height,
+        "parallelism": parallelism,
+        "format": _thumbnailFormatName(format),
+        "quality": quality,
+        "priority": _taskPriorityName(priority),
+        "delivery": _thumbnailDeliveryName(delivery),
+        "atlas": atlas,
+        "atlasUpdateMs": atlasUpdateMs,
       });
       value = value.copyWith(
         isRunning: isRunning,
@@ -183,22 +564,460 @@ class FetchVideoThumbnailnailTask
     );
     await _thumbnailStreamSubscription.cancel();
     _isDisposed = true;
+    await _events;
+    await _tileFile?.close();
+    _tileFile = null;
     super.dispose();
   }
 }
 
+/// A snapshot of a running trim, see [TrimJob.progress].
+class TrimProgress {
+  TrimProgress(
+      {required this.timeMs,
+      required this.bytes,
+      required this.speed,
+      this.percent,
+      this.etaMs,
+      this.isDone = false,
+      this.isCancelled = false,
+      this.rc,
+      this.elapsedMs,
+      this.averageSpeed});
+
+  /// Media time processed so far.
+  final int timeMs;
+
+  /// Bytes written so far.
+  final int bytes;
+
+  /// Current processing speed, as a multiple of realtime.
+  final double speed;
+
+  /// Progress from 0 to 100, when the length of the trim is known.
+  final double? percent;
+
+  /// Estimated time left, when the speed is known.
+  final int? etaMs;
+
+  /// Whether this is the last event of the job.
+  final bool isDone;
+
+  /// Whether the job was cancelled, only set on the last event.
+  final bool isCancelled;
+
+  /// Return code of the trim, only set on the last event.
+  final int? rc;
+
+  /// Wall time the trim took, only set on the last event.
+  final int? elapsedMs;
+
+  /// Media time processed per wall time, only set on the last event.
+  final double? averageSpeed;
+
+  TrimProgress.fromMap(Map m)
+      : this(
+            timeMs: m["timeMs"],
+            bytes: m["bytes"],
+            speed: m["speed"],
+            percent: m["percent"],
+            etaMs: m["etaMs"],
+            isDone: m["eventType"] == "done" || m["eventType"] == "cancelled",
+            isCancelled: m["eventType"] == "cancelled",
+            rc: m["rc"],
+            elapsedMs: m["elapsedMs"],
+            averageSpeed: m["averageSpeed"]);
+
+  @override
+  String toString() {
+    return "timeMs:$timeMs, bytes:$bytes, speed:$speed, percent:$percent, etaMs:$etaMs, isDone:$isDone";
+  }
+}
+
+/// A trim started with [VideoTrimmer.startTrimVideo],
+/// [VideoTrimmer.startTrimSegments], [VideoTrimmer.startConcatVideos] or
+/// [VideoTrimmer.startExtractAudio].
+class TrimJob<T> {
+  TrimJob._(this.handle, this.progress, this.result);
+
+  final int handle;
+
+  /// Progress events, at most a few per second, ending with an event whose
+  /// [TrimProgress.isDone] is set.
+  final Stream<TrimProgress> progress;
+
+  /// Completes like the matching one-shot call, or with a
+  /// [VideoTrimException] whose code is `cancelled` if the job is cancelled.
+  final Future<T> result;
+
+  /// Stops the trim and deletes its partial outputs. A trim shared with
+  /// identical calls keeps running for them.
+  ///
+  /// Returns false if the trim had already completed.
+  Future<bool> cancel() => VideoTrimmer.cancelTrim(handle);
+}
+
+/// Format of one track of a video, see [VideoProbe.tracks].
+class MediaTrackInfo {
+  MediaTrackInfo(
+      {required this.mime,
+      this.language,
+      required this.durationMs,
+      this.width,
+      this.height,
+      this.frameRate,
+      this.sampleRate,
+      this.channelCount,
+      this.bitRate});
+
+  final String mime;
+  final String? language;
+  final int durationMs;
+
+  /// Video tracks only.
+  final int? width;
+  final int? height;
+  final double? frameRate;
+
+  /// Audio tracks only.
+  final int? sampleRate;
+  final int? channelCount;
+  final int? bitRate;
+
+  bool get isVideo => mime.startsWith('video/');
+
+  bool get isAudio => mime.startsWith('audio/');
+
+  MediaTrackInfo.fromMap(Map m)
+      : this(
+            mime: m["mime"],
+            language: m["language"],
+            durationMs: m["durationMs"],
+            width: m["width"],
+            height: m["height"],
+            frameRate: m["frameRate"],
+            sampleRate: m["sampleRate"],
+            channelCount: m["channelCount"],
+            bitRate: m["bitRate"]);
+
+  @override
+  String toString() {
+    return "mime:$mime, durationMs:$durationMs";
+  }
+}
+
+/// Facts about a video, from [VideoTrimmer.probeVideo].
+class VideoProbe {
+  VideoProbe(
+      {required this.durationMs,
+      required this.width,
+      required this.height,
+      required this.rotation,
+      required this.frameRate,
+      this.videoTrack,
+      required this.tracks,
+      required this.keyFramesUs});
+
+  final int durationMs;
+
+  /// Coded size of the video track, before [rotation].
+  final int width;
+  final int height;
+
+  /// Clockwise rotation to apply for display, in degrees.
+  final int rotation;
+
+  /// Declared by the container, or measured over the video track.
+  final double frameRate;
+
+  /// Index of the video track in [tracks], if there is one.
+  final int? videoTrack;
+  final List<MediaTrackInfo> tracks;
+
+  /// Presentation times of every key frame of the video track, ascending.
+  /// Stream-copied trims start at the last one at or before their start.
+  final Int64List keyFramesUs;
+
+  VideoProbe.fromMap(Map m)
+      : this(
+            durationMs: m["durationMs"],
+            width: m["width"],
+            height: m["height"],
+            rotation: m["rotation"],
+            frameRate: m["frameRate"],
+            videoTrack: m["videoTrack"],
+            tracks: (m["tracks"] as List)
+                .map((t) => MediaTrackInfo.fromMap(t))
+                .toList(),
+            keyFramesUs: m["keyFramesUs"]);
+
+  @override
+  String toString() {
+    return "durationMs:$durationMs, width:$width, height:$height, rotation:$rotation, frameRate:$frameRate, tracks:${tracks.length}, keyFrames:${keyFramesUs.length}";
+  }
+}
+
+/// Timings of one stage of thumbnail extraction or trimming, in
+/// microseconds. Percentiles are estimated from power-of-two buckets:
+/// [buckets][i] counts the durations of [2^i, 2^(i+1)) us.
+class StageLatency {
+  StageLatency(
+      {required this.count,
+      required this.totalUs,
+      required this.meanUs,
+      required this.maxUs,
+      required this.p50Us,
+      required this.p90Us,
+      required this.p99Us,
+      required this.buckets});
+
+  final int count;
+  final int totalUs;
+  final int meanUs;
+  final int maxUs;
+  final int p50Us;
+  final int p90Us;
+  final int p99Us;
+  final List<int> buckets;
+
+  StageLatency.fromMap(Map m)
+      : this(
+            count: m["count"],
+            totalUs: m["totalUs"],
+            meanUs: m["meanUs"],
+            maxUs: m["maxUs"],
+            p50Us: m["p50Us"],
+            p90Us: m["p90Us"],
+            p99Us: m["p99Us"],
+            buckets: List<int>.from(m["buckets"]));
+
+  @override
+  String toString() {
+    return "count:$count, meanUs:$meanUs, p50Us:$p50Us, p90Us:$p90Us, p99Us:$p99Us, maxUs:$maxUs";
+  }
+}
+
+/// Where the plugin spends its time, see [VideoTrimmer.getMetrics].
+class TrimmerMetrics {
+  TrimmerMetrics(
+      {required this.stages,
+      required this.executorQueued,
+      required this.executorRunning,
+      required this.trimsQueued,
+      required this.trimsRunning,
+      required this.trimJobs});
+
+  /// Timings by stage: `setDataSource`, `getFrameAtTime`, `scale`, `encode`,
+  /// `mainThreadHop`, `ffmpeg`, `queueWait` and `trim`.
+  final Map<String, StageLatency> stages;
+
+  /// Background tasks waiting for a thread, and running on one.
+  final int executorQueued;
+  final int executorRunning;
+
+  /// Trims waiting for a free slot, and running.
+  final int trimsQueued;
+  final int trimsRunning;
+
+  /// [TrimJob]s started and not yet done.
+  final int trimJobs;
+
+  TrimmerMetrics.fromMap(Map m)
+      : this(
+            stages: Map<String, dynamic>.from(m["stages"]).map(
+                (name, stage) => MapEntry(name, StageLatency.fromMap(stage))),
+            executorQueued: m["executor"]["queued"],
+            executorRunning: m["executor"]["running"],
+            trimsQueued: m["trims"]["queued"],
+            trimsRunning: m["trims"]["running"],
+            trimJobs: m["trims"]["jobs"]);
+
+  @override
+  String toString() {
+    return "stages:$stages, executorQueued:$executorQueued, executorRunning:$executorRunning, trimsQueued:$trimsQueued, trimsRunning:$trimsRunning, trimJobs:$trimJobs";
+  }
+}
+
 class VideoTrimmer {
   static const MethodChannel _channel =
       MethodChannel('github.com/peerwaya/gotok/video_trimmer');
 
+  /// Cuts `[startMs, endMs]` of [inputFile] to [outputFile], by stream copy
+  /// unless [mode] says otherwise. Copies are done by [engine], picked
+  /// automatically by default.
+  ///
+  /// With a [profile] the range is instead re-encoded with the hardware
+  /// encoder, frame-accurately, to fit the profile; [mode] and [engine] are
+  /// then ignored.
+  ///
+  /// [streams] drops the audio or the video; the dropped streams are not
+  /// read at all.
+  ///
+  /// Trims are queued, see [setMaxConcurrentTrims]. A trim identical to one
+  /// in flight joins it, and the output of a recent identical trim is reused
+  /// as long as it is unchanged on disk.
   static Future<String> trimVideo(
-      String inputFile, String outputFile, int startMs, int endMs) async {
+      String inputFile, String outputFile, int startMs, int endMs,
+      {TrimMode? mode,
+      TrimEngine? engine,
+      ExportProfile? profile,
+      TrimStreams? streams}) {
+    return _trimVideo(inputFile, outputFile, startMs, endMs, null,
+        mode: mode, engine: engine, profile: profile, streams: streams);
+  }
+
+  /// Like [trimVideo], with a progress stream.
+  static Future<TrimJob<String>> startTrimVideo(
+      String inputFile, String outputFile, int startMs, int endMs,
+      {TrimMode? mode,
+      TrimEngine? engine,
+      ExportProfile? profile,
+      TrimStreams? streams}) {
+    return _startTrimJob((handle) => _trimVideo(
+        inputFile, outputFile, startMs, endMs, handle,
+        mode: mode, engine: engine, profile: profile, streams: streams));
+  }
+
+  /// Copies the audio of `[startMs, endMs]` of [inputFile] to [outputFile],
+  /// without reading the video.
+  ///
+  /// FFmpeg picks the container from the extension of [outputFile], e.g.
+  /// `.aac` or `.mka`. The platform remuxer only writes MP4 audio: [TrimEngine.auto]
+  /// uses it for `.m4a` outputs only, and [TrimEngine.muxer] fails with
+  /// `invalid_engine` for any other extension.
+  static Future<String> extractAudio(
+      String inputFile, String outputFile, int startMs, int endMs,
+      {TrimEngine? engine}) {
+    return _extractAudio(inputFile, outputFile, startMs, endMs, null,
+        engine: engine);
+  }
+
+  /// Like [extractAudio], with a progress stream.
+  static Future<TrimJob<String>> startExtractAudio(
+      String inputFile, String outputFile, int startMs, int endMs,
+      {TrimEngine? engine}) {
+    return _startTrimJob((handle) => _extractAudio(
+        inputFile, outputFile, startMs, endMs, handle,
+        engine: engine));
+  }
+
+  /// Joins [inputFiles] end to end into [outputFile].
+  ///
+  /// Clips with matching codecs, video size, rotation and audio layout are
+  /// joined by stream copy. Otherwise every clip is re-encoded to the format
+  /// of the first one, which is slower: clips of another rotation are turned
+  /// to the first one's, and clips of another aspect ratio are letterboxed.
+  static Future<String> concatVideos(
+      List<String> inputFiles, String outputFile) {
+    return _concatVideos(inputFiles, outputFile, null);
+  }
+
+  /// Like [concatVideos], with a progress stream.
+  static Future<TrimJob<String>> startConcatVideos(
+      List<String> inputFiles, String outputFile) {
+    return _startTrimJob(
+        (handle) => _concatVideos(inputFiles, outputFile, handle));
+  }
+
+  /// Like [trimSegments], with a progress stream.
+  static Future<TrimJob<List<TrimSegmentResult>>> startTrimSegments(
+      String inputFile, List<TrimSegment> segments) {
+    return _startTrimJob(
+        (handle) => _trimSegments(inputFile, segments, handle));
+  }
+
+  /// Limits how many [trimVideo] calls run at once, 2 by default. Further
+  /// trims wait in call order.
+  static Future<void> setMaxConcurrentTrims(int maxConcurrency) async {
+    try {
+      await _channel.invokeMethod(
+          'setMaxConcurrentTrims', {"maxConcurrency": maxConcurrency});
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  /// Cancels the trim job with the given [handle], see [TrimJob.cancel].
+  static Future<bool> cancelTrim(int handle) async {
+    try {
+      return await _channel.invokeMethod('cancelTrim', {"handle": handle});
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  static Future<TrimJob<T>> _startTrimJob<T>(
+      Future<T> Function(int handle) run) async {
+    try {
+      int handle = await _channel.invokeMethod('initTrimJob');
+      final progress = StreamController<TrimProgress>.broadcast();
+      // Listen before the trim starts so that no event is missed.
+      EventChannel('${_channel.name}/trimProgress/$handle')
+          .receiveBroadcastStream()
+          .map((event) => TrimProgress.fromMap(event))
+          .listen(progress.add,
+              onError: progress.addError, onDone: progress.close);
+      return TrimJob<T>._(handle, progress.stream, run(handle));
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  static Future<String> _trimVideo(String inputFile, String outputFile,
+      int startMs, int endMs, int? handle,
+      {TrimMode? mode,
+      TrimEngine? engine,
+      ExportProfile? profile,
+      TrimStreams? streams}) async {
     try {
       int ret = await _channel.invokeMethod('trimVideo', {
         "inputFile": inputFile,
         "outputFile": outputFile,
         "startMs": startMs,
-        "endMs": endMs
+        "endMs": endMs,
+        "handle": handle,
+        "mode": _trimModeName(mode),
+        "engine": _trimEngineName(engine),
+        "profile": profile?.toMap(),
+        "streams": _trimStreamsName(streams),
+      });
+      if (ret != 0) {
+        throw VideoTrimException("failed", description: "error code $ret");
+      }
+      return outputFile;
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  static Future<String> _extractAudio(String inputFile, String outputFile,
+      int startMs, int endMs, int? handle,
+      {TrimEngine? engine}) async {
+    try {
+      int ret = await _channel.invokeMethod('extractAudio', {
+        "inputFile": inputFile,
+        "outputFile": outputFile,
+        "startMs": startMs,
+        "endMs": endMs,
+        "handle": handle,
+        "engine": _trimEngineName(engine),
+      });
+      if (ret != 0) {
+        throw VideoTrimException("failed", description: "error code $ret");
+      }
+      return outputFile;
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  static Future<String> _concatVideos(
+      List<String> inputFiles, String outputFile, int? handle) async {
+    try {
+      int ret = await _channel.invokeMethod('concatVideos', {
+        "inputFiles": inputFiles,
+        "outputFile": outputFile,
+        "handle": handle,
       });
       if (ret != 0) {
         throw VideoTrimException("failed", description: "error code $ret");
@@ -209,25 +1028,75 @@ class VideoTrimmer {
     }
   }
 
-  static Future<void> saveToLibrary(String inputFile) async {
+  /// Cuts every segment from [inputFile] in a single pass over the input.
+  ///
+  /// Like [trimVideo] copies, each segment starts at the key frame at or
+  /// before its `startMs`, its audio with it.
+  /// Results come back in the order of [segments].
+  static Future<List<TrimSegmentResult>> trimSegments(
+      String inputFile, List<TrimSegment> segments) {
+    return _trimSegments(inputFile, segments, null);
+  }
+
+  static Future<List<TrimSegmentResult>> _trimSegments(
+      String inputFile, List<TrimSegment> segments, int? handle) async {
     try {
-      await _channel.invokeMethod('saveToLibrary', {
+      List<dynamic> ret = await _channel.invokeMethod('trimSegments', {
         "inputFile": inputFile,
+        "segments": segments.map((s) => s.toMap()).toList(),
+        "handle": handle,
       });
+      return ret.map((m) => TrimSegmentResult.fromMap(m)).toList();
     } on PlatformException catch (e) {
       throw VideoTrimException(e.code, description: e.message);
     }
   }
 
+  /// Adds [inputFile] to the device's media library. See [saveAllToLibrary].
+  static Future<void> saveToLibrary(String inputFile,
+      {TaskPriority? priority}) async {
+    await saveAllToLibrary([inputFile], priority: priority);
+  }
+
+  /// Adds [inputFiles] to the device's media library in one batch, audio
+  /// clips to Music and the rest to Movies, and returns the content uri of
+  /// each file. Either all of the files are saved or none are.
+  ///
+  /// From Android 10 the files are copied into the library without asking
+  /// for a permission; before that the library points at the files where
+  /// they are, after the storage permission is granted once for the batch.
+  static Future<List<String>> saveAllToLibrary(List<String> inputFiles,
+      {TaskPriority? priority}) async {
+    try {
+      List<dynamic> ret = await _channel.invokeMethod('saveToLibrary', {
+        "inputFiles": inputFiles,
+        "priority": _taskPriorityName(priority),
+      });
+      return ret.cast<String>();
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  /// Extracts the first frame of [inputFile] as a [size] thumbnail, encoded
+  /// as [format] (PNG by default) at [quality] for lossy formats. Runs at
+  /// [priority], interactive by default.
   static Future<VideoThumbnail> extractThumbnail(String inputFile, Size size,
-      {int start = 0, int end = 0}) async {
+      {int start = 0,
+      int end = 0,
+      ThumbnailFormat? format,
+      int? quality,
+      TaskPriority? priority}) async {
     try {
       final result = await _channel.invokeMethod('extractThumbnail', {
         "inputFile": inputFile,
         "width": size.width,
         "height": size.height,
         "startMs": start,
-        "endMs": end
+        "endMs": end,
+        "format": _thumbnailFormatName(format),
+        "quality": quality,
+        "priority": _taskPriorityName(priority),
       });
       return VideoThumbnail.fromMap(result);
     } on PlatformException catch (e) {
@@ -235,9 +1104,16 @@ class VideoTrimmer {
     }
   }
 
+  /// Extracts [totalThumbsCount] thumbnails evenly spaced between [start] and
+  /// [end], encoded as [format] (PNG by default) at [quality] for lossy
+  /// formats. Runs at [priority], visible by default.
   static Future<List<VideoThumbnail>> extractThumbnails(
       String inputFile, Size size, int totalThumbsCount,
-      {int start = 0, int end = 0}) async {
+      {int start = 0,
+      int end = 0,
+      ThumbnailFormat? format,
+      int? quality,
+      TaskPriority? priority}) async {
     try {
       final result = await _channel.invokeMethod('extractThumbnails', {
         "inputFile": inputFile,
@@ -246,6 +1122,9 @@ class VideoTrimmer {
         "startMs": start,
         "endMs": end,
         "totalThumbsCount": totalThumbsCount,
+        "format": _thumbnailFormatName(format),
+        "quality": quality,
+        "priority": _taskPriorityName(priority),
       });
       if (result != null) {
         return (result as List<dynamic>)
@@ -260,11 +1139,135 @@ class VideoTrimmer {
     }
   }
 
+  /// Like [extractThumbnails], composing the thumbnails into one
+  /// [ThumbnailAtlas], at most 4096 pixels wide and high; strips that do not
+  /// fit fail with `invalid_atlas`.
+  static Future<ThumbnailAtlas> extractThumbnailAtlas(
+      String inputFile, Size size, int totalThumbsCount,
+      {int start = 0,
+      int end = 0,
+      ThumbnailFormat? format,
+      int? quality,
+      TaskPriority? priority}) async {
+    try {
+      final result = await _channel.invokeMethod('extractThumbnails', {
+        "inputFile": inputFile,
+        "width": size.width,
+        "height": size.height,
+        "startMs": start,
+        "endMs": end,
+        "totalThumbsCount": totalThumbsCount,
+        "format": _thumbnailFormatName(format),
+        "quality": quality,
+        "priority": _taskPriorityName(priority),
+        "atlas": true,
+      });
+      return ThumbnailAtlas.fromMap(result);
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  /// Like [extractThumbnails], but delivers each thumbnail as soon as it is
+  /// ready instead of waiting for the whole batch.
+  ///
+  /// Extraction starts when the stream is listened to and stops when the
+  /// subscription is cancelled.
+  static Stream<VideoThumbnail> extractThumbnailsStream(
+      String inputFile, Size size, int totalThumbsCount,
+      {int start = 0,
+      int end = 0,
+      ThumbnailFormat? format,
+      int? quality,
+      TaskPriority? priority}) async* {
+    final int handle;
+    try {
+      handle = await _channel.invokeMethod('extractThumbnails', {
+        "inputFile": inputFile,
+        "width": size.width,
+        "height": size.height,
+        "startMs": start,
+        "endMs": end,
+        "totalThumbsCount": totalThumbsCount,
+        "format": _thumbnailFormatName(format),
+        "quality": quality,
+        "priority": _taskPriorityName(priority),
+        "stream": true,
+      });
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+    yield* EventChannel(
+            'github.com/peerwaya/gotok/video_trimmer/thumbnailBatch/$handle')
+        .receiveBroadcastStream()
+        .where((dynamic event) => event["eventType"] == "result")
+        .map<VideoThumbnail>((dynamic event) => VideoThumbnail.fromMap(event));
+  }
+
+  /// Hit/miss counters and sizes of the native thumbnail cache.
+  static Future<Map<String, int>> getThumbnailCacheStats() async {
+    try {
+      final result = await _channel.invokeMethod('getThumbnailCacheStats');
+      return Map<String, int>.from(result);
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  /// Duration, rotation, frame rate, track formats and key frame times of
+  /// [inputFile].
+  ///
+  /// The first call reads through the video track once; the result is kept
+  /// in an index in the app cache, keyed by the file's path, size and
+  /// modification time, and later calls are answered from there. Trims and
+  /// thumbnails use the same index.
+  static Future<VideoProbe> probeVideo(String inputFile) async {
+    try {
+      final result =
+          await _channel.invokeMethod('probeVideo', {"inputFile": inputFile});
+      return VideoProbe.fromMap(result);
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  /// Drops every cached thumbnail and resets the cache counters.
+  static Future<void> clearThumbnailCache() async {
+    try {
+      await _channel.invokeMethod('clearThumbnailCache');
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  /// Stage timings recorded since the plugin started or since the last
+  /// [resetMetrics], and the current depth of its queues.
+  static Future<TrimmerMetrics> getMetrics() async {
+    try {
+      final result = await _channel.invokeMethod('getMetrics');
+      return TrimmerMetrics.fromMap(result);
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  /// Clears the stage timings; the queue depths are live and unaffected.
+  static Future<void> resetMetrics() async {
+    try {
+      await _channel.invokeMethod('resetMetrics');
+    } on PlatformException catch (e) {
+      throw VideoTrimException(e.code, description: e.message);
+    }
+  }
+
+  /// [onAtlas] receives the atlases of strips started in atlas mode.
   static Future<FetchVideoThumbnailnailTask> createFetchVideoThumbnailnailTask(
-      String videoFile, OnLatestThumbnailAvailable callback) async {
+      String videoFile, OnLatestThumbnailAvailable callback,
+      {OnThumbnailAtlasAvailable? onAtlas}) async {
     final int handle = await _channel.invokeMethod('initVideoThumbsRequest', {
       "videoFile": videoFile,
     });
-    return FetchVideoThumbnailnailTask._internal(videoFile, handle, callback);
+    return FetchVideoThumbnailnailTask._internal(videoFile, handle, callback,
+        onAtlas: onAtlas);
   }
 }